@@ -0,0 +1,130 @@
+package ru.ifmo.pp.bank.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Precomputed sequence of account indices drawn from a distribution, so that
+ * drawing an account costs a single array read inside a benchmark.
+ */
+public class Accounts {
+	/**
+	 * Length of the sequence, a power of two.
+	 */
+	private static final int LENGTH = 1 << 16;
+
+	/**
+	 * The maximum number of distinct ranks of the Zipf distribution; the
+	 * ranks are spread evenly over larger banks.
+	 */
+	private static final int MAX_RANKS = 1 << 20;
+
+	/**
+	 * Exponent of the Zipf distribution.
+	 */
+	private static final double ZIPF_EXPONENT = 0.99;
+
+	/**
+	 * Fraction of the accounts that are hot in the hotspot distribution.
+	 */
+	private static final double HOT_ACCOUNTS = 0.1;
+
+	/**
+	 * Fraction of the draws that hit a hot account in the hotspot
+	 * distribution.
+	 */
+	private static final double HOT_DRAWS = 0.9;
+
+	/**
+	 * Account indices.
+	 */
+	private final int[] indices;
+
+	/**
+	 * Position of the next index.
+	 */
+	private int position;
+
+	/**
+	 * Creates a sequence of account indices.
+	 * 
+	 * @param n
+	 *            the number of accounts
+	 * @param distribution
+	 *            "uniform", "zipf" or "hotspot"
+	 * @param seed
+	 *            random seed
+	 * @throws IllegalArgumentException
+	 *             when the distribution is unknown.
+	 */
+	public Accounts(int n, String distribution, long seed) {
+		Random random = new Random(seed);
+		indices = new int[LENGTH];
+		if (distribution.equals("uniform")) {
+			for (int k = 0; k < LENGTH; ++k) {
+				indices[k] = random.nextInt(n);
+			}
+		} else if (distribution.equals("zipf")) {
+			int ranks = Math.min(n, MAX_RANKS);
+			double[] cdf = new double[ranks];
+			double sum = 0;
+			for (int r = 0; r < ranks; ++r) {
+				sum += 1 / Math.pow(r + 1, ZIPF_EXPONENT);
+				cdf[r] = sum;
+			}
+			int[] accounts = permutation(n, random);
+			for (int k = 0; k < LENGTH; ++k) {
+				int r = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+				if (r < 0) {
+					r = -r - 1;
+				}
+				indices[k] = accounts[(int) ((long) Math.min(r, ranks - 1)
+						* n / ranks)];
+			}
+		} else if (distribution.equals("hotspot")) {
+			int hot = Math.max(1, (int) (n * HOT_ACCOUNTS));
+			int[] accounts = permutation(n, random);
+			for (int k = 0; k < LENGTH; ++k) {
+				if (hot == n || random.nextDouble() < HOT_DRAWS) {
+					indices[k] = accounts[random.nextInt(hot)];
+				} else {
+					indices[k] = accounts[hot + random.nextInt(n - hot)];
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Invalid distribution: "
+					+ distribution);
+		}
+	}
+
+	/**
+	 * Returns a random permutation of the accounts, so that hot accounts of
+	 * a skewed distribution are not neighbours.
+	 * 
+	 * @param n
+	 *            the number of accounts
+	 * @param random
+	 *            random generator
+	 * @return permutation of 0..n-1
+	 */
+	private static int[] permutation(int n, Random random) {
+		int[] result = new int[n];
+		for (int i = 0; i < n; ++i) {
+			int j = random.nextInt(i + 1);
+			result[i] = result[j];
+			result[j] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the next account index.
+	 * 
+	 * @return account index
+	 */
+	public int next() {
+		int result = indices[position];
+		position = (position + 1) & (LENGTH - 1);
+		return result;
+	}
+}
@@ -0,0 +1,118 @@
+package ru.ifmo.pp.bank.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import ru.ifmo.pp.bank.Bank;
+import ru.ifmo.pp.bank.ConcurrencyMode;
+
+/**
+ * Throughput of the mutating operations of {@link Bank}.
+ * 
+ * A checkpoint is taken every n versions, so the n parameter sweeps the
+ * checkpoint frequency together with the number of accounts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankBenchmark {
+	/**
+	 * Initial amount in every account: enough to withdraw and transfer for
+	 * any benchmark duration, and far from overflow.
+	 */
+	static final long START = Bank.MAX_AMOUNT / 2;
+
+	/**
+	 * Bank shared by all the benchmark threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class BankState {
+		/**
+		 * The number of accounts.
+		 */
+		@Param({ "1024", "65536", "1048576" })
+		public int n;
+
+		/**
+		 * Concurrency control of the bank.
+		 */
+		@Param({ "SYNCHRONIZED", "STRIPED", "SPIN_CLAIM", "SEQUENCER" })
+		public ConcurrencyMode mode;
+
+		/**
+		 * Distribution of the accounts: "uniform", "zipf" or "hotspot".
+		 */
+		@Param({ "uniform", "zipf" })
+		public String distribution;
+
+		/**
+		 * The bank.
+		 */
+		public Bank bank;
+
+		/**
+		 * Creates the bank with every account holding {@link #START}.
+		 */
+		@Setup
+		public void setUp() {
+			bank = new Bank(n, mode);
+			for (int i = 0; i < n; ++i) {
+				bank.deposit(i, START);
+			}
+		}
+	}
+
+	/**
+	 * Accounts drawn by one benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		/**
+		 * Account sequence of the thread.
+		 */
+		public Accounts accounts;
+
+		/**
+		 * Creates the account sequence, different for every thread.
+		 * 
+		 * @param bank
+		 *            shared bank state
+		 * @param thread
+		 *            thread parameters
+		 */
+		@Setup
+		public void setUp(BankState bank, ThreadParams thread) {
+			accounts = new Accounts(bank.n, bank.distribution,
+					thread.getThreadIndex());
+		}
+	}
+
+	@Benchmark
+	public long deposit(BankState state, ThreadState thread) {
+		return state.bank.deposit(thread.accounts.next(), 1);
+	}
+
+	@Benchmark
+	public long withdraw(BankState state, ThreadState thread) {
+		return state.bank.withdraw(thread.accounts.next(), 1);
+	}
+
+	@Benchmark
+	public void transfer(BankState state, ThreadState thread) {
+		state.bank.transfer(thread.accounts.next(), thread.accounts.next(), 1);
+	}
+}
@@ -0,0 +1,33 @@
+package ru.ifmo.pp.bank.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at 1, 2, 4, ... threads up to the number of
+ * processors, or up to the number given by the -t option.
+ * 
+ * The benchmark sources are compiled against jmh-core with the
+ * jmh-generator-annprocess annotation processor, together with the bank
+ * sources. Usage: BenchmarkMain [JMH options], for example
+ * "BenchmarkMain BankBenchmark.deposit -p mode=SPIN_CLAIM -t 8".
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		int maxThreads = options.getThreads().orElse(
+				Runtime.getRuntime().availableProcessors());
+		for (int threads = 1;; threads *= 2) {
+			threads = Math.min(threads, maxThreads);
+			new Runner(new OptionsBuilder().parent(options).threads(threads)
+					.build()).run();
+			if (threads == maxThreads) {
+				break;
+			}
+		}
+	}
+}
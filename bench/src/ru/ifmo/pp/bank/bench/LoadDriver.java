@@ -0,0 +1,573 @@
+package ru.ifmo.pp.bank.bench;
+
+import java.io.PrintStream;
+import java.util.SplittableRandom;
+
+import ru.ifmo.pp.bank.Bank;
+import ru.ifmo.pp.bank.ConcurrencyMode;
+import ru.ifmo.pp.bank.Histogram;
+import ru.ifmo.pp.bank.Snapshot;
+
+/**
+ * End-to-end load test of a {@link Bank}: worker threads run a random mix of
+ * deposits, withdrawals, transfers and snapshot reads for a fixed time, and
+ * the driver reports throughput, latency percentiles and rejection rates of
+ * every kind of operation, then checks the invariants of the final state.
+ * 
+ * Unlike the JMH benchmarks, the driver needs only the bank sources and
+ * measures every single operation, including the rejected ones. Usage:
+ * LoadDriver [--option value ...], for example "LoadDriver --mode SPIN_CLAIM
+ * --threads 8 --distribution zipf --mix 30,20,45,5".
+ */
+public class LoadDriver {
+	/**
+	 * Names of the kinds of operations, in the order of the mix.
+	 */
+	private static final String[] KINDS = { "deposit", "withdraw",
+			"transfer", "snapshot" };
+
+	/**
+	 * Index of deposits in {@link #KINDS}.
+	 */
+	private static final int DEPOSIT = 0;
+
+	/**
+	 * Index of withdrawals in {@link #KINDS}.
+	 */
+	private static final int WITHDRAW = 1;
+
+	/**
+	 * Index of transfers in {@link #KINDS}.
+	 */
+	private static final int TRANSFER = 2;
+
+	/**
+	 * Index of snapshot reads in {@link #KINDS}.
+	 */
+	private static final int SNAPSHOT = 3;
+
+	/**
+	 * The number of accounts read from every snapshot.
+	 */
+	private static final int SNAPSHOT_READS = 16;
+
+	/**
+	 * Percentiles of the latency reported for every kind of operation.
+	 */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/**
+	 * Phase of the run before the measurement.
+	 */
+	private static final int WARMUP = 0;
+
+	/**
+	 * Phase of the run when the operations are measured.
+	 */
+	private static final int MEASUREMENT = 1;
+
+	/**
+	 * Phase of the run when the workers stop.
+	 */
+	private static final int STOP = 2;
+
+	/**
+	 * Thread running operations on the bank.
+	 */
+	private class Worker extends Thread {
+		/**
+		 * Accounts drawn by the worker.
+		 */
+		private final Accounts accounts;
+
+		/**
+		 * Random generator of the operations and amounts.
+		 */
+		private final SplittableRandom random;
+
+		/**
+		 * Latencies of the measured operations of every kind, in
+		 * nanoseconds.
+		 */
+		private final Histogram[] latencies;
+
+		/**
+		 * The number of measured operations of every kind that were rejected.
+		 */
+		private final long[] rejected;
+
+		/**
+		 * Money deposited minus money withdrawn by the successful operations
+		 * of the whole run.
+		 */
+		private long balance;
+
+		/**
+		 * Unexpected exception that stopped the worker, or null.
+		 */
+		private RuntimeException failure;
+
+		/**
+		 * Creates a worker.
+		 * 
+		 * @param index
+		 *            index of the worker
+		 */
+		Worker(int index) {
+			super("load-" + index);
+			accounts = new Accounts(n, distribution, seed + index);
+			random = new SplittableRandom(seed - index - 1);
+			latencies = new Histogram[KINDS.length];
+			for (int k = 0; k < KINDS.length; ++k) {
+				latencies[k] = new Histogram();
+			}
+			rejected = new long[KINDS.length];
+		}
+
+		@Override
+		public void run() {
+			try {
+				load();
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Runs operations until the run stops.
+		 */
+		private void load() {
+			int phase;
+			while ((phase = LoadDriver.this.phase) != STOP) {
+				int r = random.nextInt(100);
+				int kind = 0;
+				while (r >= mix[kind]) {
+					r -= mix[kind];
+					++kind;
+				}
+				long amount = 1 + random.nextLong(maxAmount);
+				long start = System.nanoTime();
+				boolean ok = execute(kind, amount);
+				long time = System.nanoTime() - start;
+				if (phase == MEASUREMENT) {
+					latencies[kind].record(time);
+					if (!ok) {
+						++rejected[kind];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Runs one operation.
+		 * 
+		 * @param kind
+		 *            index of the kind of the operation in {@link #KINDS}
+		 * @param amount
+		 *            amount of a mutating operation
+		 * @return false if the bank rejected the operation
+		 */
+		private boolean execute(int kind, long amount) {
+			try {
+				switch (kind) {
+				case DEPOSIT:
+					bank.deposit(accounts.next(), amount);
+					balance += amount;
+					break;
+				case WITHDRAW:
+					bank.withdraw(accounts.next(), amount);
+					balance -= amount;
+					break;
+				case TRANSFER:
+					bank.transfer(accounts.next(), accounts.next(), amount);
+					break;
+				case SNAPSHOT:
+					Snapshot snapshot = bank.snapshot();
+					try {
+						for (int k = 0; k < SNAPSHOT_READS; ++k) {
+							snapshot.getAmount(accounts.next());
+						}
+					} finally {
+						snapshot.close();
+					}
+				}
+				return true;
+			} catch (IllegalStateException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The bank under load.
+	 */
+	private final Bank bank;
+
+	/**
+	 * The number of accounts.
+	 */
+	private final int n;
+
+	/**
+	 * The number of worker threads.
+	 */
+	private final int threads;
+
+	/**
+	 * Percentages of the kinds of operations, in the order of
+	 * {@link #KINDS}, summing to 100.
+	 */
+	private final int[] mix;
+
+	/**
+	 * Distribution of the accounts, see {@link Accounts}.
+	 */
+	private final String distribution;
+
+	/**
+	 * The maximum amount of a mutating operation.
+	 */
+	private final long maxAmount;
+
+	/**
+	 * Random seed of the workers.
+	 */
+	private final long seed;
+
+	/**
+	 * The total amount in the bank before the run.
+	 */
+	private final long initialTotal;
+
+	/**
+	 * Current phase of the run.
+	 */
+	private volatile int phase;
+
+	/**
+	 * Creates a driver of the bank.
+	 * 
+	 * @param bank
+	 *            the bank under load
+	 * @param threads
+	 *            the number of worker threads
+	 * @param mix
+	 *            percentages of deposits, withdrawals, transfers and snapshot
+	 *            reads
+	 * @param distribution
+	 *            distribution of the accounts: "uniform", "zipf" or "hotspot"
+	 * @param maxAmount
+	 *            the maximum amount of a mutating operation
+	 * @param seed
+	 *            random seed
+	 * @throws IllegalArgumentException
+	 *             when a parameter is invalid.
+	 */
+	public LoadDriver(Bank bank, int threads, int[] mix, String distribution,
+			long maxAmount, long seed) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: "
+					+ threads);
+		}
+		if (mix.length != KINDS.length) {
+			throw new IllegalArgumentException("Invalid mix length: "
+					+ mix.length);
+		}
+		int sum = 0;
+		for (int percentage : mix) {
+			if (percentage < 0) {
+				throw new IllegalArgumentException("Invalid percentage: "
+						+ percentage);
+			}
+			sum += percentage;
+		}
+		if (sum != 100) {
+			throw new IllegalArgumentException("Mix sums to " + sum
+					+ " instead of 100");
+		}
+		if (maxAmount <= 0 || maxAmount > Bank.MAX_AMOUNT) {
+			throw new IllegalArgumentException("Invalid amount: " + maxAmount);
+		}
+		this.bank = bank;
+		n = bank.getAccountCount();
+		this.threads = threads;
+		this.mix = mix.clone();
+		this.distribution = distribution;
+		this.maxAmount = maxAmount;
+		this.seed = seed;
+		// fails fast on an unknown distribution
+		new Accounts(n, distribution, seed);
+		initialTotal = bank.getTotalAmount();
+	}
+
+	/**
+	 * Runs the load, prints the report and checks the final state of the
+	 * bank.
+	 * 
+	 * @param warmup
+	 *            duration of the warm-up in milliseconds
+	 * @param duration
+	 *            duration of the measurement in milliseconds
+	 * @param out
+	 *            stream of the report
+	 * @return true if all the invariants hold
+	 * @throws InterruptedException
+	 *             when the calling thread is interrupted.
+	 */
+	public boolean run(long warmup, long duration, PrintStream out)
+			throws InterruptedException {
+		Worker[] workers = new Worker[threads];
+		for (int k = 0; k < threads; ++k) {
+			workers[k] = new Worker(k);
+		}
+		phase = WARMUP;
+		for (Worker worker : workers) {
+			worker.start();
+		}
+		Thread.sleep(warmup);
+		long start = System.nanoTime();
+		phase = MEASUREMENT;
+		Thread.sleep(duration);
+		phase = STOP;
+		long elapsed = System.nanoTime() - start;
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		report(workers, elapsed, out);
+		return check(workers, out);
+	}
+
+	/**
+	 * Prints throughput, latencies and rejection rates.
+	 * 
+	 * @param workers
+	 *            the stopped workers
+	 * @param elapsed
+	 *            duration of the measurement in nanoseconds
+	 * @param out
+	 *            stream of the report
+	 */
+	private void report(Worker[] workers, long elapsed, PrintStream out) {
+		out.println("mode " + bank.getConcurrencyMode() + ", " + n
+				+ " accounts, " + threads + " threads, " + distribution
+				+ " distribution, " + elapsed / 1000000 + " ms");
+		StringBuilder header = new StringBuilder(String.format(
+				"%-10s %12s %10s", "operation", "ops/s", "rejected"));
+		for (double p : PERCENTILES) {
+			header.append(String.format(" %9s", "p" + p));
+		}
+		header.append(String.format(" %9s", "max"));
+		out.println(header + "  (latency in us)");
+		long count = 0;
+		for (int k = 0; k < KINDS.length; ++k) {
+			Histogram latency = new Histogram();
+			long rejected = 0;
+			for (Worker worker : workers) {
+				latency.add(worker.latencies[k]);
+				rejected += worker.rejected[k];
+			}
+			long ops = latency.getCount();
+			count += ops;
+			StringBuilder line = new StringBuilder(String.format(
+					"%-10s %12.0f %9.2f%%", KINDS[k], ops * 1e9 / elapsed,
+					ops == 0 ? 0.0 : 100.0 * rejected / ops));
+			for (double p : PERCENTILES) {
+				line.append(String.format(" %9.1f",
+						latency.getValueAtPercentile(p) / 1e3));
+			}
+			line.append(String.format(" %9.1f", latency.getMax() / 1e3));
+			out.println(line);
+		}
+		out.println(String.format("%-10s %12.0f", "total", count * 1e9
+				/ elapsed));
+	}
+
+	/**
+	 * Checks that no worker failed, that the balances are in range, that they
+	 * add up to the total amount both directly and in a snapshot, and that the
+	 * total changed by exactly the money deposited and withdrawn by the
+	 * workers.
+	 * 
+	 * @param workers
+	 *            the stopped workers
+	 * @param out
+	 *            stream of the report
+	 * @return true if all the invariants hold
+	 */
+	private boolean check(Worker[] workers, PrintStream out) {
+		long total = bank.getTotalAmount();
+		long expected = initialTotal;
+		for (Worker worker : workers) {
+			expected += worker.balance;
+		}
+		long sum = 0;
+		boolean inRange = true;
+		for (int i = 0; i < n; ++i) {
+			long amount = bank.getAmount(i);
+			inRange &= amount >= 0 && amount <= Bank.MAX_AMOUNT;
+			sum += amount;
+		}
+		long snapshotSum;
+		Snapshot snapshot = bank.snapshot();
+		try {
+			snapshotSum = snapshot.sum(0, n);
+		} finally {
+			snapshot.close();
+		}
+		boolean ok = true;
+		for (Worker worker : workers) {
+			if (worker.failure != null) {
+				worker.failure.printStackTrace(out);
+				ok = check(out, worker.getName() + " failed", false);
+			}
+		}
+		ok &= check(out, "balances in range", inRange);
+		ok &= check(out, "sum of balances " + sum + " equals total " + total,
+				sum == total);
+		ok &= check(out, "snapshot sum " + snapshotSum + " equals total "
+				+ total, snapshotSum == total);
+		ok &= check(out, "total equals initial total plus net deposits "
+				+ expected, total == expected);
+		return ok;
+	}
+
+	/**
+	 * Prints the result of a check.
+	 * 
+	 * @param out
+	 *            stream of the report
+	 * @param invariant
+	 *            description of the invariant
+	 * @param holds
+	 *            whether the invariant holds
+	 * @return holds
+	 */
+	private static boolean check(PrintStream out, String invariant,
+			boolean holds) {
+		out.println((holds ? "OK      " : "FAILED  ") + invariant);
+		return holds;
+	}
+
+	/**
+	 * Parses a mix of percentages separated by commas.
+	 * 
+	 * @param s
+	 *            the mix, e.g. "30,20,45,5"
+	 * @return the percentages
+	 * @throws NumberFormatException
+	 *             when a percentage is not a number.
+	 */
+	private static int[] parseMix(String s) {
+		String[] parts = s.split(",");
+		int[] mix = new int[parts.length];
+		for (int k = 0; k < parts.length; ++k) {
+			mix[k] = Integer.parseInt(parts[k].trim());
+		}
+		return mix;
+	}
+
+	/**
+	 * Prints the usage.
+	 */
+	private static void usage() {
+		System.out.println("Usage: LoadDriver [--option value ...]");
+		System.out.println("  --mode         SYNCHRONIZED, STRIPED, SPIN_CLAIM "
+				+ "or SEQUENCER (STRIPED)");
+		System.out.println("  --accounts     the number of accounts (65536)");
+		System.out.println("  --initial      initial amount in every "
+				+ "account (1000000)");
+		System.out.println("  --threads      the number of threads "
+				+ "(processors)");
+		System.out.println("  --mix          percentages of deposits, "
+				+ "withdrawals, transfers and");
+		System.out.println("                 snapshot reads (30,20,45,5)");
+		System.out.println("  --distribution uniform, zipf or hotspot "
+				+ "(uniform)");
+		System.out.println("  --amount       the maximum amount of an "
+				+ "operation (1000)");
+		System.out.println("  --warmup       warm-up in seconds (2)");
+		System.out.println("  --duration     measurement in seconds (10)");
+		System.out.println("  --seed         random seed (1)");
+	}
+
+	/**
+	 * Runs the load as given by the options; exits with status 1 when an
+	 * invariant does not hold.
+	 * 
+	 * @param args
+	 *            pairs of option names and values
+	 * @throws InterruptedException
+	 *             when the main thread is interrupted.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		ConcurrencyMode mode = ConcurrencyMode.STRIPED;
+		int n = 65536;
+		long initial = 1000000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int[] mix = { 30, 20, 45, 5 };
+		String distribution = "uniform";
+		long maxAmount = 1000;
+		double warmup = 2;
+		double duration = 10;
+		long seed = 1;
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		try {
+			for (int k = 0; k < args.length; k += 2) {
+				String value = args[k + 1];
+				switch (args[k]) {
+				case "--mode":
+					mode = ConcurrencyMode.valueOf(value.toUpperCase());
+					break;
+				case "--accounts":
+					n = Integer.parseInt(value);
+					break;
+				case "--initial":
+					initial = Long.parseLong(value);
+					break;
+				case "--threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "--mix":
+					mix = parseMix(value);
+					break;
+				case "--distribution":
+					distribution = value;
+					break;
+				case "--amount":
+					maxAmount = Long.parseLong(value);
+					break;
+				case "--warmup":
+					warmup = Double.parseDouble(value);
+					break;
+				case "--duration":
+					duration = Double.parseDouble(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					usage();
+					return;
+				}
+			}
+			Bank bank = new Bank(n, mode);
+			if (initial > 0) {
+				for (int i = 0; i < n; ++i) {
+					bank.deposit(i, initial);
+				}
+			}
+			LoadDriver driver = new LoadDriver(bank, threads, mix,
+					distribution, maxAmount, seed);
+			if (!driver.run((long) (warmup * 1000), (long) (duration * 1000),
+					System.out)) {
+				System.exit(1);
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			usage();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package ru.ifmo.pp.bank.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import ru.ifmo.pp.bank.Bank;
+import ru.ifmo.pp.bank.ConcurrencyMode;
+import ru.ifmo.pp.bank.Snapshot;
+
+/**
+ * Throughput of taking snapshots and of {@link Snapshot#getAmount(int)},
+ * alone and next to concurrent deposits.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+	/**
+	 * Bank shared by all the benchmark threads, with a snapshot taken anew
+	 * for every iteration.
+	 */
+	@State(Scope.Benchmark)
+	public static class BankState {
+		/**
+		 * The number of accounts.
+		 */
+		@Param({ "1024", "65536", "1048576" })
+		public int n;
+
+		/**
+		 * Concurrency control of the bank.
+		 */
+		@Param({ "STRIPED", "SPIN_CLAIM" })
+		public ConcurrencyMode mode;
+
+		/**
+		 * Distribution of the accounts: "uniform" or "zipf".
+		 */
+		@Param({ "uniform", "zipf" })
+		public String distribution;
+
+		/**
+		 * Deposits made before each snapshot, as a share of n: the number of
+		 * events a snapshot read has to look through.
+		 */
+		@Param({ "0", "0.5" })
+		public double events;
+
+		/**
+		 * The bank.
+		 */
+		public Bank bank;
+
+		/**
+		 * Snapshot read by the benchmarks.
+		 */
+		public Snapshot snapshot;
+
+		/**
+		 * Creates the bank.
+		 */
+		@Setup(Level.Trial)
+		public void setUp() {
+			bank = new Bank(n, mode);
+		}
+
+		/**
+		 * Makes the deposits and takes the snapshot.
+		 */
+		@Setup(Level.Iteration)
+		public void takeSnapshot() {
+			Accounts accounts = new Accounts(n, distribution, -1);
+			for (long k = 0; k < (long) (events * n); ++k) {
+				bank.deposit(accounts.next(), 1);
+			}
+			snapshot = bank.snapshot();
+		}
+
+		/**
+		 * Closes the snapshot.
+		 */
+		@TearDown(Level.Iteration)
+		public void closeSnapshot() {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Accounts drawn by one benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		/**
+		 * Account sequence of the thread.
+		 */
+		public Accounts accounts;
+
+		/**
+		 * Creates the account sequence, different for every thread.
+		 * 
+		 * @param bank
+		 *            shared bank state
+		 * @param thread
+		 *            thread parameters
+		 */
+		@Setup
+		public void setUp(BankState bank, ThreadParams thread) {
+			accounts = new Accounts(bank.n, bank.distribution,
+					thread.getThreadIndex());
+		}
+	}
+
+	@Benchmark
+	public long getAmount(BankState state, ThreadState thread) {
+		return state.snapshot.getAmount(thread.accounts.next());
+	}
+
+	@Benchmark
+	public long snapshot(BankState state) {
+		Snapshot s = state.bank.snapshot();
+		s.close();
+		return s.getVersion();
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(3)
+	public long readWhileWriting(BankState state, ThreadState thread) {
+		return state.snapshot.getAmount(thread.accounts.next());
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(1)
+	public long writeWhileReading(BankState state, ThreadState thread) {
+		return state.bank.deposit(thread.accounts.next(), 1);
+	}
+}
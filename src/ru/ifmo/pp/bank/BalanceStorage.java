@@ -0,0 +1,57 @@
+package ru.ifmo.pp.bank;
+
+/**
+ * Storage of the current amounts of all the accounts of a {@link Bank}. All
+ * the accesses have volatile semantics.
+ */
+public interface BalanceStorage {
+	/**
+	 * Returns the number of accounts.
+	 * 
+	 * @return the number of accounts
+	 */
+	int size();
+
+	/**
+	 * Makes room for the specified number of accounts, adding empty ones,
+	 * without moving the stored values. Called by one thread at a time.
+	 * 
+	 * @param size
+	 *            the number of accounts
+	 * @return false if the storage can't hold that many accounts
+	 */
+	boolean grow(int size);
+
+	/**
+	 * Returns the stored value of the account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @return stored value
+	 */
+	long get(int i);
+
+	/**
+	 * Stores the value of the account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param value
+	 *            new value
+	 */
+	void set(int i, long value);
+
+	/**
+	 * Atomically stores the value of the account if the current value is the
+	 * expected one.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param expect
+	 *            expected value
+	 * @param update
+	 *            new value
+	 * @return true if stored
+	 */
+	boolean compareAndSet(int i, long expect, long update);
+}
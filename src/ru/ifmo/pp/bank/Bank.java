@@ -1,238 +1,2158 @@
-package ru.ifmo.pp.bank;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicLongArray;
-
-/**
- * Bank data structure.
- */
-public class Bank {
-	/**
-	 * Maximum money amount per account.
-	 */
-	public static final long MAX_AMOUNT = 1000000000000000L;
-
-	/**
-	 * Number of accounts.
-	 */
-	private final int n;
-
-	/**
-	 * Current bank version.
-	 */
-	private volatile long actualVersion;
-
-	/**
-	 * Current money amounts for all accounts.
-	 */
-	private volatile AtomicLongArray money;
-
-	/**
-	 * Total money amount.
-	 */
-	private volatile long totalAmount;
-
-	/**
-	 * Local snapshot.
-	 */
-	private volatile Snapshot localSnapshot;
-
-	/**
-	 * Creates new bank instance.
-	 * 
-	 * @param n
-	 *            the number of accounts (numbered from 0 to n-1).
-	 */
-	public Bank(int n) {
-		if (n < 0) {
-			n = 0;
-		}
-		this.n = n;
-		actualVersion = 0;
-		money = new AtomicLongArray(n);
-		totalAmount = 0;
-		localSnapshot = new Snapshot(actualVersion, new AtomicLongArray(n),
-				createList(), true);
-	}
-
-	/**
-	 * Creates the new list containing n empty sublists.
-	 * 
-	 * @return the new list
-	 */
-	private List<List<UpdateEvent>> createList() {
-		List<List<UpdateEvent>> list = new ArrayList<List<UpdateEvent>>(n);
-		for (int i = 0; i < n; ++i) {
-			list.add(new ArrayList<UpdateEvent>());
-		}
-		return list;
-	}
-
-	/**
-	 * Returns current amount in account.
-	 * 
-	 * @param i
-	 *            account index.
-	 * @return amount in account.
-	 * @throws IllegalArgumentException
-	 *             when i is invalid index.
-	 */
-	public long getAmount(int i) {
-		if (i < 0 || i >= n) {
-			throw new IllegalArgumentException("Invalid index: " + i);
-		}
-		return money.get(i);
-	}
-
-	/**
-	 * Returns total amount deposited in bank.
-	 */
-	public long getTotalAmount() {
-		return totalAmount;
-	}
-
-	/**
-	 * Returns snapshot of all accounts in the bank.
-	 * 
-	 * @return snapshot of the current bank state
-	 */
-	public Snapshot snapshot() {
-		return new Snapshot(localSnapshot, actualVersion, false);
-	}
-
-	/**
-	 * Checks and, if necessary, updates the current snapshot.
-	 */
-	private void checkForUpdate() {
-		if (actualVersion % n == 0) {
-			AtomicLongArray newArray = new AtomicLongArray(n);
-			for (int i = 0; i < n; ++i) {
-				newArray.set(i, money.get(i));
-			}
-			localSnapshot = new Snapshot(actualVersion, newArray, createList(),
-					true);
-		}
-	}
-
-	/**
-	 * Deposits the specified amount of money to account.
-	 * 
-	 * @param i
-	 *            account index.
-	 * @param amount
-	 *            amount to deposit.
-	 * @return resulting amount on account.
-	 * @throws IllegalArgumentException
-	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or i is
-	 *             invalid index.
-	 * @throws IllegalStateException
-	 *             when deposit will overflow account above {@link #MAX_AMOUNT}.
-	 */
-	public synchronized long deposit(int i, long amount) {
-		if (i < 0 || i >= n) {
-			throw new IllegalArgumentException("Invalid index: " + i);
-		}
-		if (amount <= 0 || amount > MAX_AMOUNT) {
-			throw new IllegalArgumentException("Invalid amount: " + amount);
-		}
-		long newValue = money.get(i) + amount;
-		if (newValue > MAX_AMOUNT) {
-			throw new IllegalStateException(
-					"Illegal operation: money amount can't overflow "
-							+ MAX_AMOUNT);
-		}
-		money.set(i, newValue);
-		totalAmount += amount;
-		long v = actualVersion + 1;
-		localSnapshot.addEvent(i, new UpdateEvent(v, amount));
-		actualVersion = v;
-		checkForUpdate();
-		return newValue;
-	}
-
-	/**
-	 * Withdraws specified amount from account.
-	 * 
-	 * @param i
-	 *            account index
-	 * @param amount
-	 *            amount to withdraw
-	 * @return resulting amount on account.
-	 * @throws IllegalArgumentException
-	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or i is
-	 *             invalid index.
-	 * @throws IllegalStateException
-	 *             when account does not have enough to withdraw.
-	 */
-	public synchronized long withdraw(int i, long amount) {
-		if (i < 0 || i >= n) {
-			throw new IllegalArgumentException("Invalid index: " + i);
-		}
-		if (amount <= 0 || amount > MAX_AMOUNT) {
-			throw new IllegalArgumentException("Invalid amount: " + amount);
-		}
-		long newValue = money.get(i) - amount;
-		if (newValue < 0) {
-			throw new IllegalStateException(
-					"Illegal operation: not enough money to withdraw " + amount);
-		}
-		money.set(i, newValue);
-		totalAmount -= amount;
-		long v = actualVersion + 1;
-		localSnapshot.addEvent(i, new UpdateEvent(v, -amount));
-		actualVersion = v;
-		checkForUpdate();
-		return newValue;
-	}
-
-	/**
-	 * Transfers specified amount from one account to the other account.
-	 * 
-	 * @param fromIndex
-	 *            account index to withdraw from.
-	 * @param toIndex
-	 *            account index to deposit to.
-	 * @param amount
-	 *            amount to transfer.
-	 * @throws IllegalArgumentException
-	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or account
-	 *             indices are invalid.
-	 * @throws IllegalStateException
-	 *             when there is not enough funds in source account or too much
-	 *             in target one.
-	 */
-	public synchronized void transfer(int fromIndex, int toIndex, long amount) {
-		if (fromIndex < 0 || fromIndex >= n) {
-			throw new IllegalArgumentException("Invalid index: " + fromIndex);
-		}
-		if (toIndex < 0 || toIndex >= n) {
-			throw new IllegalArgumentException("Invalid index: " + toIndex);
-		}
-		if (amount <= 0 || amount > MAX_AMOUNT) {
-			throw new IllegalArgumentException("Invalid amount: " + amount);
-		}
-		if (fromIndex == toIndex) {
-			return;
-		}
-		long newFromValue = money.get(fromIndex) - amount;
-		if (newFromValue < 0) {
-			throw new IllegalStateException(
-					"Illegal operation: not enough money to withdraw " + amount
-							+ " from account " + fromIndex);
-		}
-		long newToValue = money.get(toIndex) + amount;
-		if (newToValue > MAX_AMOUNT) {
-			throw new IllegalStateException(
-					"Illegal operation: money amount can't overflow "
-							+ MAX_AMOUNT);
-		}
-		money.set(fromIndex, newFromValue);
-		money.set(toIndex, newToValue);
-		long v = actualVersion + 1;
-		localSnapshot.addEvent(fromIndex, new UpdateEvent(v, -amount));
-		localSnapshot.addEvent(toIndex, new UpdateEvent(v, amount));
-		actualVersion = v;
-		checkForUpdate();
-	}
-}
+package ru.ifmo.pp.bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bank data structure.
+ */
+public class Bank implements AutoCloseable {
+	/**
+	 * Maximum money amount per account.
+	 */
+	public static final long MAX_AMOUNT = 1000000000000000L;
+
+	/**
+	 * Balance word bit marking an account claimed by an operation in
+	 * {@link ConcurrencyMode#SPIN_CLAIM} mode.
+	 */
+	private static final long CLAIMED = 1L << 62;
+
+	/**
+	 * Maximum number of event logs kept for reuse.
+	 */
+	private static final int FREE_LOGS = 4;
+
+	/**
+	 * The number of slots of the ring buffer in
+	 * {@link ConcurrencyMode#SEQUENCER} mode.
+	 */
+	private static final int RING_SIZE = 1024;
+
+	/**
+	 * The number of reads of the range index overlapped by a publication
+	 * after which {@link #getRangeAmount(int, int)} sums a snapshot instead.
+	 */
+	private static final int RANGE_RETRIES = 16;
+
+	/**
+	 * Change reused by the deposits, withdrawals and transfers of a thread.
+	 */
+	private static final ThreadLocal<Change> LOCAL_CHANGE =
+			new ThreadLocal<Change>() {
+				@Override
+				protected Change initialValue() {
+					return new Change(2);
+				}
+			};
+
+	/**
+	 * Number of accounts, growing as {@link #openAccount()} publishes new
+	 * ones.
+	 */
+	private volatile int n;
+
+	/**
+	 * Concurrency control of the mutating operations.
+	 */
+	private final ConcurrencyMode mode;
+
+	/**
+	 * Account locks: account i is guarded by locks[i % locks.length].
+	 */
+	private final ReentrantLock[] locks;
+
+	/**
+	 * The last version given out to a pushed change.
+	 */
+	private final AtomicLong lastVersion;
+
+	/**
+	 * Current bank version.
+	 */
+	private volatile long actualVersion;
+
+	/**
+	 * Changes pushed and not yet published, newest first.
+	 */
+	private final AtomicReference<Change> pending;
+
+	/**
+	 * Held while the pushed changes are published.
+	 */
+	private final ReentrantLock publishLock;
+
+	/**
+	 * Current money amounts for all accounts.
+	 */
+	private final BalanceStorage money;
+
+	/**
+	 * Total money amount.
+	 */
+	private volatile long totalAmount;
+
+	/**
+	 * Local snapshot.
+	 */
+	private volatile Snapshot localSnapshot;
+
+	/**
+	 * Checkpoints in version order, possibly including released ones.
+	 */
+	private final Queue<Snapshot> checkpoints;
+
+	/**
+	 * The number of past versions {@link #snapshotAt(long)} must be able to
+	 * reconstruct.
+	 */
+	private volatile long retention;
+
+	/**
+	 * Checkpoints held for {@link #snapshotAt(long)}, in version order.
+	 * Removed under {@link #retainedLock}.
+	 */
+	private final Queue<Snapshot> retained;
+
+	/**
+	 * Held while the retained checkpoints are released.
+	 */
+	private final ReentrantLock retainedLock;
+
+	/**
+	 * Subscriptions to the changes, replaced as a whole on every change.
+	 */
+	private volatile Subscription[] subscriptions;
+
+	/**
+	 * Held while the bank is reconfigured: while the subscriptions, the
+	 * range index or the statistics are added or an account is opened.
+	 */
+	private final ReentrantLock configLock;
+
+	/**
+	 * Index of range totals, or null while disabled.
+	 */
+	private volatile RangeIndex rangeIndex;
+
+	/**
+	 * Log the changes are made durable in, or null.
+	 */
+	private final WriteAheadLog wal;
+
+	/**
+	 * File checkpoints are written to, or null.
+	 */
+	private final File checkpointFile;
+
+	/**
+	 * Held while a checkpoint file is written.
+	 */
+	private final ReentrantLock checkpointFileLock;
+
+	/**
+	 * Version of the last checkpoint written to the file. Guarded by
+	 * {@link #checkpointFileLock}.
+	 */
+	private long checkpointFileVersion;
+
+	/**
+	 * Statistics of the operations, or null while disabled.
+	 */
+	private volatile BankStatistics statistics;
+
+	/**
+	 * Ring buffer and writer thread in {@link ConcurrencyMode#SEQUENCER} mode,
+	 * or null.
+	 */
+	private final Sequencer sequencer;
+
+	/**
+	 * Creates new bank instance.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1).
+	 */
+	public Bank(int n) {
+		this(n, ConcurrencyMode.SYNCHRONIZED);
+	}
+
+	/**
+	 * Creates new bank instance with the specified concurrency control.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1).
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @throws IllegalArgumentException
+	 *             when mode is null.
+	 */
+	public Bank(int n, ConcurrencyMode mode) {
+		this(n, mode, null);
+	}
+
+	/**
+	 * Creates new bank instance that makes every change durable in the
+	 * specified write-ahead log before returning from the operation.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1).
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @param wal
+	 *            write-ahead log, or null to keep the changes in memory only.
+	 * @throws IllegalArgumentException
+	 *             when mode is null.
+	 */
+	public Bank(int n, ConcurrencyMode mode, WriteAheadLog wal) {
+		this(n, mode, wal, null);
+	}
+
+	/**
+	 * Creates new bank instance that makes every change durable in the
+	 * specified write-ahead log and writes every checkpoint to the specified
+	 * file, so that {@link #restore(int, ConcurrencyMode, WriteAheadLog, File)}
+	 * only needs to replay the log written after the last checkpoint.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1).
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @param wal
+	 *            write-ahead log, or null to keep the changes in memory only.
+	 * @param checkpointFile
+	 *            checkpoint file, or null to write no checkpoints.
+	 * @throws IllegalArgumentException
+	 *             when mode is null.
+	 */
+	public Bank(int n, ConcurrencyMode mode, WriteAheadLog wal,
+			File checkpointFile) {
+		this(new HeapBalanceStorage(Math.max(n, 0)), mode, wal,
+				checkpointFile);
+	}
+
+	/**
+	 * Creates new bank instance keeping the current amounts in the specified
+	 * storage, for example off the heap. The amounts already in the storage
+	 * become the initial amounts of the accounts.
+	 * 
+	 * @param money
+	 *            storage of the amounts; its size is the number of accounts.
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @param wal
+	 *            write-ahead log, or null to keep the changes in memory only.
+	 * @param checkpointFile
+	 *            checkpoint file, or null to write no checkpoints.
+	 * @throws IllegalArgumentException
+	 *             when mode is null or some stored amount is invalid.
+	 */
+	public Bank(BalanceStorage money, ConcurrencyMode mode, WriteAheadLog wal,
+			File checkpointFile) {
+		if (mode == null) {
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		}
+		this.n = money.size();
+		this.mode = mode;
+		int stripes = 1;
+		if (mode == ConcurrencyMode.STRIPED) {
+			stripes = 16 * Runtime.getRuntime().availableProcessors();
+		}
+		locks = new ReentrantLock[stripes];
+		for (int i = 0; i < stripes; ++i) {
+			locks[i] = new ReentrantLock();
+		}
+		lastVersion = new AtomicLong();
+		actualVersion = 0;
+		pending = new AtomicReference<Change>();
+		publishLock = new ReentrantLock();
+		this.money = money;
+		long[][] pages = Snapshot.emptyPages(n);
+		long total = 0;
+		for (int i = 0; i < n; ++i) {
+			long value = money.get(i) & ~CLAIMED;
+			if (value == 0) {
+				continue;
+			}
+			if (value < 0 || value > MAX_AMOUNT) {
+				throw new IllegalArgumentException("Invalid amount in account "
+						+ i + ": " + value);
+			}
+			money.set(i, value);
+			store(pages, i, value);
+			total += value;
+		}
+		totalAmount = total;
+		localSnapshot = new Snapshot(n, 0, pages,
+				new ArrayBlockingQueue<EventLog>(FREE_LOGS));
+		checkpoints = new ConcurrentLinkedQueue<Snapshot>();
+		checkpoints.add(localSnapshot);
+		retained = new ConcurrentLinkedQueue<Snapshot>();
+		retainedLock = new ReentrantLock();
+		subscriptions = new Subscription[0];
+		configLock = new ReentrantLock();
+		this.wal = wal;
+		this.checkpointFile = checkpointFile;
+		checkpointFileLock = new ReentrantLock();
+		sequencer = mode == ConcurrencyMode.SEQUENCER ? new Sequencer(this,
+				RING_SIZE) : null;
+	}
+
+	/**
+	 * Stores the amount of the account into pages made by
+	 * {@link Snapshot#emptyPages(int)}, replacing a shared zero page with a
+	 * new one.
+	 * 
+	 * @param pages
+	 *            checkpoint pages
+	 * @param i
+	 *            account index
+	 * @param value
+	 *            amount in account
+	 */
+	private static void store(long[][] pages, int i, long value) {
+		int page = i >>> Snapshot.PAGE_SHIFT;
+		if (pages[page] == Snapshot.ZERO_PAGE) {
+			pages[page] = new long[Snapshot.PAGE_SIZE];
+		}
+		pages[page][i & (Snapshot.PAGE_SIZE - 1)] = value;
+	}
+
+	/**
+	 * Restores a bank from the last checkpoint file and the write-ahead log.
+	 * The checkpoint is memory-mapped and only the log records newer than it
+	 * are replayed. The restored bank continues to write the same log and
+	 * checkpoint file.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1), not
+	 *            counting the opened ones the files restore.
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @param wal
+	 *            write-ahead log to replay and continue, or null.
+	 * @param checkpointFile
+	 *            checkpoint file, or null; a missing file means no checkpoint
+	 *            was written yet.
+	 * @return restored bank
+	 * @throws IOException
+	 *             when the files can't be read or are corrupted.
+	 * @throws IllegalArgumentException
+	 *             when mode is null, the checkpoint has fewer accounts or
+	 *             the storage can't hold the restored ones.
+	 */
+	public static Bank restore(int n, ConcurrencyMode mode,
+			WriteAheadLog wal, File checkpointFile) throws IOException {
+		return restore(new HeapBalanceStorage(Math.max(n, 0)), mode, wal,
+				checkpointFile);
+	}
+
+	/**
+	 * Restores a bank from the last checkpoint file and the write-ahead log
+	 * into the specified storage. The amounts in the storage are replaced
+	 * with the restored ones.
+	 * 
+	 * @param money
+	 *            storage of the amounts; its size is the number of accounts,
+	 *            not counting the opened ones the files restore.
+	 * @param mode
+	 *            concurrency control of the mutating operations.
+	 * @param wal
+	 *            write-ahead log to replay and continue, or null.
+	 * @param checkpointFile
+	 *            checkpoint file, or null; a missing file means no checkpoint
+	 *            was written yet.
+	 * @return restored bank
+	 * @throws IOException
+	 *             when the files can't be read or are corrupted.
+	 * @throws IllegalArgumentException
+	 *             when mode is null, the checkpoint has fewer accounts or
+	 *             the storage can't hold the restored ones.
+	 */
+	public static Bank restore(BalanceStorage money, ConcurrencyMode mode,
+			WriteAheadLog wal, File checkpointFile) throws IOException {
+		for (int i = 0; i < money.size(); ++i) {
+			money.set(i, 0);
+		}
+		Bank bank = new Bank(money, mode, wal, checkpointFile);
+		bank.load();
+		return bank;
+	}
+
+	/**
+	 * Loads the bank state from the checkpoint file and the log. Called by
+	 * {@link #restore(int, ConcurrencyMode, WriteAheadLog, File)} before the
+	 * bank is used.
+	 * 
+	 * @throws IOException
+	 *             when the files can't be read or are corrupted.
+	 */
+	private void load() throws IOException {
+		int count = n;
+		if (checkpointFile != null && checkpointFile.exists()) {
+			count = Math.max(count, CheckpointFile.accounts(checkpointFile));
+		}
+		long[][] pages = Snapshot.emptyPages(count);
+		long version = 0;
+		if (checkpointFile != null && checkpointFile.exists()) {
+			version = CheckpointFile.read(checkpointFile, count, pages);
+		}
+		checkpointFileVersion = version;
+		if (wal != null) {
+			ByteBuffer records = wal.tail(version);
+			while (records.remaining() >= WriteAheadLog.RECORD_SIZE) {
+				long v = records.getLong();
+				int i = records.getInt();
+				long difference = records.getLong();
+				if (i == count && difference == 0) {
+					if (i >>> Snapshot.PAGE_SHIFT == pages.length) {
+						pages = Arrays.copyOf(pages, pages.length + 1);
+						pages[pages.length - 1] = Snapshot.ZERO_PAGE;
+					}
+					++count;
+				}
+				if (i < 0 || i >= count) {
+					throw new IOException("Corrupted write-ahead log: account "
+							+ i + " at version " + v);
+				}
+				store(pages, i, pages[i >>> Snapshot.PAGE_SHIFT][i
+						& (Snapshot.PAGE_SIZE - 1)]
+						+ difference);
+				version = v;
+			}
+		}
+		if (!money.grow(count)) {
+			throw new IllegalArgumentException("Invalid number of accounts: "
+					+ n + ", restored " + count);
+		}
+		long total = 0;
+		for (int i = 0; i < count; ++i) {
+			long value = pages[i >>> Snapshot.PAGE_SHIFT][i
+					& (Snapshot.PAGE_SIZE - 1)];
+			money.set(i, value);
+			total += value;
+		}
+		n = count;
+		totalAmount = total;
+		lastVersion.set(version);
+		actualVersion = version;
+		localSnapshot = new Snapshot(count, version, pages,
+				localSnapshot.freeLogs());
+		checkpoints.clear();
+		checkpoints.add(localSnapshot);
+	}
+
+	/**
+	 * Returns current amount in account.
+	 * 
+	 * @param i
+	 *            account index.
+	 * @return amount in account.
+	 * @throws IllegalArgumentException
+	 *             when i is invalid index.
+	 */
+	public long getAmount(int i) {
+		if (i < 0 || i >= n) {
+			throw new IllegalArgumentException("Invalid index: " + i);
+		}
+		return balance(i);
+	}
+
+	/**
+	 * Returns current amount in account, ignoring the claim bit.
+	 * 
+	 * @param i
+	 *            account index
+	 * @return amount in account
+	 */
+	private long balance(int i) {
+		return money.get(i) & ~CLAIMED;
+	}
+
+	/**
+	 * Returns total amount deposited in bank.
+	 */
+	public long getTotalAmount() {
+		return totalAmount;
+	}
+
+	/**
+	 * Returns total amount in the range of accounts, consistent with a single
+	 * version of the bank. Takes O(log n) once {@link #enableRangeIndex()}
+	 * has been called, and reads a snapshot of the range before. A read of
+	 * the index overlapped by a publication is retried a bounded number of
+	 * times; under a steady stream of publications the snapshot is read
+	 * instead, so the call always finishes.
+	 * 
+	 * @param from
+	 *            first account index, inclusive.
+	 * @param to
+	 *            last account index, exclusive.
+	 * @return total amount in the accounts.
+	 * @throws IllegalArgumentException
+	 *             when the range is invalid.
+	 */
+	public long getRangeAmount(int from, int to) {
+		if (from < 0 || from > to || to > n) {
+			throw new IllegalArgumentException("Invalid range: " + from
+					+ ".." + to);
+		}
+		for (int k = 0; k < RANGE_RETRIES; ++k) {
+			long v = actualVersion;
+			RangeIndex index = rangeIndex;
+			if (index == null) {
+				break;
+			}
+			long result = index.sum(from, to, v);
+			if (result >= 0) {
+				return result;
+			}
+			Thread.yield();
+		}
+		Snapshot s = snapshot();
+		try {
+			return s.sum(from, to);
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Starts maintaining the index of range totals used by
+	 * {@link #getRangeAmount(int, int)}. The index is built from a snapshot
+	 * while the mutating operations wait, which takes time linear in the
+	 * number of accounts once; afterwards every change costs O(log n) more.
+	 */
+	public void enableRangeIndex() {
+		configLock.lock();
+		try {
+			if (rangeIndex != null) {
+				return;
+			}
+			Change change = localChange();
+			publishLock.lock();
+			try {
+				publishPending();
+				Snapshot s = snapshot();
+				try {
+					rangeIndex = new RangeIndex(s.toArray(), s.getVersion());
+				} finally {
+					s.close();
+				}
+				push(change);
+				publishPending();
+			} finally {
+				publishLock.unlock();
+			}
+			complete(awaitPublication(change));
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Opens a new empty account numbered after all the existing ones. The
+	 * storage grows by whole chunks, so the amounts already stored are never
+	 * copied, and the opening is published as a version of its own, so the
+	 * snapshots of older versions don't have the account. The other
+	 * operations only wait for that version like for any other one.
+	 * 
+	 * @return index of the new account.
+	 * @throws IllegalStateException
+	 *             when the storage can't hold another account.
+	 */
+	public int openAccount() {
+		configLock.lock();
+		try {
+			int i = n;
+			if (i == Integer.MAX_VALUE || !money.grow(i + 1)) {
+				throw new IllegalStateException("Can't open account " + i);
+			}
+			Change change = localChange();
+			change.open(i);
+			push(change);
+			Snapshot checkpoint = awaitPublication(change);
+			n = i + 1;
+			complete(checkpoint);
+			return i;
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of accounts.
+	 * 
+	 * @return the number of accounts
+	 */
+	public int getAccountCount() {
+		return n;
+	}
+
+	/**
+	 * Returns the concurrency control of this bank.
+	 * 
+	 * @return concurrency mode
+	 */
+	public ConcurrencyMode getConcurrencyMode() {
+		return mode;
+	}
+
+	/**
+	 * Stops the writer thread in {@link ConcurrencyMode#SEQUENCER} mode once
+	 * it has applied the operations already submitted; the deposits,
+	 * withdrawals and transfers submitted later throw
+	 * IllegalStateException. Does nothing in the other modes, and doesn't
+	 * close the write-ahead log. Closing a closed bank has no effect.
+	 */
+	@Override
+	public void close() {
+		if (sequencer != null) {
+			sequencer.close();
+		}
+	}
+
+	/**
+	 * Starts collecting statistics of the operations. Until then the
+	 * operations don't even read the clock.
+	 * 
+	 * @return statistics of this bank
+	 */
+	public BankStatistics enableStatistics() {
+		configLock.lock();
+		try {
+			if (statistics == null) {
+				statistics = new BankStatistics();
+			}
+			return statistics;
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns statistics of the operations.
+	 * 
+	 * @return statistics of this bank, or null if not enabled
+	 */
+	public BankStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Counts a rejected operation and makes the exception to throw.
+	 * 
+	 * @param reason
+	 *            {@link Operations} error code
+	 * @param message
+	 *            exception message
+	 * @return exception to throw
+	 */
+	private IllegalArgumentException invalid(int reason, String message) {
+		BankStatistics stats = statistics;
+		if (stats != null) {
+			stats.reject(reason);
+		}
+		return new IllegalArgumentException(message);
+	}
+
+	/**
+	 * Counts a rejected operation and makes the exception to throw.
+	 * 
+	 * @param reason
+	 *            {@link Operations} error code
+	 * @param message
+	 *            exception message
+	 * @return exception to throw
+	 */
+	private IllegalStateException illegal(int reason, String message) {
+		BankStatistics stats = statistics;
+		if (stats != null) {
+			stats.reject(reason);
+		}
+		return new RejectedOperationException(reason, message);
+	}
+
+	/**
+	 * Returns snapshot of all accounts in the bank. The snapshot keeps the
+	 * bank data it needs until it is closed.
+	 * 
+	 * @return snapshot of the current bank state
+	 */
+	public Snapshot snapshot() {
+		while (true) {
+			Snapshot local = localSnapshot;
+			long version = actualVersion;
+			if (local == localSnapshot && local.getVersion() <= version
+					&& local.acquire()) {
+				return new Snapshot(local, version);
+			}
+		}
+	}
+
+	/**
+	 * Returns snapshot of all accounts in the bank as of a past version. The
+	 * snapshot is read from the checkpoint preceding the version and the
+	 * events of the checkpoint up to the version, so any version the bank
+	 * still keeps data for can be reconstructed: see
+	 * {@link #setRetention(long)} and {@link #getOldestLiveVersion()}.
+	 * 
+	 * @param version
+	 *            bank version, from 0 to the current version
+	 * @return snapshot of the bank state as of the version
+	 * @throws IllegalArgumentException
+	 *             when the version is negative or in the future.
+	 * @throws IllegalStateException
+	 *             when the data of the version is already released.
+	 */
+	public Snapshot snapshotAt(long version) {
+		if (version < 0 || version > actualVersion) {
+			throw new IllegalArgumentException("Invalid version: " + version);
+		}
+		Snapshot found = null;
+		for (Snapshot checkpoint : checkpoints) {
+			if (checkpoint.getVersion() > version) {
+				break;
+			}
+			found = checkpoint;
+		}
+		if (found == null || !found.acquire()) {
+			throw new IllegalStateException("Version " + version
+					+ " is not retained");
+		}
+		return new Snapshot(found, version);
+	}
+
+	/**
+	 * Sets the number of past versions {@link #snapshotAt(long)} must be
+	 * able to reconstruct. The bank then holds the checkpoints taken since
+	 * the call that cover at least the last specified number of versions,
+	 * together with their events. Retention costs the pages changed between
+	 * the retained checkpoints and their events, and is disabled by default.
+	 * 
+	 * @param versions
+	 *            the number of versions to retain, or 0 to retain none
+	 * @throws IllegalArgumentException
+	 *             when versions is negative.
+	 */
+	public void setRetention(long versions) {
+		if (versions < 0) {
+			throw new IllegalArgumentException("Invalid retention: "
+					+ versions);
+		}
+		retention = versions;
+	}
+
+	/**
+	 * Returns the number of past versions {@link #snapshotAt(long)} is able
+	 * to reconstruct.
+	 * 
+	 * @return the number of retained versions
+	 */
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Releases the retained checkpoints no longer needed to reconstruct the
+	 * versions within the retention from the specified one.
+	 * 
+	 * @param v
+	 *            version of the newest checkpoint
+	 */
+	private void trimRetained(long v) {
+		long oldest = v - retention;
+		retainedLock.lock();
+		try {
+			Snapshot head;
+			while ((head = retained.peek()) != null
+					&& head.getVersion() + n <= oldest) {
+				retained.poll().release();
+			}
+		} finally {
+			retainedLock.unlock();
+		}
+	}
+
+	/**
+	 * Subscribes to the changes of the bank. The subscription starts lost:
+	 * {@link Subscription#resync()} gives the snapshot its records follow.
+	 * 
+	 * @param capacity
+	 *            the number of records buffered for the subscriber, a power
+	 *            of two; a subscriber falling behind by more is lost
+	 * @return new subscription
+	 * @throws IllegalArgumentException
+	 *             when capacity is not a positive power of two.
+	 */
+	public Subscription subscribe(int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("Invalid capacity: "
+					+ capacity);
+		}
+		Subscription subscription = new Subscription(this, capacity);
+		configLock.lock();
+		try {
+			Subscription[] s = Arrays.copyOf(subscriptions,
+					subscriptions.length + 1);
+			s[s.length - 1] = subscription;
+			subscriptions = s;
+		} finally {
+			configLock.unlock();
+		}
+		return subscription;
+	}
+
+	/**
+	 * Removes the subscription, so the bank stops appending records to it.
+	 * 
+	 * @param subscription
+	 *            subscription made by this bank
+	 */
+	void unsubscribe(Subscription subscription) {
+		configLock.lock();
+		try {
+			Subscription[] s = subscriptions;
+			for (int k = 0; k < s.length; ++k) {
+				if (s[k] == subscription) {
+					Subscription[] rest = new Subscription[s.length - 1];
+					System.arraycopy(s, 0, rest, 0, k);
+					System.arraycopy(s, k + 1, rest, k, s.length - k - 1);
+					subscriptions = rest;
+					return;
+				}
+			}
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns snapshot of a version not older than any change which has
+	 * already taken its version, waiting for such changes to publish.
+	 * 
+	 * @return snapshot of the current bank state
+	 */
+	Snapshot snapshotAfterPending() {
+		long v = lastVersion.get();
+		while (actualVersion < v) {
+			Thread.yield();
+		}
+		return snapshot();
+	}
+
+	/**
+	 * Returns the oldest version the bank keeps data for: the version of the
+	 * oldest checkpoint still needed by an open snapshot or by the bank
+	 * itself. Data older than that has been released.
+	 * 
+	 * @return the oldest live version
+	 */
+	public long getOldestLiveVersion() {
+		long result = actualVersion;
+		Iterator<Snapshot> it = checkpoints.iterator();
+		while (it.hasNext()) {
+			Snapshot checkpoint = it.next();
+			if (checkpoint.isReleased()) {
+				it.remove();
+			} else {
+				result = Math.min(result, checkpoint.getVersion());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks and, if necessary, starts a new checkpoint, at least every n
+	 * versions even while accounts are opened. Must be called only while
+	 * publishing version v, after its events are added. The new checkpoint
+	 * reads through the previous one until the operation of the version
+	 * materializes it, which should be done after releasing the accounts.
+	 * 
+	 * @param v
+	 *            version being published
+	 * @return the new checkpoint or null
+	 */
+	private Snapshot checkForUpdate(long v) {
+		if (v - localSnapshot.getVersion() < n && v % n != 0) {
+			return null;
+		}
+		BankStatistics stats = statistics;
+		if (stats != null) {
+			stats.getEventLogLength().record(localSnapshot.eventCount());
+			stats.getEventLogAccounts().record(localSnapshot.touchedCount());
+		}
+		localSnapshot = new Snapshot(v, localSnapshot);
+		if (checkpointFile != null) {
+			localSnapshot.acquire();
+		}
+		if (retention > 0) {
+			localSnapshot.acquire();
+			retained.add(localSnapshot);
+		}
+		while (checkpoints.peek().isReleased()) {
+			checkpoints.poll();
+		}
+		checkpoints.add(localSnapshot);
+		return localSnapshot;
+	}
+
+	/**
+	 * Returns the change of the calling thread, emptied for a new operation.
+	 * A change left pending by a failed operation is replaced.
+	 * 
+	 * @return empty change
+	 */
+	private static Change localChange() {
+		Change change = LOCAL_CHANGE.get();
+		if (change.isPending()) {
+			change = new Change(2);
+			LOCAL_CHANGE.set(change);
+		}
+		return change.clear();
+	}
+
+	/**
+	 * Pushes the change of an operation to be published, or publishes it at
+	 * once if no other thread is publishing. Must be called while the
+	 * operation still holds its accounts, so the changes of every account
+	 * are published in the order they were applied.
+	 * 
+	 * @param change
+	 *            change of the operation
+	 */
+	private void push(Change change) {
+		if (pending.get() == null && publishLock.tryLock()) {
+			try {
+				publishPending();
+				publish(change);
+			} finally {
+				publishLock.unlock();
+			}
+			return;
+		}
+		change.pushed = true;
+		Change head;
+		do {
+			head = pending.get();
+			change.next = head;
+		} while (!pending.compareAndSet(head, change));
+	}
+
+	/**
+	 * Publishes all the pushed changes in the order they were pushed, each as
+	 * the next version. Must be called with {@link #publishLock} held.
+	 */
+	private void publishPending() {
+		if (pending.get() == null) {
+			return;
+		}
+		Change change = pending.getAndSet(null);
+		Change first = null;
+		while (change != null) {
+			Change next = change.next;
+			change.next = first;
+			first = change;
+			change = next;
+		}
+		while (first != null) {
+			Change next = first.next;
+			publish(first);
+			first.published = true;
+			first = next;
+		}
+	}
+
+	/**
+	 * Records a change as the next version and publishes it, starting a new
+	 * checkpoint if necessary. A failure is left to the operation of the
+	 * change, and the version is published anyway, so the later changes go
+	 * on. Must be called with {@link #publishLock} held.
+	 * 
+	 * @param change
+	 *            the oldest change to publish
+	 */
+	private void publish(Change change) {
+		long v = lastVersion.incrementAndGet();
+		try {
+			int i = change.opened();
+			if (i >= 0) {
+				localSnapshot.open(v);
+				if (wal != null) {
+					wal.append(v, i, 0);
+				}
+				for (Subscription subscription : subscriptions) {
+					subscription.offer(v, i, 0, 0);
+				}
+				RangeIndex index = rangeIndex;
+				if (index != null) {
+					index.open();
+				}
+			}
+			totalAmount += change.total();
+			for (int k = 0; k < change.count(); ++k) {
+				addEvent(change.account(k), v, change.difference(k),
+						change.balance(k));
+			}
+		} catch (Throwable e) {
+			change.failure = e;
+		}
+		try {
+			change.checkpoint = checkForUpdate(v);
+		} catch (Throwable e) {
+			if (change.failure == null) {
+				change.failure = e;
+			} else {
+				change.failure.addSuppressed(e);
+			}
+		}
+		actualVersion = v;
+	}
+
+	/**
+	 * Waits until the change passed to {@link #push(Change)} is published,
+	 * publishing the pending changes whenever no other thread does. The
+	 * change and all the changes pushed before it are published then.
+	 * 
+	 * @param change
+	 *            change of the operation
+	 */
+	void awaitPublished(Change change) {
+		BankStatistics stats = null;
+		long start = 0;
+		while (change.isPending()) {
+			if (publishLock.tryLock()) {
+				try {
+					publishPending();
+				} finally {
+					publishLock.unlock();
+				}
+			} else {
+				if (start == 0) {
+					stats = statistics;
+					start = stats == null ? -1 : System.nanoTime();
+				}
+				Thread.yield();
+			}
+		}
+		if (stats != null) {
+			stats.getPublishWait().record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Waits until the change of an operation is published. If it
+	 * couldn't be recorded, finishes the checkpoint started at its version
+	 * at once, as the failure leaves the operation no chance to call
+	 * {@link #complete(Snapshot)}, and throws the failure; a failure to
+	 * finish the checkpoint is added to it.
+	 * 
+	 * @param change
+	 *            change passed to {@link #push(Change)}
+	 * @return the new checkpoint to materialize or null
+	 */
+	private Snapshot awaitPublication(Change change) {
+		awaitPublished(change);
+		Snapshot checkpoint = change.checkpoint;
+		Throwable failure = change.failure;
+		if (failure == null) {
+			return checkpoint;
+		}
+		if (checkpoint != null) {
+			try {
+				complete(checkpoint);
+			} catch (RuntimeException e) {
+				failure.addSuppressed(e);
+			}
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		throw (RuntimeException) failure;
+	}
+
+	/**
+	 * Records a change of the account made by the operation publishing
+	 * version v.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param v
+	 *            version being published
+	 * @param difference
+	 *            change of the amount
+	 * @param balance
+	 *            new amount in account
+	 */
+	private void addEvent(int i, long v, long difference, long balance) {
+		localSnapshot.addEvent(i, v, difference);
+		if (wal != null) {
+			wal.append(v, i, difference);
+		}
+		for (Subscription subscription : subscriptions) {
+			subscription.offer(v, i, difference, balance);
+		}
+		RangeIndex index = rangeIndex;
+		if (index != null) {
+			index.add(v, i, difference);
+		}
+	}
+
+	/**
+	 * Finishes a published operation outside of the locks: materializes the
+	 * checkpoint it created, waits until its changes are durable and writes
+	 * the checkpoint file.
+	 * 
+	 * @param checkpoint
+	 *            the new checkpoint to materialize or null
+	 * @throws IllegalStateException
+	 *             when the log or the checkpoint file can't be written.
+	 */
+	void complete(Snapshot checkpoint) {
+		BankStatistics stats = checkpoint == null ? null : statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		if (checkpoint != null) {
+			checkpoint.materialize();
+			trimRetained(checkpoint.getVersion());
+		}
+		if (wal != null) {
+			wal.sync();
+		}
+		if (checkpoint != null && checkpointFile != null) {
+			try {
+				writeCheckpoint(checkpoint);
+			} finally {
+				checkpoint.release();
+			}
+		}
+		if (stats != null) {
+			stats.getCheckpointDuration().record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Writes the materialized checkpoint to the checkpoint file, unless a
+	 * newer one is being written or already written.
+	 * 
+	 * @param checkpoint
+	 *            materialized checkpoint
+	 * @throws IllegalStateException
+	 *             when the checkpoint file can't be written.
+	 */
+	private void writeCheckpoint(Snapshot checkpoint) {
+		if (!checkpointFileLock.tryLock()) {
+			return;
+		}
+		try {
+			if (checkpoint.getVersion() <= checkpointFileVersion) {
+				return;
+			}
+			CheckpointFile.write(checkpointFile, checkpoint);
+			checkpointFileVersion = checkpoint.getVersion();
+		} catch (IOException e) {
+			throw new IllegalStateException("Checkpoint failure", e);
+		} finally {
+			checkpointFileLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the lock guarding the specified account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @return account lock
+	 */
+	private ReentrantLock lockOf(int i) {
+		return locks[i % locks.length];
+	}
+
+	/**
+	 * Locks the specified accounts. Locks are always taken in the order of
+	 * their stripes, so concurrent transfers can't deadlock.
+	 * 
+	 * @param i
+	 *            first account index
+	 * @param j
+	 *            second account index
+	 */
+	private void lock(int i, int j) {
+		int a = i % locks.length;
+		int b = j % locks.length;
+		locks[Math.min(a, b)].lock();
+		if (a != b) {
+			locks[Math.max(a, b)].lock();
+		}
+	}
+
+	/**
+	 * Unlocks the accounts locked by {@link #lock(int, int)}.
+	 * 
+	 * @param i
+	 *            first account index
+	 * @param j
+	 *            second account index
+	 */
+	private void unlock(int i, int j) {
+		ReentrantLock a = lockOf(i);
+		ReentrantLock b = lockOf(j);
+		a.unlock();
+		if (a != b) {
+			b.unlock();
+		}
+	}
+
+	/**
+	 * Locks or, in {@link ConcurrencyMode#SPIN_CLAIM} mode, claims the
+	 * specified accounts. Locks and accounts are taken in ascending order, so
+	 * concurrent multi-account operations can't deadlock. In
+	 * {@link ConcurrencyMode#SEQUENCER} mode pauses the writer thread
+	 * instead.
+	 * 
+	 * @param accounts
+	 *            valid account indices, possibly repeated; the array is
+	 *            reordered
+	 * @param count
+	 *            the number of accounts
+	 * @return what was taken, to be passed to {@link #unlockAll(int[], int)}
+	 */
+	private int[] lockAll(int[] accounts, int count) {
+		if (mode == ConcurrencyMode.SEQUENCER) {
+			pause();
+			return accounts;
+		}
+		if (mode != ConcurrencyMode.SPIN_CLAIM) {
+			for (int k = 0; k < count; ++k) {
+				accounts[k] %= locks.length;
+			}
+		}
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		Arrays.sort(accounts, 0, count);
+		int last = -1;
+		for (int k = 0; k < count; ++k) {
+			if (accounts[k] == last) {
+				accounts[k] = -1;
+				continue;
+			}
+			last = accounts[k];
+			if (mode == ConcurrencyMode.SPIN_CLAIM) {
+				claim(last);
+			} else {
+				locks[last].lock();
+			}
+		}
+		if (stats != null) {
+			stats.getLockWait().record(System.nanoTime() - start);
+		}
+		return accounts;
+	}
+
+	/**
+	 * Unlocks the accounts locked by {@link #lockAll(int[], int)}, clearing
+	 * the claim bits in {@link ConcurrencyMode#SPIN_CLAIM} mode or resuming
+	 * the writer thread in {@link ConcurrencyMode#SEQUENCER} mode.
+	 * 
+	 * @param taken
+	 *            the result of {@link #lockAll(int[], int)}
+	 * @param count
+	 *            the number of accounts
+	 */
+	private void unlockAll(int[] taken, int count) {
+		if (mode == ConcurrencyMode.SEQUENCER) {
+			sequencer.resume();
+			return;
+		}
+		for (int k = count - 1; k >= 0; --k) {
+			if (taken[k] < 0) {
+				continue;
+			}
+			if (mode == ConcurrencyMode.SPIN_CLAIM) {
+				money.set(taken[k], balance(taken[k]));
+			} else {
+				locks[taken[k]].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Checks that the new amount in account is valid.
+	 * 
+	 * @param value
+	 *            new amount in account
+	 * @param difference
+	 *            change of the amount
+	 * @return value
+	 * @throws IllegalStateException
+	 *             when value is negative or above {@link #MAX_AMOUNT}.
+	 */
+	private long validate(long value, long difference) {
+		if (value > MAX_AMOUNT) {
+			throw illegal(Operations.OVERFLOW,
+					"Illegal operation: money amount can't overflow "
+							+ MAX_AMOUNT);
+		}
+		if (value < 0) {
+			throw illegal(Operations.NOT_ENOUGH_MONEY,
+					"Illegal operation: not enough money to withdraw "
+							+ -difference);
+		}
+		return value;
+	}
+
+	/**
+	 * Claims the account by setting the claim bit of its balance word.
+	 * 
+	 * @param i
+	 *            account index
+	 * @return amount in account
+	 */
+	private long claim(int i) {
+		while (true) {
+			long value = money.get(i);
+			if ((value & CLAIMED) == 0
+					&& money.compareAndSet(i, value, value | CLAIMED)) {
+				return value;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Validates the change of the account and claims it in one
+	 * compare-and-set, so a rejected operation never touches the account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 * @return new amount in account
+	 * @throws IllegalStateException
+	 *             when the new amount is invalid.
+	 */
+	private long claim(int i, long difference) {
+		while (true) {
+			long value = money.get(i);
+			if ((value & CLAIMED) == 0) {
+				long newValue = validate(value + difference, difference);
+				if (money.compareAndSet(i, value, value | CLAIMED)) {
+					return newValue;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Changes the amount in account and publishes the change as the next
+	 * version.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 * @return new amount in account
+	 * @throws IllegalStateException
+	 *             when the new amount is invalid.
+	 */
+	private long update(int i, long difference) {
+		if (mode == ConcurrencyMode.SEQUENCER) {
+			return sequence(difference > 0 ? Operations.DEPOSIT
+					: Operations.WITHDRAW, i, i, Math.abs(difference));
+		}
+		long newValue = prepare(i, difference);
+		commit(i, newValue, difference);
+		return newValue;
+	}
+
+	/**
+	 * Locks or claims the account, or pauses the writer thread in
+	 * {@link ConcurrencyMode#SEQUENCER} mode, and validates its change. This
+	 * is the first phase of a change spanning several banks: the account
+	 * stays taken until {@link #commit(int, long, long)} or
+	 * {@link #abort(int)}, so the change can't become invalid in between.
+	 * 
+	 * @param i
+	 *            valid account index
+	 * @param difference
+	 *            change of the amount
+	 * @return new amount in account
+	 * @throws IllegalStateException
+	 *             when the new amount is invalid; the account is not taken
+	 *             then.
+	 */
+	long prepare(int i, long difference) {
+		if (mode == ConcurrencyMode.SEQUENCER) {
+			pause();
+			try {
+				return validate(money.get(i) + difference, difference);
+			} catch (IllegalStateException e) {
+				sequencer.resume();
+				throw e;
+			}
+		}
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		if (mode == ConcurrencyMode.SPIN_CLAIM) {
+			long newValue = claim(i, difference);
+			if (stats != null) {
+				stats.getLockWait().record(System.nanoTime() - start);
+			}
+			return newValue;
+		}
+		ReentrantLock lock = lockOf(i);
+		lock.lock();
+		if (stats != null) {
+			stats.getLockWait().record(System.nanoTime() - start);
+		}
+		try {
+			return validate(money.get(i) + difference, difference);
+		} catch (IllegalStateException e) {
+			lock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Pauses the writer thread in {@link ConcurrencyMode#SEQUENCER} mode, so
+	 * the caller changes the balances alone until it resumes the writer.
+	 * 
+	 * @throws IllegalStateException
+	 *             when the bank is closed.
+	 */
+	private void pause() {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		sequencer.pause();
+		if (stats != null) {
+			stats.getLockWait().record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Publishes the change prepared by {@link #prepare(int, long)} as the next
+	 * version and releases the account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param newValue
+	 *            the result of {@link #prepare(int, long)}
+	 * @param difference
+	 *            change of the amount
+	 */
+	void commit(int i, long newValue, long difference) {
+		Change change = localChange();
+		change.add(i, difference, newValue);
+		try {
+			money.set(i, newValue
+					| (mode == ConcurrencyMode.SPIN_CLAIM ? CLAIMED : 0));
+			push(change);
+		} finally {
+			abort(i);
+		}
+		complete(awaitPublication(change));
+	}
+
+	/**
+	 * Releases the account taken by {@link #prepare(int, long)}, without
+	 * changing it unless committed.
+	 * 
+	 * @param i
+	 *            account index
+	 */
+	void abort(int i) {
+		if (mode == ConcurrencyMode.SPIN_CLAIM) {
+			money.set(i, balance(i));
+		} else if (mode == ConcurrencyMode.SEQUENCER) {
+			sequencer.resume();
+		} else {
+			lockOf(i).unlock();
+		}
+	}
+
+	/**
+	 * Runs an operation on the writer thread in
+	 * {@link ConcurrencyMode#SEQUENCER} mode.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param i
+	 *            valid account index
+	 * @param j
+	 *            valid target account index of a transfer
+	 * @param amount
+	 *            valid amount
+	 * @return new amount in account i
+	 * @throws IllegalStateException
+	 *             when the new amount is invalid or the change can't be made
+	 *             durable.
+	 */
+	private long sequence(int op, int i, int j, long amount) {
+		long result = sequencer.submit(op, i, j, amount);
+		if (result >= 0) {
+			return result;
+		}
+		throw rejection(op, i, amount, (int) -result);
+	}
+
+	/**
+	 * Makes the exception for an operation rejected by the writer thread in
+	 * {@link ConcurrencyMode#SEQUENCER} mode.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param i
+	 *            account index
+	 * @param amount
+	 *            amount of the operation
+	 * @param result
+	 *            error code
+	 * @return exception to throw
+	 */
+	private IllegalStateException rejection(int op, int i, long amount,
+			int result) {
+		if (result == Operations.OVERFLOW) {
+			return illegal(Operations.OVERFLOW,
+					"Illegal operation: money amount can't overflow "
+							+ MAX_AMOUNT);
+		}
+		return illegal(Operations.NOT_ENOUGH_MONEY,
+				"Illegal operation: not enough money to withdraw " + amount
+						+ (op == Operations.TRANSFER ? " from account " + i
+								: ""));
+	}
+
+	/**
+	 * Completes the future of an asynchronous operation applied by the writer
+	 * thread in {@link ConcurrencyMode#SEQUENCER} mode.
+	 * 
+	 * @param future
+	 *            future of the operation
+	 * @param op
+	 *            operation code
+	 * @param i
+	 *            account index
+	 * @param amount
+	 *            amount of the operation
+	 * @param result
+	 *            result code
+	 * @param value
+	 *            new amount in account i
+	 * @param failure
+	 *            failure to make the change durable, or null
+	 */
+	@SuppressWarnings("unchecked")
+	void finish(CompletableFuture<?> future, int op, int i, long amount,
+			int result, long value, RuntimeException failure) {
+		if (failure == null && result != Operations.OK) {
+			failure = rejection(op, i, amount, result);
+		}
+		if (failure != null) {
+			future.completeExceptionally(failure);
+		} else if (op == Operations.TRANSFER) {
+			((CompletableFuture<Void>) future).complete(null);
+		} else {
+			((CompletableFuture<Long>) future).complete(value);
+		}
+	}
+
+	/**
+	 * Applies a command of the ring buffer and pushes its change to be
+	 * published. Called only by the writer thread, while not paused.
+	 * 
+	 * @param c
+	 *            published command; its result is set
+	 * @return the pushed change of the command, or null if rejected
+	 */
+	Change execute(Sequencer.Command c) {
+		Change change = c.change.clear();
+		int i = c.account;
+		long amount = c.amount;
+		if (c.op == Operations.TRANSFER) {
+			int j = c.target;
+			long newFromValue = money.get(i) - amount;
+			long newToValue = money.get(j) + amount;
+			if (newFromValue < 0) {
+				c.result = Operations.NOT_ENOUGH_MONEY;
+				return null;
+			}
+			if (newToValue > MAX_AMOUNT) {
+				c.result = Operations.OVERFLOW;
+				return null;
+			}
+			money.set(i, newFromValue);
+			money.set(j, newToValue);
+			change.add(i, -amount, newFromValue);
+			change.add(j, amount, newToValue);
+			c.result = Operations.OK;
+			c.value = newFromValue;
+			push(change);
+			return change;
+		}
+		long difference = c.op == Operations.DEPOSIT ? amount : -amount;
+		long newValue = money.get(i) + difference;
+		if (newValue > MAX_AMOUNT) {
+			c.result = Operations.OVERFLOW;
+			return null;
+		}
+		if (newValue < 0) {
+			c.result = Operations.NOT_ENOUGH_MONEY;
+			return null;
+		}
+		money.set(i, newValue);
+		change.add(i, difference, newValue);
+		c.result = Operations.OK;
+		c.value = newValue;
+		push(change);
+		return change;
+	}
+
+	/**
+	 * Checks the account index of an operation.
+	 * 
+	 * @param i
+	 *            account index
+	 * @throws IllegalArgumentException
+	 *             when i is invalid index.
+	 */
+	private void checkIndex(int i) {
+		if (i < 0 || i >= n) {
+			throw invalid(Operations.INVALID_INDEX, "Invalid index: " + i);
+		}
+	}
+
+	/**
+	 * Checks the amount of an operation.
+	 * 
+	 * @param amount
+	 *            amount of the operation
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}.
+	 */
+	private void checkAmount(long amount) {
+		if (amount <= 0 || amount > MAX_AMOUNT) {
+			throw invalid(Operations.INVALID_AMOUNT, "Invalid amount: "
+					+ amount);
+		}
+	}
+
+	/**
+	 * Deposits the specified amount of money to account.
+	 * 
+	 * @param i
+	 *            account index.
+	 * @param amount
+	 *            amount to deposit.
+	 * @return resulting amount on account.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or i is
+	 *             invalid index.
+	 * @throws RejectedOperationException
+	 *             when deposit will overflow account above {@link #MAX_AMOUNT}.
+	 * @throws IllegalStateException
+	 *             when the bank can't apply the operation: it is closed, or
+	 *             the change can't be made durable.
+	 */
+	public long deposit(int i, long amount) {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			checkIndex(i);
+			checkAmount(amount);
+			return update(i, amount);
+		} finally {
+			if (stats != null) {
+				stats.getDepositLatency().record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Withdraws specified amount from account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param amount
+	 *            amount to withdraw
+	 * @return resulting amount on account.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or i is
+	 *             invalid index.
+	 * @throws RejectedOperationException
+	 *             when account does not have enough to withdraw.
+	 * @throws IllegalStateException
+	 *             when the bank can't apply the operation: it is closed, or
+	 *             the change can't be made durable.
+	 */
+	public long withdraw(int i, long amount) {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			checkIndex(i);
+			checkAmount(amount);
+			return update(i, -amount);
+		} finally {
+			if (stats != null) {
+				stats.getWithdrawLatency().record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Transfers specified amount from one account to the other account.
+	 * 
+	 * @param fromIndex
+	 *            account index to withdraw from.
+	 * @param toIndex
+	 *            account index to deposit to.
+	 * @param amount
+	 *            amount to transfer.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link #MAX_AMOUNT}, or account
+	 *             indices are invalid.
+	 * @throws RejectedOperationException
+	 *             when there is not enough funds in source account or too much
+	 *             in target one.
+	 * @throws IllegalStateException
+	 *             when the bank can't apply the operation: it is closed, or
+	 *             the change can't be made durable.
+	 */
+	public void transfer(int fromIndex, int toIndex, long amount) {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			checkIndex(fromIndex);
+			checkIndex(toIndex);
+			checkAmount(amount);
+			if (fromIndex == toIndex) {
+				return;
+			}
+			if (mode == ConcurrencyMode.SEQUENCER) {
+				sequence(Operations.TRANSFER, fromIndex, toIndex, amount);
+				return;
+			}
+			long wait = stats == null ? 0 : System.nanoTime();
+			if (mode == ConcurrencyMode.SPIN_CLAIM) {
+				claim(Math.min(fromIndex, toIndex));
+				claim(Math.max(fromIndex, toIndex));
+			} else {
+				lock(fromIndex, toIndex);
+			}
+			if (stats != null) {
+				stats.getLockWait().record(System.nanoTime() - wait);
+			}
+			Change change = localChange();
+			try {
+				long newFromValue = balance(fromIndex) - amount;
+				if (newFromValue < 0) {
+					throw illegal(Operations.NOT_ENOUGH_MONEY,
+							"Illegal operation: not enough money to withdraw "
+									+ amount + " from account " + fromIndex);
+				}
+				long newToValue = balance(toIndex) + amount;
+				if (newToValue > MAX_AMOUNT) {
+					throw illegal(Operations.OVERFLOW,
+							"Illegal operation: money amount can't overflow "
+									+ MAX_AMOUNT);
+				}
+				long claimBit = mode == ConcurrencyMode.SPIN_CLAIM ? CLAIMED
+						: 0;
+				money.set(fromIndex, newFromValue | claimBit);
+				money.set(toIndex, newToValue | claimBit);
+				change.add(fromIndex, -amount, newFromValue);
+				change.add(toIndex, amount, newToValue);
+				push(change);
+			} finally {
+				if (mode == ConcurrencyMode.SPIN_CLAIM) {
+					money.set(fromIndex, balance(fromIndex));
+					money.set(toIndex, balance(toIndex));
+				} else {
+					unlock(fromIndex, toIndex);
+				}
+			}
+			complete(awaitPublication(change));
+		} finally {
+			if (stats != null) {
+				stats.getTransferLatency().record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Makes a future completed with the exception.
+	 * 
+	 * @param e
+	 *            exception
+	 * @return failed future
+	 */
+	private static <T> CompletableFuture<T> failed(RuntimeException e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	/**
+	 * Deposits the specified amount of money to account asynchronously. In
+	 * {@link ConcurrencyMode#SEQUENCER} mode the deposit is queued to the
+	 * writer thread and the future is completed there, so dependent stages
+	 * should be asynchronous or short; in the other modes the deposit runs in
+	 * the calling thread.
+	 * 
+	 * @param i
+	 *            account index.
+	 * @param amount
+	 *            amount to deposit.
+	 * @return future of the resulting amount on account, failed with the
+	 *         exception {@link #deposit(int, long)} would throw.
+	 */
+	public CompletableFuture<Long> depositAsync(int i, long amount) {
+		try {
+			if (mode != ConcurrencyMode.SEQUENCER) {
+				return CompletableFuture.completedFuture(deposit(i, amount));
+			}
+			checkIndex(i);
+			checkAmount(amount);
+			return sequencer.submitAsync(Operations.DEPOSIT, i, i, amount);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Withdraws specified amount from account asynchronously, the same way as
+	 * {@link #depositAsync(int, long)}.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param amount
+	 *            amount to withdraw
+	 * @return future of the resulting amount on account, failed with the
+	 *         exception {@link #withdraw(int, long)} would throw.
+	 */
+	public CompletableFuture<Long> withdrawAsync(int i, long amount) {
+		try {
+			if (mode != ConcurrencyMode.SEQUENCER) {
+				return CompletableFuture.completedFuture(withdraw(i, amount));
+			}
+			checkIndex(i);
+			checkAmount(amount);
+			return sequencer.submitAsync(Operations.WITHDRAW, i, i, amount);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Transfers specified amount from one account to the other account
+	 * asynchronously, the same way as {@link #depositAsync(int, long)}.
+	 * 
+	 * @param fromIndex
+	 *            account index to withdraw from.
+	 * @param toIndex
+	 *            account index to deposit to.
+	 * @param amount
+	 *            amount to transfer.
+	 * @return future completed when the transfer is done, failed with the
+	 *         exception {@link #transfer(int, int, long)} would throw.
+	 */
+	public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex,
+			long amount) {
+		try {
+			if (mode != ConcurrencyMode.SEQUENCER || fromIndex == toIndex) {
+				transfer(fromIndex, toIndex, amount);
+				return CompletableFuture.completedFuture(null);
+			}
+			checkIndex(fromIndex);
+			checkIndex(toIndex);
+			checkAmount(amount);
+			return sequencer.submitAsync(Operations.TRANSFER, fromIndex,
+					toIndex, amount);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Returns snapshot of all accounts in the bank as a future. Taking a
+	 * snapshot never blocks, so the future is already completed; in
+	 * {@link ConcurrencyMode#SEQUENCER} mode it sees every operation whose
+	 * future has completed.
+	 * 
+	 * @return future of the snapshot of the current bank state
+	 */
+	public CompletableFuture<Snapshot> snapshotAsync() {
+		return CompletableFuture.completedFuture(snapshot());
+	}
+
+	/**
+	 * Checks an operation of a batch without regard to account amounts.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param account
+	 *            account index
+	 * @param target
+	 *            target account index, for transfers
+	 * @param amount
+	 *            amount of the operation
+	 * @return {@link Operations#OK} or the error code
+	 */
+	private int check(int op, int account, int target, long amount) {
+		if (op != Operations.DEPOSIT && op != Operations.WITHDRAW
+				&& op != Operations.TRANSFER) {
+			return Operations.INVALID_OPERATION;
+		}
+		if (account < 0 || account >= n) {
+			return Operations.INVALID_INDEX;
+		}
+		if (op == Operations.TRANSFER && (target < 0 || target >= n)) {
+			return Operations.INVALID_INDEX;
+		}
+		if (amount <= 0 || amount > MAX_AMOUNT) {
+			return Operations.INVALID_AMOUNT;
+		}
+		return Operations.OK;
+	}
+
+	/**
+	 * Applies a batch of operations as one unit: all the accounts of the
+	 * batch are locked at once, the operations are applied in order and all
+	 * the successful ones are published under a single version. A failed
+	 * operation does not affect the others. The i-th operation is encoded by
+	 * ops[i], accounts[i], targets[i] and amounts[i]; targets[i] is only used
+	 * by transfers.
+	 * 
+	 * @param ops
+	 *            operation codes: {@link Operations#DEPOSIT},
+	 *            {@link Operations#WITHDRAW} or {@link Operations#TRANSFER}.
+	 * @param accounts
+	 *            account indices; source accounts of transfers.
+	 * @param targets
+	 *            target account indices of transfers.
+	 * @param amounts
+	 *            amounts of the operations.
+	 * @param count
+	 *            the number of operations in the batch.
+	 * @param results
+	 *            array to store the result code of the i-th operation at
+	 *            results[i]: {@link Operations#OK} or an error code.
+	 * @return the number of successful operations.
+	 * @throws IllegalArgumentException
+	 *             when count is negative or some array is shorter than count.
+	 */
+	public int applyBatch(int[] ops, int[] accounts, int[] targets,
+			long[] amounts, int count, int[] results) {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			if (count < 0 || ops.length < count || accounts.length < count
+					|| targets.length < count || amounts.length < count
+					|| results.length < count) {
+				throw new IllegalArgumentException("Invalid batch size: "
+						+ count);
+			}
+			int[] involved = new int[2 * count];
+			int m = 0;
+			for (int k = 0; k < count; ++k) {
+				results[k] = check(ops[k], accounts[k], targets[k], amounts[k]);
+				if (results[k] == Operations.OK) {
+					involved[m++] = accounts[k];
+					if (ops[k] == Operations.TRANSFER) {
+						involved[m++] = targets[k];
+					}
+				}
+			}
+			if (m == 0) {
+				countRejected(results, count);
+				return 0;
+			}
+			long claimBit = mode == ConcurrencyMode.SPIN_CLAIM ? CLAIMED : 0;
+			int succeeded = 0;
+			Change change = new Change(m);
+			int[] taken = lockAll(involved, m);
+			try {
+				for (int k = 0; k < count; ++k) {
+					if (results[k] != Operations.OK) {
+						continue;
+					}
+					int i = accounts[k];
+					long amount = amounts[k];
+					if (ops[k] == Operations.DEPOSIT) {
+						long newValue = balance(i) + amount;
+						if (newValue > MAX_AMOUNT) {
+							results[k] = Operations.OVERFLOW;
+							continue;
+						}
+						money.set(i, newValue | claimBit);
+						change.add(i, amount, newValue);
+					} else if (ops[k] == Operations.WITHDRAW) {
+						long newValue = balance(i) - amount;
+						if (newValue < 0) {
+							results[k] = Operations.NOT_ENOUGH_MONEY;
+							continue;
+						}
+						money.set(i, newValue | claimBit);
+						change.add(i, -amount, newValue);
+					} else if (i != targets[k]) {
+						int j = targets[k];
+						long newFromValue = balance(i) - amount;
+						long newToValue = balance(j) + amount;
+						if (newFromValue < 0) {
+							results[k] = Operations.NOT_ENOUGH_MONEY;
+							continue;
+						}
+						if (newToValue > MAX_AMOUNT) {
+							results[k] = Operations.OVERFLOW;
+							continue;
+						}
+						money.set(i, newFromValue | claimBit);
+						money.set(j, newToValue | claimBit);
+						change.add(i, -amount, newFromValue);
+						change.add(j, amount, newToValue);
+					}
+					++succeeded;
+				}
+				if (succeeded > 0) {
+					push(change);
+				}
+			} finally {
+				unlockAll(taken, m);
+			}
+			complete(succeeded > 0 ? awaitPublication(change) : null);
+			if (succeeded < count) {
+				countRejected(results, count);
+			}
+			return succeeded;
+		} finally {
+			if (stats != null) {
+				stats.getBatchLatency().record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Counts the rejected operations of a batch, if statistics are enabled.
+	 * 
+	 * @param results
+	 *            result codes of the operations
+	 * @param count
+	 *            the number of operations
+	 */
+	private void countRejected(int[] results, int count) {
+		BankStatistics stats = statistics;
+		if (stats == null) {
+			return;
+		}
+		for (int k = 0; k < count; ++k) {
+			if (results[k] != Operations.OK) {
+				stats.reject(results[k]);
+			}
+		}
+	}
+
+	/**
+	 * Atomically applies a transaction of several legs: the i-th leg changes
+	 * the amount in account accounts[i] by amounts[i], which is positive for
+	 * a credit and negative for a debit. Either all the legs are applied and
+	 * published under a single version, or none is. An account may appear in
+	 * several legs; only its resulting amount is checked. Only the involved
+	 * accounts are locked.
+	 * 
+	 * @param accounts
+	 *            account indices of the legs.
+	 * @param amounts
+	 *            signed amounts of the legs.
+	 * @return the total change of money in the bank, zero for a balanced
+	 *         transaction.
+	 * @throws IllegalArgumentException
+	 *             when the arrays differ in length, some account index is
+	 *             invalid, or some amount is zero or its absolute value is
+	 *             above {@link #MAX_AMOUNT}.
+	 * @throws RejectedOperationException
+	 *             when some account would become negative or overflow above
+	 *             {@link #MAX_AMOUNT}.
+	 * @throws IllegalStateException
+	 *             when the bank can't apply the operation: it is closed, or
+	 *             the change can't be made durable.
+	 */
+	public long transact(int[] accounts, long[] amounts) {
+		BankStatistics stats = statistics;
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			int count = accounts.length;
+			if (amounts.length != count) {
+				throw invalid(Operations.INVALID_OPERATION, "Invalid legs: "
+						+ accounts.length + " accounts, " + amounts.length
+						+ " amounts");
+			}
+			int[] involved = new int[count];
+			for (int k = 0; k < count; ++k) {
+				int i = accounts[k];
+				if (i < 0 || i >= n) {
+					throw invalid(Operations.INVALID_INDEX, "Invalid index: "
+							+ i);
+				}
+				long amount = amounts[k];
+				if (amount == 0 || amount > MAX_AMOUNT
+						|| amount < -MAX_AMOUNT) {
+					throw invalid(Operations.INVALID_AMOUNT, "Invalid amount: "
+							+ amount);
+				}
+				involved[k] = i;
+			}
+			Arrays.sort(involved);
+			int m = 0;
+			for (int k = 0; k < count; ++k) {
+				if (m == 0 || involved[k] != involved[m - 1]) {
+					involved[m++] = involved[k];
+				}
+			}
+			long[] differences = new long[m];
+			long difference = 0;
+			for (int k = 0; k < count; ++k) {
+				int position = Arrays.binarySearch(involved, 0, m, accounts[k]);
+				differences[position] += amounts[k];
+				difference += amounts[k];
+			}
+			if (m == 0) {
+				return 0;
+			}
+			Change change = new Change(m);
+			int[] taken = lockAll(Arrays.copyOf(involved, m), m);
+			try {
+				long[] newValues = new long[m];
+				for (int k = 0; k < m; ++k) {
+					newValues[k] = validate(balance(involved[k])
+							+ differences[k], differences[k]);
+				}
+				long claimBit = mode == ConcurrencyMode.SPIN_CLAIM ? CLAIMED
+						: 0;
+				for (int k = 0; k < m; ++k) {
+					if (differences[k] != 0) {
+						money.set(involved[k], newValues[k] | claimBit);
+						change.add(involved[k], differences[k], newValues[k]);
+					}
+				}
+				push(change);
+			} finally {
+				unlockAll(taken, m);
+			}
+			complete(awaitPublication(change));
+			return difference;
+		} finally {
+			if (stats != null) {
+				stats.getTransactionLatency().record(System.nanoTime() - start);
+			}
+		}
+	}
+}
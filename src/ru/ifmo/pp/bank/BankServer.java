@@ -0,0 +1,752 @@
+package ru.ifmo.pp.bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking TCP front-end of a {@link Bank}.
+ * 
+ * A request is an operation code byte followed by its arguments, all
+ * big-endian:
+ * <ul>
+ * <li>{@link Operations#DEPOSIT}, {@link Operations#WITHDRAW}: int account,
+ * long amount;</li>
+ * <li>{@link Operations#TRANSFER}: int account, int target, long amount;</li>
+ * <li>{@link #AMOUNT}: int account;</li>
+ * <li>{@link #TOTAL}: nothing;</li>
+ * <li>{@link #SUM}: int from, int to.</li>
+ * </ul>
+ * Every request gets a response of {@link #RESPONSE_SIZE} bytes: an
+ * {@link Operations} result code byte and a long value, the resulting amount
+ * of a deposit or withdrawal, the amount, the total or the sum, and 0 for a
+ * transfer or an error. An operation the bank can't apply because it is
+ * closed or failed is answered with {@link Operations#UNAVAILABLE}. A client
+ * may send any number of requests without waiting; they are executed and
+ * answered in order. A request with an unknown operation code is answered
+ * with {@link Operations#INVALID_OPERATION} and the connection is closed.
+ * 
+ * Connections are spread over a fixed number of selector threads. A thread
+ * executes all the complete requests it has read from a connection and sends
+ * their responses with a single write; while a client does not read its
+ * responses, no more of its requests are read. In
+ * {@link ConcurrencyMode#SEQUENCER} mode deposits, withdrawals and transfers
+ * are submitted asynchronously and answered once the writer thread completes
+ * them, so a selector thread never waits for the writer; a request reading
+ * the bank waits until the connection's earlier changes are answered.
+ * 
+ * A failure of a client connection closes the connection; the first failure
+ * of a selector or of closing a channel is kept for {@link #getFailure()}.
+ */
+public class BankServer implements Closeable {
+	/**
+	 * Request for the amount in account.
+	 */
+	public static final int AMOUNT = 3;
+
+	/**
+	 * Request for the total amount in bank.
+	 */
+	public static final int TOTAL = 4;
+
+	/**
+	 * Request for the total amount in a range of accounts as of a snapshot.
+	 */
+	public static final int SUM = 5;
+
+	/**
+	 * Size of a response in bytes.
+	 */
+	public static final int RESPONSE_SIZE = 1 + 8;
+
+	/**
+	 * Size of the input and the output buffer of a connection.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * State of a client connection.
+	 */
+	private static final class Connection {
+		/**
+		 * Channel of the connection.
+		 */
+		final SocketChannel channel;
+
+		/**
+		 * Bytes read and not yet executed.
+		 */
+		final ByteBuffer in;
+
+		/**
+		 * Responses not yet written.
+		 */
+		final ByteBuffer out;
+
+		/**
+		 * Futures of the submitted changes not yet answered, in request order.
+		 */
+		final Queue<CompletableFuture<?>> pending;
+
+		/**
+		 * Whether the connection is queued for its completed changes to be
+		 * answered.
+		 */
+		final AtomicBoolean signalled;
+
+		/**
+		 * Callback queuing the connection when a submitted change completes.
+		 */
+		BiConsumer<Object, Throwable> callback;
+
+		/**
+		 * Key of the connection.
+		 */
+		SelectionKey key;
+
+		/**
+		 * Whether the connection is closed once the responses are written.
+		 */
+		boolean closing;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			pending = new ArrayDeque<CompletableFuture<?>>();
+			signalled = new AtomicBoolean();
+		}
+	}
+
+	/**
+	 * Selector thread serving a share of the connections.
+	 */
+	private final class Worker implements Runnable {
+		/**
+		 * Selector of the connections.
+		 */
+		final Selector selector;
+
+		/**
+		 * Accepted connections to register with the selector.
+		 */
+		final Queue<SocketChannel> accepted;
+
+		/**
+		 * Connections with submitted changes completed and not yet answered.
+		 */
+		final Queue<Connection> completed;
+
+		/**
+		 * The thread running the worker.
+		 */
+		final Thread thread;
+
+		Worker(int index) throws IOException {
+			selector = Selector.open();
+			accepted = new ConcurrentLinkedQueue<SocketChannel>();
+			completed = new ConcurrentLinkedQueue<Connection>();
+			thread = new Thread(this, "bank-server-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select();
+					SocketChannel channel;
+					while ((channel = accepted.poll()) != null) {
+						register(channel);
+					}
+					Connection c;
+					while ((c = completed.poll()) != null) {
+						c.signalled.set(false);
+						if (c.key.isValid()) {
+							try {
+								serve(c.key, c);
+							} catch (IOException e) {
+								close(c.key);
+							} catch (RuntimeException e) {
+								close(c.key);
+							}
+						}
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						try {
+							handle(key);
+						} catch (IOException e) {
+							close(key);
+						} catch (RuntimeException e) {
+							close(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			} catch (ClosedSelectorException e) {
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					close(key);
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		/**
+		 * Registers an accepted connection with the selector; closes the
+		 * channel if it can't be registered.
+		 * 
+		 * @param channel
+		 *            accepted channel
+		 */
+		private void register(SocketChannel channel) {
+			final Connection c = new Connection(channel);
+			c.callback = new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object value, Throwable failure) {
+					if (c.signalled.compareAndSet(false, true)) {
+						completed.add(c);
+						selector.wakeup();
+					}
+				}
+			};
+			try {
+				c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			} catch (IOException e) {
+				close(channel);
+			}
+		}
+
+		/**
+		 * Handles a ready key.
+		 * 
+		 * @param key
+		 *            selected key
+		 * @throws IOException
+		 *             when the channel fails.
+		 */
+		private void handle(SelectionKey key) throws IOException {
+			if (key.isAcceptable()) {
+				SocketChannel channel = server.accept();
+				if (channel != null) {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					Worker worker = workers[nextWorker++ % workers.length];
+					worker.accepted.add(channel);
+					worker.selector.wakeup();
+				}
+				return;
+			}
+			Connection c = (Connection) key.attachment();
+			if (key.isReadable()) {
+				if (c.channel.read(c.in) < 0) {
+					close(key);
+					return;
+				}
+			} else if (key.isWritable()) {
+				if (!flush(key, c)) {
+					return;
+				}
+			}
+			serve(key, c);
+		}
+
+		/**
+		 * Answers the completed changes of the connection, then executes its
+		 * requests and writes the responses until it has to wait.
+		 * 
+		 * @param key
+		 *            key of the connection
+		 * @param c
+		 *            connection
+		 * @throws IOException
+		 *             when the channel fails.
+		 */
+		private void serve(SelectionKey key, Connection c) throws IOException {
+			CompletableFuture<?> future;
+			while ((future = c.pending.peek()) != null && future.isDone()) {
+				c.pending.remove();
+				try {
+					Object value = future.join();
+					c.out.put((byte) Operations.OK).putLong(
+							value == null ? 0 : (Long) value);
+				} catch (CompletionException e) {
+					c.out.put((byte) status(e.getCause())).putLong(0);
+				}
+			}
+			boolean full;
+			do {
+				full = execute(c);
+			} while (flush(key, c) && full);
+		}
+
+		/**
+		 * Writes the responses of the connection and chooses what to wait
+		 * for: more requests, or the rest of the responses to be written. A
+		 * connection whose input is full of requests waiting for its
+		 * submitted changes waits for nothing until they complete.
+		 * 
+		 * @param key
+		 *            key of the connection
+		 * @param c
+		 *            connection
+		 * @return true if all the responses are written
+		 * @throws IOException
+		 *             when the channel fails.
+		 */
+		private boolean flush(SelectionKey key, Connection c)
+				throws IOException {
+			c.out.flip();
+			c.channel.write(c.out);
+			c.out.compact();
+			if (c.out.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return false;
+			}
+			if (c.closing) {
+				close(key);
+				return false;
+			}
+			key.interestOps(c.in.hasRemaining() ? SelectionKey.OP_READ : 0);
+			return true;
+		}
+
+		/**
+		 * Executes the complete requests read from the connection while there
+		 * is room for their responses, including the responses of the
+		 * submitted changes. Stops at a request that has to wait for the
+		 * submitted changes to be answered.
+		 * 
+		 * @param c
+		 *            connection
+		 * @return true if it stopped for lack of room, so requests may be
+		 *         left to execute once the responses are written
+		 */
+		private boolean execute(Connection c) {
+			ByteBuffer in = c.in;
+			ByteBuffer out = c.out;
+			in.flip();
+			boolean full = false;
+			while (!c.closing && in.hasRemaining()) {
+				if (out.remaining() < (c.pending.size() + 1) * RESPONSE_SIZE) {
+					full = out.position() > 0;
+					break;
+				}
+				int op = in.get(in.position());
+				if (!c.pending.isEmpty() && !submitted(op)) {
+					break;
+				}
+				int size = requestSize(op);
+				if (size < 0) {
+					out.put((byte) Operations.INVALID_OPERATION).putLong(0);
+					c.closing = true;
+					break;
+				}
+				if (in.remaining() < size) {
+					break;
+				}
+				if (op == Operations.DEPOSIT || op == Operations.WITHDRAW
+						|| op == Operations.TRANSFER) {
+					if (!update(c, op, size)) {
+						break;
+					}
+					continue;
+				}
+				in.get();
+				if (op == AMOUNT) {
+					int i = in.getInt();
+					if (i < 0 || i >= bank.getAccountCount()) {
+						out.put((byte) Operations.INVALID_INDEX).putLong(0);
+					} else {
+						out.put((byte) Operations.OK)
+								.putLong(bank.getAmount(i));
+					}
+				} else if (op == TOTAL) {
+					out.put((byte) Operations.OK).putLong(
+							bank.getTotalAmount());
+				} else {
+					sum(in.getInt(), in.getInt(), out);
+				}
+			}
+			in.compact();
+			return full;
+		}
+
+		/**
+		 * Executes the deposit, withdrawal or transfer request at the start of
+		 * the input and puts its response, or submits it to be answered once
+		 * it completes. An invalid request is answered at once, so it waits
+		 * for the submitted changes to be answered first.
+		 * 
+		 * @param c
+		 *            connection
+		 * @param op
+		 *            operation code
+		 * @param size
+		 *            size of the request
+		 * @return false if the request is left in the input to wait for the
+		 *         submitted changes
+		 */
+		private boolean update(Connection c, int op, int size) {
+			ByteBuffer in = c.in;
+			ByteBuffer out = c.out;
+			int p = in.position();
+			int i = in.getInt(p + 1);
+			int j = op == Operations.TRANSFER ? in.getInt(p + 5) : i;
+			long amount = in.getLong(p + size - 8);
+			int n = bank.getAccountCount();
+			int result = Operations.OK;
+			if (i < 0 || i >= n || j < 0 || j >= n) {
+				result = Operations.INVALID_INDEX;
+			} else if (amount <= 0 || amount > Bank.MAX_AMOUNT) {
+				result = Operations.INVALID_AMOUNT;
+			}
+			if (result != Operations.OK && !c.pending.isEmpty()) {
+				return false;
+			}
+			in.position(p + size);
+			if (result != Operations.OK) {
+				out.put((byte) result).putLong(0);
+			} else if (async) {
+				CompletableFuture<?> future;
+				if (op == Operations.DEPOSIT) {
+					future = bank.depositAsync(i, amount);
+				} else if (op == Operations.WITHDRAW) {
+					future = bank.withdrawAsync(i, amount);
+				} else {
+					future = bank.transferAsync(i, j, amount);
+				}
+				c.pending.add(future);
+				future.whenComplete(c.callback);
+			} else {
+				put(op, i, j, amount, out);
+			}
+			return true;
+		}
+
+		/**
+		 * Executes a valid deposit, withdrawal or transfer and puts its
+		 * response.
+		 * 
+		 * @param op
+		 *            operation code
+		 * @param i
+		 *            account index
+		 * @param j
+		 *            target account index of a transfer
+		 * @param amount
+		 *            amount of the operation
+		 * @param out
+		 *            output buffer
+		 */
+		private void put(int op, int i, int j, long amount, ByteBuffer out) {
+			try {
+				long value = 0;
+				if (op == Operations.DEPOSIT) {
+					value = bank.deposit(i, amount);
+				} else if (op == Operations.WITHDRAW) {
+					value = bank.withdraw(i, amount);
+				} else {
+					bank.transfer(i, j, amount);
+				}
+				out.put((byte) Operations.OK).putLong(value);
+			} catch (IllegalStateException e) {
+				out.put((byte) status(e)).putLong(0);
+			}
+		}
+
+		/**
+		 * Sums a range of accounts in a new snapshot and puts the response.
+		 * 
+		 * @param from
+		 *            first account index, inclusive
+		 * @param to
+		 *            last account index, exclusive
+		 * @param out
+		 *            output buffer
+		 */
+		private void sum(int from, int to, ByteBuffer out) {
+			if (from < 0 || from > to || to > bank.getAccountCount()) {
+				out.put((byte) Operations.INVALID_INDEX).putLong(0);
+				return;
+			}
+			Snapshot s = bank.snapshot();
+			try {
+				out.put((byte) Operations.OK).putLong(s.sum(from, to));
+			} finally {
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * The bank served.
+	 */
+	private final Bank bank;
+
+	/**
+	 * Whether changes are submitted asynchronously, in
+	 * {@link ConcurrencyMode#SEQUENCER} mode.
+	 */
+	private final boolean async;
+
+	/**
+	 * Listening channel.
+	 */
+	private final ServerSocketChannel server;
+
+	/**
+	 * Selector threads; the first one also accepts the connections.
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * Worker to give the next connection to. Only used by the first worker.
+	 */
+	private int nextWorker;
+
+	/**
+	 * Whether the server is closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The first failure of a selector or of closing a channel, with the later
+	 * ones suppressed, or null.
+	 */
+	private IOException failure;
+
+	/**
+	 * Starts serving the bank.
+	 * 
+	 * @param bank
+	 *            the bank to serve
+	 * @param address
+	 *            address to listen on; port 0 picks a free port
+	 * @param threads
+	 *            the number of selector threads
+	 * @throws IOException
+	 *             when the address can't be bound.
+	 * @throws IllegalArgumentException
+	 *             when threads is not positive.
+	 */
+	public BankServer(Bank bank, InetSocketAddress address, int threads)
+			throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: "
+					+ threads);
+		}
+		this.bank = bank;
+		async = bank.getConcurrencyMode() == ConcurrencyMode.SEQUENCER;
+		server = ServerSocketChannel.open();
+		server.socket().bind(address);
+		server.configureBlocking(false);
+		workers = new Worker[threads];
+		for (int k = 0; k < threads; ++k) {
+			workers[k] = new Worker(k);
+		}
+		server.register(workers[0].selector, SelectionKey.OP_ACCEPT);
+		for (Worker worker : workers) {
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * 
+	 * @return local port
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the first failure of a selector thread or of closing a channel.
+	 * A selector thread stops on failure, closing its connections; a failure
+	 * of closing a channel only loses that channel. Failures of client
+	 * connections themselves only close the connections and are not kept.
+	 * 
+	 * @return the first failure with the later ones suppressed, or null
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Keeps a failure for {@link #getFailure()}.
+	 * 
+	 * @param e
+	 *            failure
+	 */
+	private synchronized void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		} else {
+			failure.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Checks whether the request is a change submitted asynchronously.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @return true for a deposit, a withdrawal or a transfer in
+	 *         {@link ConcurrencyMode#SEQUENCER} mode
+	 */
+	private boolean submitted(int op) {
+		return async
+				&& (op == Operations.DEPOSIT || op == Operations.WITHDRAW
+						|| op == Operations.TRANSFER);
+	}
+
+	/**
+	 * Returns the response code of a failed change.
+	 * 
+	 * @param e
+	 *            failure of the change
+	 * @return the reason of a rejection, or {@link Operations#UNAVAILABLE}
+	 */
+	private static int status(Throwable e) {
+		if (e instanceof RejectedOperationException) {
+			return ((RejectedOperationException) e).getReason();
+		}
+		return Operations.UNAVAILABLE;
+	}
+
+	/**
+	 * Returns the size of a request or -1 if the operation code is unknown.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @return size of the request in bytes, including the code
+	 */
+	private static int requestSize(int op) {
+		if (op == Operations.DEPOSIT || op == Operations.WITHDRAW) {
+			return 1 + 4 + 8;
+		}
+		if (op == Operations.TRANSFER) {
+			return 1 + 4 + 4 + 8;
+		}
+		if (op == AMOUNT) {
+			return 1 + 4;
+		}
+		if (op == TOTAL) {
+			return 1;
+		}
+		if (op == SUM) {
+			return 1 + 4 + 4;
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes the channel of the key.
+	 * 
+	 * @param key
+	 *            key of a connection
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		close(key.channel());
+	}
+
+	/**
+	 * Closes a channel, keeping the failure to close it.
+	 * 
+	 * @param channel
+	 *            channel to close
+	 */
+	private void close(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stops the selector threads and closes all the connections.
+	 * 
+	 * @throws IOException
+	 *             when the listening channel can't be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for (Worker worker : workers) {
+			worker.selector.wakeup();
+		}
+		for (Worker worker : workers) {
+			try {
+				worker.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		server.close();
+	}
+
+	/**
+	 * Serves a new in-memory bank.
+	 * 
+	 * @param args
+	 *            the number of accounts, the port and optionally the number of
+	 *            selector threads
+	 * @throws IOException
+	 *             when the port can't be bound.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 3) {
+			System.out.println("Usage: BankServer <n> <port> [<threads>]");
+			return;
+		}
+		int n;
+		int port;
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			n = Integer.parseInt(args[0]);
+			port = Integer.parseInt(args[1]);
+			if (args.length == 3) {
+				threads = Integer.parseInt(args[2]);
+			}
+		} catch (Exception e) {
+			System.out.println("Usage: BankServer <n> <port> [<threads>]");
+			return;
+		}
+		new BankServer(new Bank(n, ConcurrencyMode.STRIPED),
+				new InetSocketAddress(port), threads);
+		System.out.println("Serving " + n + " accounts on port " + port);
+		while (true) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of a {@link Bank}, collected once enabled by
+ * {@link Bank#enableStatistics()}. Latencies and waits are in nanoseconds.
+ */
+public class BankStatistics {
+	/**
+	 * Latency of deposits.
+	 */
+	private final Histogram deposits = new Histogram();
+
+	/**
+	 * Latency of withdrawals.
+	 */
+	private final Histogram withdrawals = new Histogram();
+
+	/**
+	 * Latency of transfers.
+	 */
+	private final Histogram transfers = new Histogram();
+
+	/**
+	 * Latency of batches.
+	 */
+	private final Histogram batches = new Histogram();
+
+	/**
+	 * Latency of multi-leg transactions.
+	 */
+	private final Histogram transactions = new Histogram();
+
+	/**
+	 * Time spent waiting for account locks or claims.
+	 */
+	private final Histogram lockWaits = new Histogram();
+
+	/**
+	 * Time spent waiting for another thread to publish a pushed change.
+	 */
+	private final Histogram publishWaits = new Histogram();
+
+	/**
+	 * Time to materialize a checkpoint and write its file.
+	 */
+	private final Histogram checkpoints = new Histogram();
+
+	/**
+	 * The number of events recorded between two checkpoints.
+	 */
+	private final Histogram eventLogLengths = new Histogram();
+
+	/**
+	 * The number of accounts touched between two checkpoints.
+	 */
+	private final Histogram eventLogAccounts = new Histogram();
+
+	/**
+	 * Counts of the rejected operations by {@link Operations} result code.
+	 */
+	private final AtomicLongArray rejected = new AtomicLongArray(
+			Operations.OVERFLOW + 1);
+
+	/**
+	 * Returns the latency of deposits.
+	 * 
+	 * @return deposit latency histogram
+	 */
+	public Histogram getDepositLatency() {
+		return deposits;
+	}
+
+	/**
+	 * Returns the latency of withdrawals.
+	 * 
+	 * @return withdrawal latency histogram
+	 */
+	public Histogram getWithdrawLatency() {
+		return withdrawals;
+	}
+
+	/**
+	 * Returns the latency of transfers.
+	 * 
+	 * @return transfer latency histogram
+	 */
+	public Histogram getTransferLatency() {
+		return transfers;
+	}
+
+	/**
+	 * Returns the latency of batches applied by
+	 * {@link Bank#applyBatch(int[], int[], int[], long[], int, int[])}.
+	 * 
+	 * @return batch latency histogram
+	 */
+	public Histogram getBatchLatency() {
+		return batches;
+	}
+
+	/**
+	 * Returns the latency of transactions applied by
+	 * {@link Bank#transact(int[], long[])}.
+	 * 
+	 * @return transaction latency histogram
+	 */
+	public Histogram getTransactionLatency() {
+		return transactions;
+	}
+
+	/**
+	 * Returns the time operations wait for account locks, or for account
+	 * claims in {@link ConcurrencyMode#SPIN_CLAIM} mode.
+	 * 
+	 * @return lock wait histogram
+	 */
+	public Histogram getLockWait() {
+		return lockWaits;
+	}
+
+	/**
+	 * Returns the time operations wait for another thread to publish their
+	 * pushed changes; operations publishing their changes themselves don't
+	 * wait.
+	 * 
+	 * @return publication wait histogram
+	 */
+	public Histogram getPublishWait() {
+		return publishWaits;
+	}
+
+	/**
+	 * Returns the time to materialize a checkpoint and write its file; its
+	 * count is the number of checkpoints taken.
+	 * 
+	 * @return checkpoint duration histogram
+	 */
+	public Histogram getCheckpointDuration() {
+		return checkpoints;
+	}
+
+	/**
+	 * Returns the number of events recorded between two checkpoints.
+	 * 
+	 * @return event log length histogram
+	 */
+	public Histogram getEventLogLength() {
+		return eventLogLengths;
+	}
+
+	/**
+	 * Returns the number of accounts touched between two checkpoints.
+	 * 
+	 * @return touched account count histogram
+	 */
+	public Histogram getEventLogAccounts() {
+		return eventLogAccounts;
+	}
+
+	/**
+	 * Returns the number of operations rejected for the specified reason.
+	 * 
+	 * @param reason
+	 *            {@link Operations} result code other than
+	 *            {@link Operations#OK}
+	 * @return the number of rejected operations
+	 * @throws IllegalArgumentException
+	 *             when reason is not an error code.
+	 */
+	public long getRejected(int reason) {
+		if (reason <= Operations.OK || reason > Operations.OVERFLOW) {
+			throw new IllegalArgumentException("Invalid reason: " + reason);
+		}
+		return rejected.get(reason);
+	}
+
+	/**
+	 * Counts a rejected operation.
+	 * 
+	 * @param reason
+	 *            {@link Operations} error code
+	 */
+	void reject(int reason) {
+		rejected.incrementAndGet(reason);
+	}
+}
@@ -0,0 +1,211 @@
+package ru.ifmo.pp.bank;
+
+import java.util.Arrays;
+
+/**
+ * Changes of the accounts made by one operation of a {@link Bank}, published
+ * as one version of the bank.
+ * 
+ * An operation applies its changes to the balances while it holds the
+ * accounts, and pushes them to the bank before releasing the accounts, so
+ * the changes of an account are pushed in the order they were applied. The
+ * pushed changes are published in that order, in batches, by whichever
+ * operation takes the publication lock first; the others only wait until
+ * {@link #published} is set. An operation finding no pushed changes and the
+ * lock free publishes its change itself instead of pushing it.
+ */
+final class Change {
+	/**
+	 * Accounts of the legs.
+	 */
+	private int[] accounts;
+
+	/**
+	 * Differences of the legs.
+	 */
+	private long[] differences;
+
+	/**
+	 * New amounts in the accounts of the legs.
+	 */
+	private long[] balances;
+
+	/**
+	 * The number of legs.
+	 */
+	private int count;
+
+	/**
+	 * Total change of money in the bank.
+	 */
+	private long total;
+
+	/**
+	 * Index of the account the change opens, or -1.
+	 */
+	private int opened;
+
+	/**
+	 * Next older pushed change, set while pending.
+	 */
+	Change next;
+
+	/**
+	 * Failure to record the change, set by the publisher.
+	 */
+	Throwable failure;
+
+	/**
+	 * Checkpoint started at the version of the change, set by the publisher
+	 * for the operation to materialize.
+	 */
+	Snapshot checkpoint;
+
+	/**
+	 * Whether the operation has pushed the change for another thread to
+	 * publish; only used by the operation.
+	 */
+	boolean pushed;
+
+	/**
+	 * Whether the pushed change is published, set by the publisher once it is
+	 * done with the change.
+	 */
+	volatile boolean published;
+
+	/**
+	 * Creates an empty change.
+	 * 
+	 * @param capacity
+	 *            the expected number of legs
+	 */
+	Change(int capacity) {
+		capacity = Math.max(capacity, 1);
+		accounts = new int[capacity];
+		differences = new long[capacity];
+		balances = new long[capacity];
+		opened = -1;
+	}
+
+	/**
+	 * Empties a published change for reuse by the same operation.
+	 * 
+	 * @return this change
+	 */
+	Change clear() {
+		count = 0;
+		total = 0;
+		opened = -1;
+		next = null;
+		failure = null;
+		checkpoint = null;
+		if (pushed) {
+			pushed = false;
+			published = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Checks whether the change is pushed and not yet published, so the
+	 * operation can't reuse it.
+	 * 
+	 * @return true if still pending
+	 */
+	boolean isPending() {
+		return pushed && !published;
+	}
+
+	/**
+	 * Adds a leg changing an account.
+	 * 
+	 * @param account
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 * @param balance
+	 *            new amount in account
+	 */
+	void add(int account, long difference, long balance) {
+		if (count == accounts.length) {
+			accounts = Arrays.copyOf(accounts, 2 * count);
+			differences = Arrays.copyOf(differences, 2 * count);
+			balances = Arrays.copyOf(balances, 2 * count);
+		}
+		accounts[count] = account;
+		differences[count] = difference;
+		balances[count] = balance;
+		++count;
+		total += difference;
+	}
+
+	/**
+	 * Makes the change open a new empty account.
+	 * 
+	 * @param account
+	 *            index of the new account
+	 */
+	void open(int account) {
+		opened = account;
+	}
+
+	/**
+	 * Returns the number of legs.
+	 * 
+	 * @return the number of legs
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Returns the account of a leg.
+	 * 
+	 * @param k
+	 *            leg number
+	 * @return account index
+	 */
+	int account(int k) {
+		return accounts[k];
+	}
+
+	/**
+	 * Returns the difference of a leg.
+	 * 
+	 * @param k
+	 *            leg number
+	 * @return change of the amount
+	 */
+	long difference(int k) {
+		return differences[k];
+	}
+
+	/**
+	 * Returns the new amount in the account of a leg.
+	 * 
+	 * @param k
+	 *            leg number
+	 * @return new amount in account
+	 */
+	long balance(int k) {
+		return balances[k];
+	}
+
+	/**
+	 * Returns the total change of money in the bank.
+	 * 
+	 * @return sum of the differences of the legs
+	 */
+	long total() {
+		return total;
+	}
+
+	/**
+	 * Returns the account the change opens.
+	 * 
+	 * @return index of the new account, or -1
+	 */
+	int opened() {
+		return opened;
+	}
+}
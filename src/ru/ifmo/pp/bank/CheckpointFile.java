@@ -0,0 +1,193 @@
+package ru.ifmo.pp.bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary file with the amounts of all the accounts as of a checkpoint.
+ * 
+ * The file starts with a header of a magic number, the number of accounts,
+ * the checkpoint version and the total amount, followed by the amounts in
+ * account order, all big-endian. A file is written next to its final name
+ * and renamed once forced, so a crash leaves either the old or the new
+ * checkpoint.
+ */
+final class CheckpointFile {
+	/**
+	 * Magic number starting the file.
+	 */
+	private static final int MAGIC = 0x42414e4b;
+
+	/**
+	 * Size of the header in bytes.
+	 */
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	/**
+	 * The number of pages written or mapped at once.
+	 */
+	private static final int CHUNK_PAGES = 1 << 12;
+
+	private CheckpointFile() {
+	}
+
+	/**
+	 * Writes a materialized checkpoint to the file.
+	 * 
+	 * @param file
+	 *            checkpoint file
+	 * @param checkpoint
+	 *            materialized checkpoint, acquired by the caller
+	 * @throws IOException
+	 *             when the file can't be written.
+	 */
+	static void write(File file, Snapshot checkpoint) throws IOException {
+		long[][] pages = checkpoint.pages();
+		int accounts = checkpoint.accounts();
+		long total = 0;
+		for (int i = 0; i < accounts; ++i) {
+			total += pages[i >>> Snapshot.PAGE_SHIFT][i
+					& (Snapshot.PAGE_SIZE - 1)];
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(accounts)
+					.putLong(checkpoint.getVersion()).putLong(total).flip();
+			writeFully(channel, header);
+			ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_PAGES
+					* Snapshot.PAGE_SIZE * 8);
+			LongBuffer longs = chunk.asLongBuffer();
+			for (int i = 0; i < accounts;) {
+				int length = Math.min(Snapshot.PAGE_SIZE, accounts - i);
+				longs.put(pages[i >>> Snapshot.PAGE_SHIFT], 0, length);
+				i += length;
+				if (!longs.hasRemaining() || i == accounts) {
+					chunk.limit(longs.position() * 8).position(0);
+					writeFully(channel, chunk);
+					chunk.clear();
+					longs.clear();
+				}
+			}
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Can't rename " + temporary + " to " + file);
+		}
+	}
+
+	/**
+	 * Writes all the remaining bytes of the buffer.
+	 * 
+	 * @param channel
+	 *            file channel
+	 * @param b
+	 *            buffer
+	 * @throws IOException
+	 *             when the file can't be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer b)
+			throws IOException {
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+	}
+
+	/**
+	 * Reads the number of accounts from the header of a checkpoint file.
+	 * 
+	 * @param file
+	 *            checkpoint file
+	 * @return the number of accounts
+	 * @throws IOException
+	 *             when the file can't be read or is corrupted.
+	 */
+	static int accounts(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < HEADER_SIZE || in.readInt() != MAGIC) {
+				throw new IOException("Corrupted checkpoint: " + file);
+			}
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a checkpoint file by memory-mapping it.
+	 * 
+	 * @param file
+	 *            checkpoint file
+	 * @param accounts
+	 *            expected number of accounts
+	 * @param pages
+	 *            pages to read the amounts to, as made by
+	 *            {@link Snapshot#emptyPages(int)}
+	 * @return checkpoint version
+	 * @throws IOException
+	 *             when the file can't be read or is corrupted.
+	 * @throws IllegalArgumentException
+	 *             when the file has another number of accounts.
+	 */
+	static long read(File file, int accounts, long[][] pages)
+			throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("Corrupted checkpoint: " + file);
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_SIZE);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Corrupted checkpoint: " + file);
+			}
+			int n = header.getInt();
+			if (n != accounts) {
+				throw new IllegalArgumentException(
+						"Invalid number of accounts: " + accounts
+								+ ", checkpoint has " + n);
+			}
+			long version = header.getLong();
+			long total = header.getLong();
+			if (channel.size() != HEADER_SIZE + 8L * accounts) {
+				throw new IOException("Corrupted checkpoint: " + file);
+			}
+			long sum = 0;
+			for (int first = 0; first < pages.length; first += CHUNK_PAGES) {
+				int from = first << Snapshot.PAGE_SHIFT;
+				int to = (int) Math.min(accounts,
+						(long) (first + CHUNK_PAGES) << Snapshot.PAGE_SHIFT);
+				LongBuffer longs = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_SIZE + 8L * from, 8L * (to - from))
+						.asLongBuffer();
+				for (int i = from; i < to;) {
+					int length = Math.min(Snapshot.PAGE_SIZE, to - i);
+					long[] page = new long[Snapshot.PAGE_SIZE];
+					longs.get(page, 0, length);
+					for (int k = 0; k < length; ++k) {
+						sum += page[k];
+					}
+					pages[i >>> Snapshot.PAGE_SHIFT] = page;
+					i += length;
+				}
+			}
+			if (sum != total) {
+				throw new IOException("Corrupted checkpoint: " + file);
+			}
+			return version;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ru.ifmo.pp.bank;
+
+/**
+ * Concurrency control used by a {@link Bank} for its mutating operations.
+ */
+public enum ConcurrencyMode {
+	/**
+	 * All the operations are serialized by a single bank-wide lock.
+	 */
+	SYNCHRONIZED,
+
+	/**
+	 * Accounts are guarded by a fixed number of striped locks, sized by the
+	 * number of processors rather than of accounts, so operations on
+	 * accounts of different stripes run in parallel however the bank grows.
+	 */
+	STRIPED,
+
+	/**
+	 * No lock objects: an operation validates the new balance and claims the
+	 * account with a compare-and-set on a bit of its balance word, yielding
+	 * while another operation holds the claim. A claim is a spin lock per
+	 * account, so the mode is not lock-free, but operations on different
+	 * accounts don't take turns: an operation pushes its change before
+	 * clearing the claim, and the pushed changes get their versions in
+	 * batches from whichever operation finds the publication free, like in
+	 * the other modes.
+	 */
+	SPIN_CLAIM,
+
+	/**
+	 * Deposits, withdrawals and transfers are published into a ring buffer and
+	 * applied in sequence by a single writer thread, which takes no locks and
+	 * finishes a whole run of queued operations at once. Batches,
+	 * transactions and the transfers of a {@link ShardedBank} pause the
+	 * writer while they change the balances.
+	 * 
+	 * This is not a throughput mode: every operation is handed to the writer
+	 * and back, which costs more than the locks of the other modes, so
+	 * blocking callers are several times slower than in
+	 * {@link #SYNCHRONIZED} mode. It is meant for asynchronous callers, like
+	 * an event loop, which need the futures of their operations completed by
+	 * one thread in the order of submission without blocking.
+	 */
+	SEQUENCER
+}
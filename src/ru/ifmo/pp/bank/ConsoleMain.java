@@ -1,312 +1,792 @@
-package ru.ifmo.pp.bank;
-
-import java.util.HashMap;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
-
-/**
- * Console utility to test {@link Bank} methods.
- */
-public class ConsoleMain {
-	/**
-	 * A bank instance to test {@link Bank} methods
-	 */
-	private static Bank bank;
-
-	/**
-	 * A collection of snapshots made.
-	 */
-	private static HashMap<String, Snapshot> snapshots;
-
-	/**
-	 * Tries to deposit some amount of money to the specified account.
-	 * 
-	 * @param command
-	 *            {"deposit", account, amount}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryDeposit(String[] command) {
-		if (command.length != 3) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("deposit") != 0) {
-			return false;
-		}
-		int account;
-		long amount;
-		try {
-			account = Integer.parseInt(command[1]);
-			amount = Long.parseLong(command[2]);
-		} catch (Exception e) {
-			return false;
-		}
-		try {
-			System.out.println("Successful deposit of size " + amount
-					+ " to account " + account + ", total money: "
-					+ bank.deposit(account, amount));
-		} catch (Exception e) {
-			String message = e.getMessage();
-			System.out.println("Invalid operation: "
-					+ (message == null ? "undefined" : message));
-		}
-		return true;
-	}
-
-	/**
-	 * Tries to withdraw some amount of money from the specified account.
-	 * 
-	 * @param command
-	 *            {"withdraw", account, amount}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryWithdraw(String[] command) {
-		if (command.length != 3) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("withdraw") != 0) {
-			return false;
-		}
-		int account;
-		long amount;
-		try {
-			account = Integer.parseInt(command[1]);
-			amount = Long.parseLong(command[2]);
-		} catch (Exception e) {
-			return false;
-		}
-		try {
-			System.out.println("Successful withdraw of size " + amount
-					+ " from account " + account + ", money left: "
-					+ bank.withdraw(account, amount));
-		} catch (Exception e) {
-			String message = e.getMessage();
-			System.out.println("Invalid operation: "
-					+ (message == null ? "undefined" : message));
-		}
-		return true;
-	}
-
-	/**
-	 * Tries to transfer some amount of money from one specified account to
-	 * another.
-	 * 
-	 * @param command
-	 *            {"transfer", accountFrom, accountTo, amount}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryTransfer(String[] command) {
-		if (command.length != 4) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("transfer") != 0) {
-			return false;
-		}
-		int from, to;
-		long amount;
-		try {
-			from = Integer.parseInt(command[1]);
-			to = Integer.parseInt(command[2]);
-			amount = Long.parseLong(command[3]);
-		} catch (Exception e) {
-			return false;
-		}
-		try {
-			bank.transfer(from, to, amount);
-			System.out.println("Successful transfer of size " + amount
-					+ " from account " + from + " to account " + to);
-		} catch (Exception e) {
-			String message = e.getMessage();
-			System.out.println("Invalid operation: "
-					+ (message == null ? "undefined" : message));
-		}
-		return true;
-	}
-
-	/**
-	 * Tries to get the amount of money on some deposit.
-	 * 
-	 * @param command
-	 *            {"amount", account}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryGetAmount(String[] command) {
-		if (command.length != 2) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("amount") != 0) {
-			return false;
-		}
-		int account;
-		try {
-			account = Integer.parseInt(command[1]);
-		} catch (Exception e) {
-			return false;
-		}
-		try {
-			System.out.println("Money on deposit " + account + ": "
-					+ bank.getAmount(account));
-		} catch (Exception e) {
-			String message = e.getMessage();
-			System.out.println("Invalid operation: "
-					+ (message == null ? "undefined" : message));
-		}
-		return true;
-	}
-
-	/**
-	 * Tries to get the total amount of money in the bank.
-	 * 
-	 * @param command
-	 *            {"total"}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryGetTotalAmount(String[] command) {
-		if (command.length != 1) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("total") != 0) {
-			return false;
-		}
-		System.out.println("Total money on deposits: " + bank.getTotalAmount());
-		return true;
-	}
-
-	/**
-	 * Tries to do some snapshot-related operation.
-	 * 
-	 * @param command
-	 *            {"snapshot", ...}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean trySnapshot(String[] command) {
-		if (command.length == 0) {
-			return false;
-		}
-		if (command[0].toLowerCase().compareTo("snapshot") != 0) {
-			return false;
-		}
-		return trySnapshotMake(command) || trySnapshotGetAmount(command);
-	}
-
-	/**
-	 * Tries to make a new snapshot.
-	 * 
-	 * @param command
-	 *            {"snapshot", "make", id}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean trySnapshotMake(String[] command) {
-		if (command.length != 3) {
-			return false;
-		}
-		if (command[1].toLowerCase().compareTo("make") != 0) {
-			return false;
-		}
-		snapshots.put(command[2], bank.snapshot());
-		System.out.println("Snapshot " + command[2]
-				+ " has been successfully created.");
-		return true;
-	}
-
-	/**
-	 * Tries to check some deposit from the specified snapshot.
-	 * 
-	 * @param command
-	 *            {"snapshot", "amount", id, account}
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean trySnapshotGetAmount(String[] command) {
-		if (command.length != 4) {
-			return false;
-		}
-		if (command[1].toLowerCase().compareTo("amount") != 0) {
-			return false;
-		}
-		int account;
-		try {
-			account = Integer.parseInt(command[3]);
-		} catch (Exception e) {
-			return false;
-		}
-		if (!snapshots.containsKey(command[2])) {
-			System.out.println("Snapshot " + command[2] + " does not exist.");
-		} else {
-			try {
-				System.out.println("Total money on deposit " + account
-						+ " of snapshot " + command[2] + ": "
-						+ snapshots.get(command[2]).getAmount(account));
-			} catch (Exception e) {
-				String message = e.getMessage();
-				System.out.println("Invalid operation: "
-						+ (message == null ? "undefined" : message));
-			}
-		}
-		return true;
-	}
-
-	/**
-	 * Prints help.
-	 * 
-	 * @param command
-	 *            {"help"}
-	 * 
-	 * @return false if the command has wrong format, true otherwise
-	 */
-	private static boolean tryHelp(String[] command) {
-		if (command.length != 1
-				|| command[0].toLowerCase().compareTo("help") != 0) {
-			return false;
-		}
-		System.out.println("Commands available:");
-		System.out.println("deposit <account> <amount>,");
-		System.out.println("withdraw <account> <amount>,");
-		System.out.println("transfer <accountFrom> <accountTo> <amount>,");
-		System.out.println("amount <account>,");
-		System.out.println("total,");
-		System.out.println("snapshot make <id>,");
-		System.out.println("snapshot amount <id> <account>,");
-		System.out.println("help,");
-		System.out.println("quit.");
-		return true;
-	}
-
-	public static void main(String[] args) {
-		if (args.length != 1) {
-			System.out.println("Usage: ConsoleMain <n>");
-			return;
-		}
-		int n;
-		try {
-			n = Integer.parseInt(args[0]);
-		} catch (Exception e) {
-			System.out.println("Usage: ConsoleMain <n>");
-			return;
-		}
-		bank = new Bank(n);
-		snapshots = new HashMap<String, Snapshot>();
-		Scanner sc = new Scanner(System.in);
-		while (true) {
-			String s;
-			try {
-				s = sc.nextLine();
-			} catch (NoSuchElementException e) {
-				break;
-			}
-			if (s == null) {
-				break;
-			}
-			String[] command = s.split(" ");
-			if (command.length == 1
-					&& command[0].toLowerCase().compareTo("quit") == 0) {
-				break;
-			}
-			if (tryDeposit(command) || tryWithdraw(command)
-					|| tryTransfer(command) || tryGetAmount(command)
-					|| tryGetTotalAmount(command) || trySnapshot(command)
-					|| tryHelp(command)) {
-				continue;
-			}
-			System.out.println("Invalid command");
-		}
-	}
-}
+package ru.ifmo.pp.bank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Console utility to test {@link Bank} methods.
+ */
+public class ConsoleMain {
+	/**
+	 * A bank instance to test {@link Bank} methods
+	 */
+	private static Bank bank;
+
+	/**
+	 * A collection of snapshots made.
+	 */
+	private static HashMap<String, Snapshot> snapshots;
+
+	/**
+	 * Command words of the script mode.
+	 */
+	private static final String[] WORDS = { "deposit", "withdraw",
+			"transfer", "amount", "total", "stats", "snapshot", "help",
+			"quit" };
+
+	/**
+	 * Index of "deposit" in {@link #WORDS}.
+	 */
+	private static final int DEPOSIT = 0;
+
+	/**
+	 * Index of "withdraw" in {@link #WORDS}.
+	 */
+	private static final int WITHDRAW = 1;
+
+	/**
+	 * Index of "transfer" in {@link #WORDS}.
+	 */
+	private static final int TRANSFER = 2;
+
+	/**
+	 * Index of "amount" in {@link #WORDS}.
+	 */
+	private static final int AMOUNT = 3;
+
+	/**
+	 * Index of "total" in {@link #WORDS}.
+	 */
+	private static final int TOTAL = 4;
+
+	/**
+	 * Index of "stats" in {@link #WORDS}.
+	 */
+	private static final int STATS = 5;
+
+	/**
+	 * Index of "snapshot" in {@link #WORDS}.
+	 */
+	private static final int SNAPSHOT = 6;
+
+	/**
+	 * Index of "help" in {@link #WORDS}.
+	 */
+	private static final int HELP = 7;
+
+	/**
+	 * Index of "quit" in {@link #WORDS}.
+	 */
+	private static final int QUIT = 8;
+
+	/**
+	 * Size of the input and the output buffer of the script mode.
+	 */
+	private static final int SCRIPT_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Tries to deposit some amount of money to the specified account.
+	 * 
+	 * @param command
+	 *            {"deposit", account, amount}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryDeposit(String[] command) {
+		if (command.length != 3) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("deposit") != 0) {
+			return false;
+		}
+		int account;
+		long amount;
+		try {
+			account = Integer.parseInt(command[1]);
+			amount = Long.parseLong(command[2]);
+		} catch (Exception e) {
+			return false;
+		}
+		try {
+			System.out.println("Successful deposit of size " + amount
+					+ " to account " + account + ", total money: "
+					+ bank.deposit(account, amount));
+		} catch (Exception e) {
+			String message = e.getMessage();
+			System.out.println("Invalid operation: "
+					+ (message == null ? "undefined" : message));
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to withdraw some amount of money from the specified account.
+	 * 
+	 * @param command
+	 *            {"withdraw", account, amount}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryWithdraw(String[] command) {
+		if (command.length != 3) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("withdraw") != 0) {
+			return false;
+		}
+		int account;
+		long amount;
+		try {
+			account = Integer.parseInt(command[1]);
+			amount = Long.parseLong(command[2]);
+		} catch (Exception e) {
+			return false;
+		}
+		try {
+			System.out.println("Successful withdraw of size " + amount
+					+ " from account " + account + ", money left: "
+					+ bank.withdraw(account, amount));
+		} catch (Exception e) {
+			String message = e.getMessage();
+			System.out.println("Invalid operation: "
+					+ (message == null ? "undefined" : message));
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to transfer some amount of money from one specified account to
+	 * another.
+	 * 
+	 * @param command
+	 *            {"transfer", accountFrom, accountTo, amount}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryTransfer(String[] command) {
+		if (command.length != 4) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("transfer") != 0) {
+			return false;
+		}
+		int from, to;
+		long amount;
+		try {
+			from = Integer.parseInt(command[1]);
+			to = Integer.parseInt(command[2]);
+			amount = Long.parseLong(command[3]);
+		} catch (Exception e) {
+			return false;
+		}
+		try {
+			bank.transfer(from, to, amount);
+			System.out.println("Successful transfer of size " + amount
+					+ " from account " + from + " to account " + to);
+		} catch (Exception e) {
+			String message = e.getMessage();
+			System.out.println("Invalid operation: "
+					+ (message == null ? "undefined" : message));
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to get the amount of money on some deposit.
+	 * 
+	 * @param command
+	 *            {"amount", account}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryGetAmount(String[] command) {
+		if (command.length != 2) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("amount") != 0) {
+			return false;
+		}
+		int account;
+		try {
+			account = Integer.parseInt(command[1]);
+		} catch (Exception e) {
+			return false;
+		}
+		try {
+			System.out.println("Money on deposit " + account + ": "
+					+ bank.getAmount(account));
+		} catch (Exception e) {
+			String message = e.getMessage();
+			System.out.println("Invalid operation: "
+					+ (message == null ? "undefined" : message));
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to get the total amount of money in the bank.
+	 * 
+	 * @param command
+	 *            {"total"}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryGetTotalAmount(String[] command) {
+		if (command.length != 1) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("total") != 0) {
+			return false;
+		}
+		System.out.println("Total money on deposits: " + bank.getTotalAmount());
+		return true;
+	}
+
+	/**
+	 * Tries to print the statistics of the bank.
+	 * 
+	 * @param command
+	 *            {"stats"}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryStats(String[] command) {
+		if (command.length != 1) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("stats") != 0) {
+			return false;
+		}
+		BankStatistics stats = bank.getStatistics();
+		if (stats == null) {
+			System.out.println("Statistics are disabled.");
+			return true;
+		}
+		printLatency("deposit", stats.getDepositLatency());
+		printLatency("withdraw", stats.getWithdrawLatency());
+		printLatency("transfer", stats.getTransferLatency());
+		printLatency("lock wait", stats.getLockWait());
+		printLatency("publish wait", stats.getPublishWait());
+		printLatency("checkpoint", stats.getCheckpointDuration());
+		Histogram events = stats.getEventLogLength();
+		System.out.println("events per checkpoint: mean "
+				+ Math.round(events.getMean()) + ", max " + events.getMax());
+		System.out.println("rejected: invalid index "
+				+ stats.getRejected(Operations.INVALID_INDEX)
+				+ ", invalid amount "
+				+ stats.getRejected(Operations.INVALID_AMOUNT)
+				+ ", not enough money "
+				+ stats.getRejected(Operations.NOT_ENOUGH_MONEY)
+				+ ", overflow " + stats.getRejected(Operations.OVERFLOW));
+		return true;
+	}
+
+	/**
+	 * Prints the count and the percentiles of a latency histogram in
+	 * microseconds.
+	 * 
+	 * @param name
+	 *            what was measured
+	 * @param h
+	 *            histogram of nanoseconds
+	 */
+	private static void printLatency(String name, Histogram h) {
+		System.out.println(name + ": count " + h.getCount() + ", p50 "
+				+ h.getValueAtPercentile(50) / 1000 + " us, p99 "
+				+ h.getValueAtPercentile(99) / 1000 + " us, max "
+				+ h.getMax() / 1000 + " us");
+	}
+
+	/**
+	 * Tries to do some snapshot-related operation.
+	 * 
+	 * @param command
+	 *            {"snapshot", ...}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean trySnapshot(String[] command) {
+		if (command.length == 0) {
+			return false;
+		}
+		if (command[0].toLowerCase().compareTo("snapshot") != 0) {
+			return false;
+		}
+		return trySnapshotMake(command) || trySnapshotGetAmount(command)
+				|| trySnapshotSum(command) || trySnapshotClose(command);
+	}
+
+	/**
+	 * Tries to make a new snapshot.
+	 * 
+	 * @param command
+	 *            {"snapshot", "make", id}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean trySnapshotMake(String[] command) {
+		if (command.length != 3) {
+			return false;
+		}
+		if (command[1].toLowerCase().compareTo("make") != 0) {
+			return false;
+		}
+		Snapshot old = snapshots.put(command[2], bank.snapshot());
+		if (old != null) {
+			old.close();
+		}
+		System.out.println("Snapshot " + command[2]
+				+ " has been successfully created.");
+		return true;
+	}
+
+	/**
+	 * Tries to close a snapshot, so the bank can release its data.
+	 * 
+	 * @param command
+	 *            {"snapshot", "close", id}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean trySnapshotClose(String[] command) {
+		if (command.length != 3) {
+			return false;
+		}
+		if (command[1].toLowerCase().compareTo("close") != 0) {
+			return false;
+		}
+		Snapshot snapshot = snapshots.remove(command[2]);
+		if (snapshot == null) {
+			System.out.println("Snapshot " + command[2] + " does not exist.");
+		} else {
+			snapshot.close();
+			System.out.println("Snapshot " + command[2]
+					+ " has been successfully closed.");
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to check some deposit from the specified snapshot.
+	 * 
+	 * @param command
+	 *            {"snapshot", "amount", id, account}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean trySnapshotGetAmount(String[] command) {
+		if (command.length != 4) {
+			return false;
+		}
+		if (command[1].toLowerCase().compareTo("amount") != 0) {
+			return false;
+		}
+		int account;
+		try {
+			account = Integer.parseInt(command[3]);
+		} catch (Exception e) {
+			return false;
+		}
+		if (!snapshots.containsKey(command[2])) {
+			System.out.println("Snapshot " + command[2] + " does not exist.");
+		} else {
+			try {
+				System.out.println("Total money on deposit " + account
+						+ " of snapshot " + command[2] + ": "
+						+ snapshots.get(command[2]).getAmount(account));
+			} catch (Exception e) {
+				String message = e.getMessage();
+				System.out.println("Invalid operation: "
+						+ (message == null ? "undefined" : message));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to sum the deposits in the range of accounts from the specified
+	 * snapshot.
+	 * 
+	 * @param command
+	 *            {"snapshot", "sum", id, accountFrom, accountTo}
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean trySnapshotSum(String[] command) {
+		if (command.length != 5) {
+			return false;
+		}
+		if (command[1].toLowerCase().compareTo("sum") != 0) {
+			return false;
+		}
+		int from, to;
+		try {
+			from = Integer.parseInt(command[3]);
+			to = Integer.parseInt(command[4]);
+		} catch (Exception e) {
+			return false;
+		}
+		if (!snapshots.containsKey(command[2])) {
+			System.out.println("Snapshot " + command[2] + " does not exist.");
+		} else {
+			try {
+				System.out.println("Total money on deposits " + from + ".."
+						+ to + " of snapshot " + command[2] + ": "
+						+ snapshots.get(command[2]).sum(from, to));
+			} catch (Exception e) {
+				String message = e.getMessage();
+				System.out.println("Invalid operation: "
+						+ (message == null ? "undefined" : message));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Prints help.
+	 * 
+	 * @param command
+	 *            {"help"}
+	 * 
+	 * @return false if the command has wrong format, true otherwise
+	 */
+	private static boolean tryHelp(String[] command) {
+		if (command.length != 1
+				|| command[0].toLowerCase().compareTo("help") != 0) {
+			return false;
+		}
+		System.out.println("Commands available:");
+		System.out.println("deposit <account> <amount>,");
+		System.out.println("withdraw <account> <amount>,");
+		System.out.println("transfer <accountFrom> <accountTo> <amount>,");
+		System.out.println("amount <account>,");
+		System.out.println("total,");
+		System.out.println("stats,");
+		System.out.println("snapshot make <id>,");
+		System.out.println("snapshot amount <id> <account>,");
+		System.out.println("snapshot sum <id> <accountFrom> <accountTo>,");
+		System.out.println("snapshot close <id>,");
+		System.out.println("help,");
+		System.out.println("quit.");
+		return true;
+	}
+
+	/**
+	 * Executes a script of commands, one per line, and prints their results
+	 * like the interactive mode does, followed by the throughput. Statistics
+	 * are not collected in this mode.
+	 * 
+	 * @param file
+	 *            script file
+	 * @param quiet
+	 *            whether to omit the output of successful changes
+	 * @throws IOException
+	 *             when the script can't be read.
+	 */
+	private static void runScript(File file, boolean quiet)
+			throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out),
+				SCRIPT_BUFFER_SIZE);
+		StringBuilder line = new StringBuilder();
+		char[] chars = new char[256];
+		long commands = 0;
+		long start = System.nanoTime();
+		InputStream in = new FileInputStream(file);
+		try {
+			ScriptTokenizer t = new ScriptTokenizer(in, SCRIPT_BUFFER_SIZE);
+			while (t.next()) {
+				int word = t.count() == 0 ? -1 : t.match(0, WORDS);
+				if (word == QUIT && t.count() == 1) {
+					break;
+				}
+				++commands;
+				if ((word == HELP || word == STATS) && t.count() == 1) {
+					out.flush();
+					if (word == HELP) {
+						tryHelp(new String[] { "help" });
+					} else {
+						tryStats(new String[] { "stats" });
+					}
+					continue;
+				}
+				line.setLength(0);
+				executeScript(t, word, quiet, line);
+				if (line.length() == 0) {
+					continue;
+				}
+				line.append('\n');
+				if (chars.length < line.length()) {
+					chars = new char[2 * line.length()];
+				}
+				line.getChars(0, line.length(), chars, 0);
+				out.write(chars, 0, line.length());
+			}
+		} finally {
+			in.close();
+		}
+		long time = Math.max(1, System.nanoTime() - start);
+		out.write("Executed " + commands + " commands in " + time / 1000000
+				+ " ms, " + commands * 1000000000L / time + " commands/s\n");
+		out.flush();
+	}
+
+	/**
+	 * Executes a command of the script mode.
+	 * 
+	 * @param t
+	 *            tokenizer at the line of the command
+	 * @param word
+	 *            index of the command word in {@link #WORDS} or -1
+	 * @param quiet
+	 *            whether to omit the output of successful changes
+	 * @param line
+	 *            empty builder to put the output line to
+	 */
+	private static void executeScript(ScriptTokenizer t, int word,
+			boolean quiet, StringBuilder line) {
+		int count = t.count();
+		try {
+			if ((word == DEPOSIT || word == WITHDRAW) && count == 3) {
+				int account = (int) t.parse(1, Integer.MIN_VALUE,
+						Integer.MAX_VALUE);
+				long amount = t.parse(2, Long.MIN_VALUE, Long.MAX_VALUE);
+				try {
+					if (word == DEPOSIT) {
+						long result = bank.deposit(account, amount);
+						if (!quiet) {
+							line.append("Successful deposit of size ")
+									.append(amount).append(" to account ")
+									.append(account)
+									.append(", total money: ").append(result);
+						}
+					} else {
+						long result = bank.withdraw(account, amount);
+						if (!quiet) {
+							line.append("Successful withdraw of size ")
+									.append(amount).append(" from account ")
+									.append(account)
+									.append(", money left: ").append(result);
+						}
+					}
+				} catch (Exception e) {
+					invalidOperation(e, line);
+				}
+			} else if (word == TRANSFER && count == 4) {
+				int from = (int) t.parse(1, Integer.MIN_VALUE,
+						Integer.MAX_VALUE);
+				int to = (int) t.parse(2, Integer.MIN_VALUE, Integer.MAX_VALUE);
+				long amount = t.parse(3, Long.MIN_VALUE, Long.MAX_VALUE);
+				try {
+					bank.transfer(from, to, amount);
+					if (!quiet) {
+						line.append("Successful transfer of size ")
+								.append(amount).append(" from account ")
+								.append(from).append(" to account ").append(to);
+					}
+				} catch (Exception e) {
+					invalidOperation(e, line);
+				}
+			} else if (word == AMOUNT && count == 2) {
+				int account = (int) t.parse(1, Integer.MIN_VALUE,
+						Integer.MAX_VALUE);
+				try {
+					long result = bank.getAmount(account);
+					line.append("Money on deposit ").append(account)
+							.append(": ").append(result);
+				} catch (Exception e) {
+					invalidOperation(e, line);
+				}
+			} else if (word == TOTAL && count == 1) {
+				line.append("Total money on deposits: ").append(
+						bank.getTotalAmount());
+			} else if (word == SNAPSHOT && count >= 3) {
+				executeScriptSnapshot(t, quiet, line);
+			} else {
+				line.append("Invalid command");
+			}
+		} catch (NumberFormatException e) {
+			line.setLength(0);
+			line.append("Invalid command");
+		}
+	}
+
+	/**
+	 * Executes a snapshot command of the script mode.
+	 * 
+	 * @param t
+	 *            tokenizer at the line of the command
+	 * @param quiet
+	 *            whether to omit the output of successful changes
+	 * @param line
+	 *            empty builder to put the output line to
+	 * @throws NumberFormatException
+	 *             when an account index is not a number.
+	 */
+	private static void executeScriptSnapshot(ScriptTokenizer t,
+			boolean quiet, StringBuilder line) {
+		int count = t.count();
+		if (count == 3 && t.is(1, "make")) {
+			String id = t.token(2);
+			Snapshot old = snapshots.put(id, bank.snapshot());
+			if (old != null) {
+				old.close();
+			}
+			if (!quiet) {
+				line.append("Snapshot ").append(id)
+						.append(" has been successfully created.");
+			}
+		} else if (count == 3 && t.is(1, "close")) {
+			String id = t.token(2);
+			Snapshot snapshot = snapshots.remove(id);
+			if (snapshot == null) {
+				line.append("Snapshot ").append(id).append(" does not exist.");
+			} else {
+				snapshot.close();
+				if (!quiet) {
+					line.append("Snapshot ").append(id)
+							.append(" has been successfully closed.");
+				}
+			}
+		} else if (count == 4 && t.is(1, "amount")) {
+			int account = (int) t.parse(3, Integer.MIN_VALUE,
+					Integer.MAX_VALUE);
+			String id = t.token(2);
+			Snapshot snapshot = snapshots.get(id);
+			if (snapshot == null) {
+				line.append("Snapshot ").append(id).append(" does not exist.");
+				return;
+			}
+			try {
+				long result = snapshot.getAmount(account);
+				line.append("Total money on deposit ").append(account)
+						.append(" of snapshot ").append(id).append(": ")
+						.append(result);
+			} catch (Exception e) {
+				invalidOperation(e, line);
+			}
+		} else if (count == 5 && t.is(1, "sum")) {
+			int from = (int) t.parse(3, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			int to = (int) t.parse(4, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			String id = t.token(2);
+			Snapshot snapshot = snapshots.get(id);
+			if (snapshot == null) {
+				line.append("Snapshot ").append(id).append(" does not exist.");
+				return;
+			}
+			try {
+				long result = snapshot.sum(from, to);
+				line.append("Total money on deposits ").append(from)
+						.append("..").append(to).append(" of snapshot ")
+						.append(id).append(": ").append(result);
+			} catch (Exception e) {
+				invalidOperation(e, line);
+			}
+		} else {
+			line.append("Invalid command");
+		}
+	}
+
+	/**
+	 * Puts the message of a rejected operation.
+	 * 
+	 * @param e
+	 *            exception thrown by the operation
+	 * @param line
+	 *            builder to put the message to
+	 */
+	private static void invalidOperation(Exception e, StringBuilder line) {
+		String message = e.getMessage();
+		line.setLength(0);
+		line.append("Invalid operation: ").append(
+				message == null ? "undefined" : message);
+	}
+
+	public static void main(String[] args) {
+		String usage = "Usage: ConsoleMain [--script <file> [--quiet]] <n> "
+				+ "[<directory>]";
+		File script = null;
+		boolean quiet = false;
+		int first = 0;
+		while (first < args.length && args[first].startsWith("--")) {
+			if (args[first].equals("--script") && first + 1 < args.length) {
+				script = new File(args[first + 1]);
+				first += 2;
+			} else if (args[first].equals("--quiet")) {
+				quiet = true;
+				++first;
+			} else {
+				System.out.println(usage);
+				return;
+			}
+		}
+		if (args.length - first != 1 && args.length - first != 2) {
+			System.out.println(usage);
+			return;
+		}
+		int n;
+		try {
+			n = Integer.parseInt(args[first]);
+		} catch (Exception e) {
+			System.out.println(usage);
+			return;
+		}
+		WriteAheadLog wal = null;
+		if (args.length - first == 1) {
+			bank = new Bank(n);
+		} else {
+			try {
+				File directory = new File(args[first + 1]);
+				wal = new WriteAheadLog(new File(directory, "bank.wal"));
+				bank = Bank.restore(n, ConcurrencyMode.SYNCHRONIZED, wal,
+						new File(directory, "bank.checkpoint"));
+			} catch (Exception e) {
+				System.out.println("Can't restore the bank: " + e.getMessage());
+				return;
+			}
+			Snapshot restored = bank.snapshot();
+			System.out.println("Restored bank at version "
+					+ restored.getVersion() + ", total money: "
+					+ bank.getTotalAmount());
+			restored.close();
+		}
+		snapshots = new HashMap<String, Snapshot>();
+		if (script != null) {
+			try {
+				runScript(script, quiet);
+			} catch (IOException e) {
+				System.out.println("Can't read the script: " + e.getMessage());
+			}
+			closeLog(wal);
+			return;
+		}
+		bank.enableStatistics();
+		Scanner sc = new Scanner(System.in);
+		while (true) {
+			String s;
+			try {
+				s = sc.nextLine();
+			} catch (NoSuchElementException e) {
+				break;
+			}
+			if (s == null) {
+				break;
+			}
+			String[] command = ScriptTokenizer.split(s);
+			if (command.length == 1
+					&& command[0].toLowerCase().compareTo("quit") == 0) {
+				break;
+			}
+			if (tryDeposit(command) || tryWithdraw(command)
+					|| tryTransfer(command) || tryGetAmount(command)
+					|| tryGetTotalAmount(command) || tryStats(command)
+					|| trySnapshot(command) || tryHelp(command)) {
+				continue;
+			}
+			System.out.println("Invalid command");
+		}
+		closeLog(wal);
+	}
+
+	/**
+	 * Closes the write-ahead log of the bank, if any.
+	 * 
+	 * @param wal
+	 *            write-ahead log or null
+	 */
+	private static void closeLog(WriteAheadLog wal) {
+		if (wal != null) {
+			try {
+				wal.close();
+			} catch (IOException e) {
+				System.out.println("Can't close the log: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Change events of the accounts touched since a checkpoint, stored as
+ * parallel primitive arrays of versions and running sums of differences per
+ * account. Versions of an account only grow, so the total change up to any
+ * version is found by a binary search and a single lookup.
+ * 
+ * Account logs are found through an open addressing table, so the memory
+ * used by the log is proportional to the number of touched accounts rather
+ * than to the number of accounts in the bank.
+ * 
+ * Events are appended by one writer at a time, in version order, while any
+ * number of readers may scan the log concurrently. An account log is fully
+ * built before it is stored into the table, and the table, the arrays and
+ * the sizes are all read through volatile or atomic accesses, so a reader
+ * never sees a partially built log.
+ */
+class EventLog {
+	/**
+	 * Initial capacity of an account log.
+	 */
+	private static final int INITIAL_CAPACITY = 2;
+
+	/**
+	 * Initial size of the account table.
+	 */
+	private static final int INITIAL_TABLE_SIZE = 16;
+
+	/**
+	 * Events of one account.
+	 */
+	private static class AccountLog {
+		/**
+		 * Account index.
+		 */
+		private int account;
+
+		/**
+		 * Versions of the events. Replaced by a longer copy when full.
+		 */
+		private volatile long[] versions;
+
+		/**
+		 * Running sums of the differences: sums[i] is the total change made by
+		 * the events 0..i. Replaced by a longer copy when full.
+		 */
+		private volatile long[] sums;
+
+		/**
+		 * The number of events. An event is visible to readers once the size
+		 * covers it.
+		 */
+		private volatile int size;
+
+		/**
+		 * Creates an empty account log.
+		 * 
+		 * @param account
+		 *            account index
+		 */
+		AccountLog(int account) {
+			this.account = account;
+			versions = new long[INITIAL_CAPACITY];
+			sums = new long[INITIAL_CAPACITY];
+		}
+
+		/**
+		 * Returns the total change made by the events with version not
+		 * greater than the specified one.
+		 * 
+		 * @param version
+		 *            bank version
+		 * @return sum of the differences
+		 */
+		long sum(long version) {
+			int size = this.size;
+			long[] v = versions;
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (v[middle] <= version) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low == 0 ? 0 : sums[low - 1];
+		}
+	}
+
+	/**
+	 * Account logs hashed by account index, with linear probing. Replaced by
+	 * a larger table when half full.
+	 */
+	private volatile AtomicReferenceArray<AccountLog> table;
+
+	/**
+	 * Account logs in the order the accounts were touched. Replaced by a
+	 * longer copy when full.
+	 */
+	private volatile AccountLog[] touched;
+
+	/**
+	 * The number of touched accounts.
+	 */
+	private volatile int touchedCount;
+
+	/**
+	 * The number of events. Only used by the writer.
+	 */
+	private int eventCount;
+
+	/**
+	 * Creates an empty log.
+	 * 
+	 * @param expectedAccounts
+	 *            expected number of touched accounts
+	 */
+	EventLog(int expectedAccounts) {
+		int size = INITIAL_TABLE_SIZE;
+		while (size < 2 * expectedAccounts && size < (1 << 30)) {
+			size *= 2;
+		}
+		table = new AtomicReferenceArray<AccountLog>(size);
+		touched = new AccountLog[size / 2];
+	}
+
+	/**
+	 * Returns the table position to start probing from.
+	 * 
+	 * @param account
+	 *            account index
+	 * @param length
+	 *            table length, a power of two
+	 * @return table position
+	 */
+	private static int hash(int account, int length) {
+		return (account * 0x9E3779B9) & (length - 1);
+	}
+
+	/**
+	 * Returns the log of the account.
+	 * 
+	 * @param account
+	 *            account index
+	 * @return account log or null if the account has no events
+	 */
+	private AccountLog find(int account) {
+		AtomicReferenceArray<AccountLog> t = table;
+		int mask = t.length() - 1;
+		for (int i = hash(account, t.length());; i = (i + 1) & mask) {
+			AccountLog log = t.get(i);
+			if (log == null || log.account == account) {
+				return log;
+			}
+		}
+	}
+
+	/**
+	 * Creates the log of a new account and publishes it to the readers. Only
+	 * called by the writer.
+	 * 
+	 * @param account
+	 *            account index
+	 * @return account log
+	 */
+	private AccountLog add(int account) {
+		int count = touchedCount;
+		if (count == touched.length) {
+			AccountLog[] newTouched = new AccountLog[2 * count];
+			System.arraycopy(touched, 0, newTouched, 0, count);
+			touched = newTouched;
+		}
+		AccountLog log = touched[count];
+		if (log == null) {
+			log = new AccountLog(account);
+			touched[count] = log;
+		} else {
+			log.account = account;
+		}
+		AtomicReferenceArray<AccountLog> t = table;
+		if (2 * (count + 1) > t.length()) {
+			t = new AtomicReferenceArray<AccountLog>(2 * t.length());
+			for (int i = 0; i < count; ++i) {
+				insert(t, touched[i]);
+			}
+			insert(t, log);
+			table = t;
+		} else {
+			insert(t, log);
+		}
+		touchedCount = count + 1;
+		return log;
+	}
+
+	/**
+	 * Puts the account log into the table. The ordered store makes the
+	 * fields of the log visible to a reader finding it there.
+	 * 
+	 * @param t
+	 *            table
+	 * @param log
+	 *            account log
+	 */
+	private static void insert(AtomicReferenceArray<AccountLog> t,
+			AccountLog log) {
+		int mask = t.length() - 1;
+		int i = hash(log.account, t.length());
+		while (t.get(i) != null) {
+			i = (i + 1) & mask;
+		}
+		t.lazySet(i, log);
+	}
+
+	/**
+	 * Appends the event to the log of the account.
+	 * 
+	 * @param account
+	 *            account index
+	 * @param version
+	 *            bank version of the event
+	 * @param difference
+	 *            change of the amount
+	 */
+	void append(int account, long version, long difference) {
+		AccountLog log = find(account);
+		if (log == null) {
+			log = add(account);
+		}
+		int size = log.size;
+		long[] v = log.versions;
+		long[] s = log.sums;
+		if (size == v.length) {
+			long[] newV = new long[2 * size];
+			long[] newS = new long[2 * size];
+			System.arraycopy(v, 0, newV, 0, size);
+			System.arraycopy(s, 0, newS, 0, size);
+			log.versions = v = newV;
+			log.sums = s = newS;
+		}
+		v[size] = version;
+		s[size] = size == 0 ? difference : s[size - 1] + difference;
+		log.size = size + 1;
+		++eventCount;
+	}
+
+	/**
+	 * Returns the total change of the account made by the events with version
+	 * not greater than the specified one.
+	 * 
+	 * @param account
+	 *            account index
+	 * @param version
+	 *            bank version
+	 * @return sum of the differences
+	 */
+	long sum(int account, long version) {
+		AccountLog log = find(account);
+		return log == null ? 0 : log.sum(version);
+	}
+
+	/**
+	 * Removes all the events, keeping the allocated arrays for reuse. Must not
+	 * be called while the log is read.
+	 */
+	void clear() {
+		AtomicReferenceArray<AccountLog> t = table;
+		for (int i = 0; i < t.length(); ++i) {
+			t.lazySet(i, null);
+		}
+		for (int k = 0; k < touchedCount; ++k) {
+			touched[k].size = 0;
+		}
+		touchedCount = 0;
+		eventCount = 0;
+	}
+
+	/**
+	 * Returns the number of events. Only called by the writer.
+	 * 
+	 * @return the number of appended events
+	 */
+	int eventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Returns the number of touched accounts.
+	 * 
+	 * @return the number of accounts having events
+	 */
+	int touchedCount() {
+		return touchedCount;
+	}
+
+	/**
+	 * Returns the index of a touched account.
+	 * 
+	 * @param k
+	 *            touched account number, from 0 to {@link #touchedCount()}-1
+	 * @return account index
+	 */
+	int touchedAccount(int k) {
+		return touched[k].account;
+	}
+
+	/**
+	 * Returns the total change of a touched account made by all its events.
+	 * 
+	 * @param k
+	 *            touched account number, from 0 to {@link #touchedCount()}-1
+	 * @return sum of the differences
+	 */
+	long touchedTotal(int k) {
+		AccountLog log = touched[k];
+		int size = log.size;
+		return log.sums[size - 1];
+	}
+
+	/**
+	 * Returns the total change of a touched account made by the events with
+	 * version not greater than the specified one.
+	 * 
+	 * @param k
+	 *            touched account number, from 0 to {@link #touchedCount()}-1
+	 * @param version
+	 *            bank version
+	 * @return sum of the differences
+	 */
+	long touchedSum(int k, long version) {
+		return touched[k].sum(version);
+	}
+}
@@ -0,0 +1,81 @@
+package ru.ifmo.pp.bank;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Balance storage in heap arrays. The values are split into chunks of equal
+ * size, so growing the storage only adds chunks and copies the array of
+ * references to them, never the values.
+ */
+public class HeapBalanceStorage implements BalanceStorage {
+	/**
+	 * Binary logarithm of the number of values in a chunk.
+	 */
+	private static final int CHUNK_SHIFT = 12;
+
+	/**
+	 * The number of values in a chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/**
+	 * Chunks of the values, replaced by a longer array when the storage
+	 * grows.
+	 */
+	private volatile AtomicLongArray[] chunks;
+
+	/**
+	 * The number of accounts.
+	 */
+	private volatile int size;
+
+	/**
+	 * Creates a storage with all the accounts empty.
+	 * 
+	 * @param n
+	 *            the number of accounts
+	 */
+	public HeapBalanceStorage(int n) {
+		chunks = new AtomicLongArray[0];
+		grow(n);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean grow(int size) {
+		AtomicLongArray[] c = chunks;
+		int count = (int) (((long) size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+		if (count > c.length) {
+			c = Arrays.copyOf(c, count);
+			for (int k = chunks.length; k < count; ++k) {
+				c[k] = new AtomicLongArray(CHUNK_SIZE);
+			}
+			chunks = c;
+		}
+		if (size > this.size) {
+			this.size = size;
+		}
+		return true;
+	}
+
+	@Override
+	public long get(int i) {
+		return chunks[i >>> CHUNK_SHIFT].get(i & (CHUNK_SIZE - 1));
+	}
+
+	@Override
+	public void set(int i, long value) {
+		chunks[i >>> CHUNK_SHIFT].set(i & (CHUNK_SIZE - 1), value);
+	}
+
+	@Override
+	public boolean compareAndSet(int i, long expect, long update) {
+		return chunks[i >>> CHUNK_SHIFT].compareAndSet(i & (CHUNK_SIZE - 1),
+				expect, update);
+	}
+}
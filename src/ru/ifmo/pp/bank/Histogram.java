@@ -0,0 +1,184 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with a bounded relative error.
+ * 
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 32 equal sub-buckets, so a bucket is at most about 3% wide relative to its
+ * values, and the whole range of long needs less than 2000 buckets.
+ * Recording is a few arithmetic instructions and an atomic increment; reads
+ * may run concurrently with recording and see a slightly inconsistent view.
+ */
+public class Histogram {
+	/**
+	 * Binary logarithm of the number of sub-buckets per power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * The number of buckets covering all the non-negative long values.
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS)
+			<< SUB_BUCKET_BITS;
+
+	/**
+	 * Counts of the buckets.
+	 */
+	private final AtomicLongArray counts;
+
+	/**
+	 * Sum of the recorded values.
+	 */
+	private final LongAdder total;
+
+	/**
+	 * The maximum recorded value.
+	 */
+	private final AtomicLong max;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		total = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Returns the bucket of the value.
+	 * 
+	 * @param value
+	 *            non-negative value
+	 * @return bucket index
+	 */
+	private static int bucket(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value)
+				- SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the greatest value of the bucket.
+	 * 
+	 * @param bucket
+	 *            bucket index
+	 * @return the greatest value counted in the bucket
+	 */
+	private static long highestValue(int bucket) {
+		int shift = Math.max(0, (bucket >>> SUB_BUCKET_BITS) - 1);
+		long lowest = (long) (bucket - (shift << SUB_BUCKET_BITS)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records the value. Negative values are recorded as zero.
+	 * 
+	 * @param value
+	 *            value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		total.add(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Adds all the values recorded by another histogram to this one, so that
+	 * threads may record into histograms of their own and merge them later.
+	 * 
+	 * @param other
+	 *            histogram to add
+	 */
+	public void add(Histogram other) {
+		for (int k = 0; k < BUCKETS; ++k) {
+			long count = other.counts.get(k);
+			if (count != 0) {
+				counts.addAndGet(k, count);
+			}
+		}
+		total.add(other.total.sum());
+		long value = other.max.get();
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 * 
+	 * @return the number of values
+	 */
+	public long getCount() {
+		long result = 0;
+		for (int k = 0; k < BUCKETS; ++k) {
+			result += counts.get(k);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 * 
+	 * @return mean value, or 0 if nothing is recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+
+	/**
+	 * Returns the maximum recorded value.
+	 * 
+	 * @return maximum value, or 0 if nothing is recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below or at which the specified percentage of the
+	 * recorded values fall, up to the bucket precision.
+	 * 
+	 * @param percentile
+	 *            percentage from 0 to 100
+	 * @return value at the percentile, or 0 if nothing is recorded
+	 * @throws IllegalArgumentException
+	 *             when percentile is out of range.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("Invalid percentile: "
+					+ percentile);
+		}
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int k = 0; k < BUCKETS; ++k) {
+			snapshot[k] = counts.get(k);
+			count += snapshot[k];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int k = 0; k < BUCKETS; ++k) {
+			seen += snapshot[k];
+			if (seen >= rank) {
+				return Math.min(highestValue(k), getMax());
+			}
+		}
+		return getMax();
+	}
+}
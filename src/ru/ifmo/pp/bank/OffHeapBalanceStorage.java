@@ -0,0 +1,170 @@
+package ru.ifmo.pp.bank;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Balance storage outside of the garbage-collected heap: in direct buffers or
+ * in a memory-mapped file. Values are accessed through a byte buffer view
+ * {@link VarHandle}, so reads, writes and compare-and-sets are atomic.
+ * 
+ * Memory is split into chunks of at most 1 GB, since a single buffer can't
+ * be larger than 2 GB. Values are stored in the native byte order, so a
+ * mapped file is only meant to be read on the same platform.
+ */
+public class OffHeapBalanceStorage implements BalanceStorage, Closeable {
+	/**
+	 * Binary logarithm of the number of values in a chunk.
+	 */
+	private static final int CHUNK_SHIFT = 27;
+
+	/**
+	 * The number of values in a chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/**
+	 * Atomic access to the longs of a buffer.
+	 */
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * The number of accounts.
+	 */
+	private final int n;
+
+	/**
+	 * Chunks of the values.
+	 */
+	private final ByteBuffer[] chunks;
+
+	/**
+	 * Mapped file, or null for direct buffers.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Creates a storage in direct buffers with all the accounts empty.
+	 * 
+	 * @param n
+	 *            the number of accounts
+	 */
+	public OffHeapBalanceStorage(int n) {
+		this.n = n;
+		chunks = new ByteBuffer[(n + CHUNK_SIZE - 1) >>> CHUNK_SHIFT];
+		for (int k = 0; k < chunks.length; ++k) {
+			chunks[k] = ByteBuffer.allocateDirect(8 * chunkLength(k));
+		}
+		file = null;
+	}
+
+	/**
+	 * Creates a storage mapped to the file, keeping the values already in
+	 * the file and extending it with empty accounts when needed.
+	 * 
+	 * @param file
+	 *            storage file
+	 * @param n
+	 *            the number of accounts
+	 * @throws IOException
+	 *             when the file can't be mapped.
+	 */
+	public OffHeapBalanceStorage(File file, int n) throws IOException {
+		this.n = n;
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = this.file.getChannel();
+			if (channel.size() < 8L * n) {
+				this.file.setLength(8L * n);
+			}
+			chunks = new ByteBuffer[(n + CHUNK_SIZE - 1) >>> CHUNK_SHIFT];
+			for (int k = 0; k < chunks.length; ++k) {
+				chunks[k] = channel.map(FileChannel.MapMode.READ_WRITE,
+						8L * k * CHUNK_SIZE, 8 * chunkLength(k));
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of values in the chunk.
+	 * 
+	 * @param k
+	 *            chunk index
+	 * @return the number of values
+	 */
+	private int chunkLength(int k) {
+		return Math.min(CHUNK_SIZE, n - k * CHUNK_SIZE);
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * The storage has a fixed size: it holds no more accounts than it was
+	 * created with.
+	 */
+	@Override
+	public boolean grow(int size) {
+		return size <= n;
+	}
+
+	@Override
+	public long get(int i) {
+		return (long) LONGS.getVolatile(chunks[i >>> CHUNK_SHIFT],
+				(i & (CHUNK_SIZE - 1)) << 3);
+	}
+
+	@Override
+	public void set(int i, long value) {
+		LONGS.setVolatile(chunks[i >>> CHUNK_SHIFT],
+				(i & (CHUNK_SIZE - 1)) << 3, value);
+	}
+
+	@Override
+	public boolean compareAndSet(int i, long expect, long update) {
+		return LONGS.compareAndSet(chunks[i >>> CHUNK_SHIFT],
+				(i & (CHUNK_SIZE - 1)) << 3, expect, update);
+	}
+
+	/**
+	 * Writes the values of a mapped storage to its file. Does nothing for
+	 * direct buffers.
+	 */
+	public void force() {
+		if (file == null) {
+			return;
+		}
+		for (ByteBuffer chunk : chunks) {
+			((MappedByteBuffer) chunk).force();
+		}
+	}
+
+	/**
+	 * Writes the values of a mapped storage to its file and closes it. The
+	 * storage must not be used after closing.
+	 * 
+	 * @throws IOException
+	 *             when the file can't be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			force();
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ru.ifmo.pp.bank;
+
+/**
+ * Codes of primitive-encoded bank operations and of their results.
+ */
+public final class Operations {
+	/**
+	 * Deposit of amount to account.
+	 */
+	public static final int DEPOSIT = 0;
+
+	/**
+	 * Withdrawal of amount from account.
+	 */
+	public static final int WITHDRAW = 1;
+
+	/**
+	 * Transfer of amount from account to target account.
+	 */
+	public static final int TRANSFER = 2;
+
+	/**
+	 * The operation succeeded.
+	 */
+	public static final int OK = 0;
+
+	/**
+	 * The operation code is unknown.
+	 */
+	public static final int INVALID_OPERATION = 1;
+
+	/**
+	 * An account index is invalid.
+	 */
+	public static final int INVALID_INDEX = 2;
+
+	/**
+	 * The amount is not positive or above {@link Bank#MAX_AMOUNT}.
+	 */
+	public static final int INVALID_AMOUNT = 3;
+
+	/**
+	 * There is not enough money to withdraw.
+	 */
+	public static final int NOT_ENOUGH_MONEY = 4;
+
+	/**
+	 * The amount in account would overflow {@link Bank#MAX_AMOUNT}.
+	 */
+	public static final int OVERFLOW = 5;
+
+	/**
+	 * The bank can't apply the operation: it is closed, or it failed to make
+	 * the change durable.
+	 */
+	public static final int UNAVAILABLE = 6;
+
+	private Operations() {
+	}
+}
@@ -0,0 +1,164 @@
+package ru.ifmo.pp.bank;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fenwick tree of the amounts in accounts, giving the total amount of any
+ * range of accounts in O(log n).
+ * 
+ * The tree is changed only by the operation publishing a version, so the
+ * changes never overlap, and it is read concurrently without locks. The
+ * writer records the version it is about to apply before touching the tree,
+ * with ordered stores only; a reader that saw the tree while a version newer
+ * than the one it started from was being applied retries, so every sum it
+ * returns is consistent with a single published version.
+ * 
+ * The nodes are stored in chunks, so an account opened in the bank adds a
+ * node, computed from the existing ones, without copying the tree.
+ */
+final class RangeIndex {
+	/**
+	 * Binary logarithm of the number of nodes in a chunk.
+	 */
+	private static final int CHUNK_SHIFT = 12;
+
+	/**
+	 * The number of nodes in a chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/**
+	 * Chunks of the nodes of the tree: node k holds the total amount of the
+	 * accounts from k - (k & -k) to k - 1. Replaced by a longer array when a
+	 * chunk is added.
+	 */
+	private volatile AtomicLongArray[] chunks;
+
+	/**
+	 * The number of accounts. Only used by the writer.
+	 */
+	private int size;
+
+	/**
+	 * The newest version applied or being applied to the tree.
+	 */
+	private final AtomicLong version;
+
+	/**
+	 * Builds the tree in linear time.
+	 * 
+	 * @param amounts
+	 *            amount of account i at index i
+	 * @param version
+	 *            version of the amounts
+	 */
+	RangeIndex(long[] amounts, long version) {
+		int n = amounts.length;
+		long[] nodes = new long[n + 1];
+		System.arraycopy(amounts, 0, nodes, 1, n);
+		for (int k = 1; k <= n; ++k) {
+			int parent = k + (k & -k);
+			if (parent <= n) {
+				nodes[parent] += nodes[k];
+			}
+		}
+		AtomicLongArray[] c = new AtomicLongArray[(n >>> CHUNK_SHIFT) + 1];
+		for (int k = 0; k < c.length; ++k) {
+			long[] chunk = new long[CHUNK_SIZE];
+			int from = k << CHUNK_SHIFT;
+			System.arraycopy(nodes, from, chunk, 0,
+					Math.min(CHUNK_SIZE, n + 1 - from));
+			c[k] = new AtomicLongArray(chunk);
+		}
+		chunks = c;
+		size = n;
+		this.version = new AtomicLong(version);
+	}
+
+	/**
+	 * Returns node k of the tree.
+	 * 
+	 * @param k
+	 *            node index
+	 * @return total amount of the accounts of the node
+	 */
+	private long node(int k) {
+		return chunks[k >>> CHUNK_SHIFT].get(k & (CHUNK_SIZE - 1));
+	}
+
+	/**
+	 * Adds an empty account after all the others. Called only by the
+	 * operation opening it, while no other operation changes the tree. Sums
+	 * of the existing ranges don't change, so readers need not retry.
+	 */
+	void open() {
+		int k = size + 1;
+		AtomicLongArray[] c = chunks;
+		if (k >>> CHUNK_SHIFT == c.length) {
+			c = Arrays.copyOf(c, c.length + 1);
+			c[c.length - 1] = new AtomicLongArray(CHUNK_SIZE);
+			chunks = c;
+		}
+		c[k >>> CHUNK_SHIFT].lazySet(k & (CHUNK_SIZE - 1), prefix(k - 1)
+				- prefix(k - (k & -k)));
+		size = k;
+	}
+
+	/**
+	 * Adds the change of an account made by the operation publishing version
+	 * v. Called only by that operation.
+	 * 
+	 * @param v
+	 *            version being published
+	 * @param i
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 */
+	void add(long v, int i, long difference) {
+		if (version.get() != v) {
+			version.lazySet(v);
+		}
+		AtomicLongArray[] c = chunks;
+		for (int k = i + 1; k <= size; k += k & -k) {
+			AtomicLongArray chunk = c[k >>> CHUNK_SHIFT];
+			int j = k & (CHUNK_SIZE - 1);
+			chunk.lazySet(j, chunk.get(j) + difference);
+		}
+	}
+
+	/**
+	 * Returns the total amount of the accounts before the specified one.
+	 * 
+	 * @param to
+	 *            account index, exclusive
+	 * @return total amount
+	 */
+	private long prefix(int to) {
+		long result = 0;
+		for (int k = to; k > 0; k -= k & -k) {
+			result += node(k);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total amount in the range of accounts as of a published
+	 * version not older than the specified one.
+	 * 
+	 * @param from
+	 *            first account index, inclusive
+	 * @param to
+	 *            last account index, exclusive
+	 * @param published
+	 *            version published before the call
+	 * @return total amount in the accounts, or -1 if a newer version was
+	 *         being applied meanwhile and the read must be retried
+	 */
+	long sum(int from, int to, long published) {
+		long result = prefix(to) - prefix(from);
+		return version.get() <= published ? result : -1;
+	}
+}
@@ -0,0 +1,38 @@
+package ru.ifmo.pp.bank;
+
+/**
+ * Thrown when a bank rejects a valid operation because of the amounts in the
+ * accounts: there is not enough money to withdraw, or an amount would
+ * overflow {@link Bank#MAX_AMOUNT}.
+ */
+public class RejectedOperationException extends IllegalStateException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * {@link Operations} error code of the rejection.
+	 */
+	private final int reason;
+
+	/**
+	 * Creates the exception.
+	 * 
+	 * @param reason
+	 *            {@link Operations#NOT_ENOUGH_MONEY} or
+	 *            {@link Operations#OVERFLOW}
+	 * @param message
+	 *            exception message
+	 */
+	public RejectedOperationException(int reason, String message) {
+		super(message);
+		this.reason = reason;
+	}
+
+	/**
+	 * Returns why the operation was rejected.
+	 * 
+	 * @return {@link Operations} error code
+	 */
+	public int getReason() {
+		return reason;
+	}
+}
@@ -0,0 +1,283 @@
+package ru.ifmo.pp.bank;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Splits a stream of commands into lines and the lines into tokens separated
+ * by runs of spaces, tabs or carriage returns, without creating objects per
+ * line. Tokens are compared and parsed in place; only {@link #token(int)}
+ * makes a string, decoding the bytes in the default charset like the
+ * {@link java.util.Scanner} of the interactive mode does; the charset has to
+ * encode the separators and the digits as ASCII does. Quotes are not special.
+ * {@link #split(String)} splits a line of the interactive mode the same way.
+ */
+final class ScriptTokenizer {
+	/**
+	 * Maximum number of tokens kept per line.
+	 */
+	private static final int MAX_TOKENS = 8;
+
+	/**
+	 * The input.
+	 */
+	private final InputStream in;
+
+	/**
+	 * Bytes read from the input.
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Position of the next unread byte in the buffer.
+	 */
+	private int position;
+
+	/**
+	 * The number of bytes in the buffer.
+	 */
+	private int limit;
+
+	/**
+	 * The current line.
+	 */
+	private byte[] line;
+
+	/**
+	 * Starts of the tokens of the current line.
+	 */
+	private final int[] starts;
+
+	/**
+	 * Ends of the tokens of the current line, exclusive.
+	 */
+	private final int[] ends;
+
+	/**
+	 * The number of tokens in the current line, possibly above
+	 * {@link #MAX_TOKENS}.
+	 */
+	private int count;
+
+	/**
+	 * Creates a tokenizer reading the input through a buffer.
+	 * 
+	 * @param in
+	 *            the input
+	 * @param bufferSize
+	 *            size of the buffer in bytes
+	 */
+	ScriptTokenizer(InputStream in, int bufferSize) {
+		this.in = in;
+		buffer = new byte[bufferSize];
+		line = new byte[256];
+		starts = new int[MAX_TOKENS];
+		ends = new int[MAX_TOKENS];
+	}
+
+	/**
+	 * Reads the next line and splits it into tokens.
+	 * 
+	 * @return false at the end of the input
+	 * @throws IOException
+	 *             when the input can't be read.
+	 */
+	boolean next() throws IOException {
+		int length = 0;
+		boolean any = false;
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (!any) {
+						return false;
+					}
+					break;
+				}
+			}
+			any = true;
+			byte b = buffer[position++];
+			if (b == '\n') {
+				break;
+			}
+			if (length == line.length) {
+				byte[] longer = new byte[2 * length];
+				System.arraycopy(line, 0, longer, 0, length);
+				line = longer;
+			}
+			line[length++] = b;
+		}
+		count = 0;
+		int i = 0;
+		while (true) {
+			while (i < length && isSpace(line[i])) {
+				++i;
+			}
+			if (i == length) {
+				break;
+			}
+			int start = i;
+			while (i < length && !isSpace(line[i])) {
+				++i;
+			}
+			if (count < MAX_TOKENS) {
+				starts[count] = start;
+				ends[count] = i;
+			}
+			++count;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a line into tokens like {@link #next()} does.
+	 * 
+	 * @param line
+	 *            the line
+	 * @return the tokens, none for a blank line
+	 */
+	static String[] split(String line) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		int length = line.length();
+		int i = 0;
+		while (true) {
+			while (i < length && isSpace(line.charAt(i))) {
+				++i;
+			}
+			if (i == length) {
+				break;
+			}
+			int start = i;
+			while (i < length && !isSpace(line.charAt(i))) {
+				++i;
+			}
+			tokens.add(line.substring(start, i));
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	/**
+	 * Checks whether the character separates tokens.
+	 * 
+	 * @param c
+	 *            character of a line
+	 * @return true for a space, a tab or a carriage return
+	 */
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Returns the number of tokens in the current line.
+	 * 
+	 * @return the number of tokens
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Checks whether a token equals the word, ignoring the case of ASCII
+	 * letters.
+	 * 
+	 * @param k
+	 *            token index
+	 * @param word
+	 *            lower-case word
+	 * @return true if the token is the word
+	 */
+	boolean is(int k, String word) {
+		int start = starts[k];
+		if (ends[k] - start != word.length()) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); ++i) {
+			int c = line[start + i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the index of the word the token equals, ignoring the case.
+	 * 
+	 * @param k
+	 *            token index
+	 * @param words
+	 *            lower-case words
+	 * @return index of the word or -1
+	 */
+	int match(int k, String[] words) {
+		for (int w = 0; w < words.length; ++w) {
+			if (is(k, words[w])) {
+				return w;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a token as a decimal number with an optional sign, accepting
+	 * the ASCII digits {@link Long#parseLong(String)} accepts. The value is
+	 * accumulated negated, as there, so that {@link Long#MIN_VALUE} fits.
+	 * 
+	 * @param k
+	 *            token index
+	 * @param min
+	 *            minimum allowed value
+	 * @param max
+	 *            maximum allowed value
+	 * @return the number
+	 * @throws NumberFormatException
+	 *             when the token is not a number in the range.
+	 */
+	long parse(int k, long min, long max) {
+		int i = starts[k];
+		int end = ends[k];
+		boolean negative = line[i] == '-';
+		if (negative || line[i] == '+') {
+			++i;
+		}
+		if (i == end) {
+			throw new NumberFormatException(token(k));
+		}
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		for (; i < end; ++i) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9 || value < limit / 10
+					|| 10 * value < limit + digit) {
+				throw new NumberFormatException(token(k));
+			}
+			value = 10 * value - digit;
+		}
+		if (!negative) {
+			value = -value;
+		}
+		if (value < min || value > max) {
+			throw new NumberFormatException(token(k));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a token as a string decoded in the default charset.
+	 * 
+	 * @param k
+	 *            token index
+	 * @return the token
+	 */
+	String token(int k) {
+		return new String(line, starts[k], ends[k] - starts[k],
+				Charset.defaultCharset());
+	}
+}
@@ -0,0 +1,579 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer of commands applied by a single writer thread, used by a
+ * {@link Bank} in {@link ConcurrencyMode#SEQUENCER} mode.
+ * 
+ * A caller takes the next sequence number, fills the command in the slot of
+ * that number and waits for the writer to complete it. Every slot goes
+ * through three turns per sequence number s: free for s, published as s and
+ * completed as s, encoded as 3s, 3s + 1 and 3s + 2 in its volatile turn
+ * field. The writer applies all the consecutive published commands, publishes
+ * their changes in one pass, then finishes them at once, so a burst of
+ * callers shares a single log sync. The writer is the only thread changing
+ * the balances, so it takes no lock; a thread needing the balances for
+ * itself, like a batch or a transaction, publishes a pause command instead,
+ * which the writer reaches after finishing the commands before it, and
+ * waits for {@link #resume()} there.
+ * 
+ * A blocking caller yields for a while and then parks until the writer
+ * unparks it, so waiting never holds a monitor. An asynchronous caller
+ * leaves a future in the slot instead, which the writer completes after
+ * freeing the slot.
+ * 
+ * A failure of a command is reported to its caller only, and the writer goes
+ * on with the next one. An Error stops the writer instead: the published
+ * commands fail, later ones are rejected as after {@link #close()}, and the
+ * Error is rethrown. {@link #close()} stops the writer once it has applied
+ * the commands already published; later commands are rejected.
+ */
+final class Sequencer implements Runnable {
+	/**
+	 * Slot of the ring.
+	 */
+	static final class Command {
+		/**
+		 * Operation code.
+		 */
+		int op;
+
+		/**
+		 * Account index; source account of a transfer.
+		 */
+		int account;
+
+		/**
+		 * Target account index of a transfer.
+		 */
+		int target;
+
+		/**
+		 * Amount of the operation.
+		 */
+		long amount;
+
+		/**
+		 * Result code, set by the writer.
+		 */
+		int result;
+
+		/**
+		 * New amount in account, set by the writer.
+		 */
+		long value;
+
+		/**
+		 * Failure to finish the command, set by the writer.
+		 */
+		RuntimeException failure;
+
+		/**
+		 * Change of the command, pushed by the writer.
+		 */
+		final Change change = new Change(2);
+
+		/**
+		 * Future of an asynchronous command, or null.
+		 */
+		CompletableFuture<?> future;
+
+		/**
+		 * Blocking caller parked until the command completes, or null.
+		 */
+		volatile Thread waiter;
+
+		/**
+		 * State of the slot, see {@link Sequencer}.
+		 */
+		volatile long turn;
+	}
+
+	/**
+	 * Number of times a thread yields before parking.
+	 */
+	private static final int SPINS = 100;
+
+	/**
+	 * Operation code of a pause command, see {@link #pause()}.
+	 */
+	private static final int PAUSE = -1;
+
+	/**
+	 * The bank applying the commands.
+	 */
+	private final Bank bank;
+
+	/**
+	 * Slots of the ring.
+	 */
+	private final Command[] ring;
+
+	/**
+	 * Mask of a sequence number giving its slot.
+	 */
+	private final int mask;
+
+	/**
+	 * The next sequence number to give out.
+	 */
+	private final AtomicLong claimed;
+
+	/**
+	 * The writer thread.
+	 */
+	private final Thread writer;
+
+	/**
+	 * Whether the writer is about to park.
+	 */
+	private volatile boolean sleeping;
+
+	/**
+	 * Sequence number of the pause command holding the writer. Written by the
+	 * pausing thread while the writer waits, and read by {@link #resume()}.
+	 */
+	private long paused;
+
+	/**
+	 * Whether {@link #close()} was called.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Whether the writer has seen {@link #closed} and applies no commands
+	 * published after its last check.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Creates the ring and starts the writer thread.
+	 * 
+	 * @param bank
+	 *            the bank applying the commands
+	 * @param capacity
+	 *            the number of slots, a power of two
+	 */
+	Sequencer(Bank bank, int capacity) {
+		this.bank = bank;
+		ring = new Command[capacity];
+		for (int k = 0; k < capacity; ++k) {
+			ring[k] = new Command();
+			ring[k].turn = 3L * k;
+		}
+		mask = capacity - 1;
+		claimed = new AtomicLong();
+		writer = new Thread(this, "bank-sequencer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Publishes a command and waits until the writer applies it.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param account
+	 *            valid account index
+	 * @param target
+	 *            valid target account index of a transfer
+	 * @param amount
+	 *            valid amount
+	 * @return new amount in account, or the negated error code
+	 * @throws IllegalStateException
+	 *             when the change can't be made durable or the sequencer is
+	 *             closed.
+	 */
+	long submit(int op, int account, int target, long amount) {
+		long s = publish(op, account, target, amount, null);
+		Command c = awaitCompleted(s);
+		int result = c.result;
+		long value = c.value;
+		RuntimeException failure = c.failure;
+		c.failure = null;
+		c.turn = 3 * (s + ring.length);
+		if (failure != null) {
+			throw failure;
+		}
+		return result == Operations.OK ? value : -result;
+	}
+
+	/**
+	 * Waits until the writer completes the command with the specified
+	 * sequence number, yielding for a while and then parking.
+	 * 
+	 * @param s
+	 *            sequence number of a published command
+	 * @return the completed command
+	 * @throws IllegalStateException
+	 *             when the writer stopped before completing the command.
+	 */
+	private Command awaitCompleted(long s) {
+		Command c = ring[(int) s & mask];
+		for (int spins = 0; c.turn != 3 * s + 2 && spins < SPINS; ++spins) {
+			Thread.yield();
+		}
+		if (c.turn != 3 * s + 2) {
+			c.waiter = Thread.currentThread();
+			while (c.turn != 3 * s + 2) {
+				if (stopped) {
+					awaitWriter();
+					if (c.turn != 3 * s + 2) {
+						c.waiter = null;
+						throw new IllegalStateException("Bank is closed");
+					}
+					break;
+				}
+				LockSupport.park(this);
+			}
+			c.waiter = null;
+		}
+		return c;
+	}
+
+	/**
+	 * Stops the writer once it has finished the commands already published,
+	 * so the caller can change the balances itself until {@link #resume()}.
+	 * Pauses are granted one at a time, in the order they are published.
+	 * 
+	 * @throws IllegalStateException
+	 *             when the sequencer is closed.
+	 */
+	void pause() {
+		long s = publish(PAUSE, 0, 0, 0, null);
+		Command c = awaitCompleted(s);
+		RuntimeException failure = c.failure;
+		if (failure != null) {
+			c.failure = null;
+			c.turn = 3 * (s + ring.length);
+			throw failure;
+		}
+		paused = s;
+	}
+
+	/**
+	 * Lets the writer paused by {@link #pause()} go on. Called by the thread
+	 * which paused it.
+	 */
+	void resume() {
+		long s = paused;
+		ring[(int) s & mask].turn = 3 * (s + ring.length);
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Publishes a command without waiting for it. The future is completed by
+	 * the writer thread, so its dependent stages run there unless they are
+	 * asynchronous.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param account
+	 *            valid account index
+	 * @param target
+	 *            valid target account index of a transfer
+	 * @param amount
+	 *            valid amount
+	 * @return future of the result
+	 * @throws IllegalStateException
+	 *             when the sequencer is closed.
+	 */
+	<T> CompletableFuture<T> submitAsync(int op, int account, int target,
+			long amount) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		long s = publish(op, account, target, amount, future);
+		if (stopped) {
+			awaitWriter();
+			if (ring[(int) s & mask].turn == 3 * s + 1) {
+				future.completeExceptionally(new IllegalStateException(
+						"Bank is closed"));
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Takes the next sequence number, waits until its slot is free and
+	 * publishes the command in it.
+	 * 
+	 * @param op
+	 *            operation code
+	 * @param account
+	 *            account index
+	 * @param target
+	 *            target account index
+	 * @param amount
+	 *            amount
+	 * @param future
+	 *            future of an asynchronous command, or null
+	 * @return sequence number of the command
+	 * @throws IllegalStateException
+	 *             when the sequencer is closed.
+	 */
+	private long publish(int op, int account, int target, long amount,
+			CompletableFuture<?> future) {
+		if (closed) {
+			throw new IllegalStateException("Bank is closed");
+		}
+		long s = claimed.getAndIncrement();
+		Command c = ring[(int) s & mask];
+		while (c.turn != 3 * s) {
+			if (stopped) {
+				throw new IllegalStateException("Bank is closed");
+			}
+			Thread.yield();
+		}
+		c.op = op;
+		c.account = account;
+		c.target = target;
+		c.amount = amount;
+		c.future = future;
+		c.turn = 3 * s + 1;
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return s;
+	}
+
+	/**
+	 * Applies the published commands in sequence until closed, then wakes up
+	 * the callers still waiting. An Error fails the published commands and
+	 * stops the writer before it is rethrown.
+	 */
+	@Override
+	public void run() {
+		try {
+			long next = 0;
+			while (await(next)) {
+				if (ring[(int) next & mask].op == PAUSE) {
+					hold(next++);
+					continue;
+				}
+				long end = next;
+				Change last = null;
+				do {
+					Change change = null;
+					Command c = ring[(int) end & mask];
+					try {
+						change = bank.execute(c);
+					} catch (RuntimeException e) {
+						c.failure = e;
+					}
+					if (change != null) {
+						last = change;
+					}
+					++end;
+				} while (end - next < ring.length
+						&& ring[(int) end & mask].turn == 3 * end + 1
+						&& ring[(int) end & mask].op != PAUSE);
+				RuntimeException failure = null;
+				if (last != null) {
+					bank.awaitPublished(last);
+					failure = complete(next, end);
+				}
+				finish(next, end, failure);
+				next = end;
+			}
+		} catch (Error e) {
+			fail(e);
+			throw e;
+		} finally {
+			for (Command c : ring) {
+				Thread waiter = c.waiter;
+				if (waiter != null) {
+					LockSupport.unpark(waiter);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Completes the applied commands: wakes up their blocking callers and
+	 * completes the futures of the asynchronous ones.
+	 * 
+	 * @param from
+	 *            sequence number of the first command
+	 * @param to
+	 *            sequence number after the last command
+	 * @param failure
+	 *            failure to make the changes durable, or null
+	 */
+	private void finish(long from, long to, RuntimeException failure) {
+		for (long s = from; s < to; ++s) {
+			Command c = ring[(int) s & mask];
+			CompletableFuture<?> future = c.future;
+			RuntimeException f = c.failure != null ? c.failure : failure;
+			if (future == null) {
+				c.failure = f;
+				c.turn = 3 * s + 2;
+				Thread waiter = c.waiter;
+				if (waiter != null) {
+					LockSupport.unpark(waiter);
+				}
+				continue;
+			}
+			int op = c.op;
+			int account = c.account;
+			long amount = c.amount;
+			int result = c.result;
+			long value = c.value;
+			c.future = null;
+			c.failure = null;
+			c.turn = 3 * (s + ring.length);
+			bank.finish(future, op, account, amount, result, value, f);
+		}
+	}
+
+	/**
+	 * Grants a pause command and waits until its caller resumes the writer.
+	 * 
+	 * @param s
+	 *            sequence number of the pause command
+	 */
+	private void hold(long s) {
+		finish(s, s + 1, null);
+		Command c = ring[(int) s & mask];
+		long free = 3 * (s + ring.length);
+		int spins = 0;
+		while (c.turn != free) {
+			if (++spins < SPINS) {
+				Thread.yield();
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/**
+	 * Stops the writer after an Error: rejects the commands published later
+	 * and fails the commands published and not completed yet.
+	 * 
+	 * @param e
+	 *            the Error
+	 */
+	private void fail(Error e) {
+		closed = true;
+		stopped = true;
+		for (int k = 0; k < ring.length; ++k) {
+			Command c = ring[k];
+			long turn = c.turn;
+			if (turn % 3 != 1) {
+				continue;
+			}
+			long s = turn / 3;
+			c.failure = new IllegalStateException("Sequencer failure", e);
+			finish(s, s + 1, null);
+		}
+	}
+
+	/**
+	 * Takes the failures of the published changes of the commands and
+	 * finishes the checkpoints started at their versions, once for all the
+	 * commands.
+	 * 
+	 * @param from
+	 *            sequence number of the first command
+	 * @param to
+	 *            sequence number after the last command
+	 * @return failure to make the changes durable, or null
+	 */
+	private RuntimeException complete(long from, long to) {
+		RuntimeException failure = null;
+		for (long s = from; s < to; ++s) {
+			Command c = ring[(int) s & mask];
+			Change change = c.change;
+			if (c.failure != null || c.result != Operations.OK) {
+				continue;
+			}
+			Throwable f = change.failure;
+			if (f instanceof Error) {
+				throw (Error) f;
+			}
+			if (f != null) {
+				c.failure = (RuntimeException) f;
+			}
+			if (change.checkpoint != null) {
+				try {
+					bank.complete(change.checkpoint);
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+			}
+		}
+		if (failure == null) {
+			try {
+				bank.complete(null);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * Waits until the command with the specified sequence number is
+	 * published, parking when there is nothing to do for a while. Once
+	 * closed, only checks whether the command is already published: a caller
+	 * publishing it later sees {@link #stopped}.
+	 * 
+	 * @param s
+	 *            sequence number
+	 * @return false if closed and the command is not published
+	 */
+	private boolean await(long s) {
+		Command c = ring[(int) s & mask];
+		int spins = 0;
+		while (c.turn != 3 * s + 1) {
+			if (closed) {
+				stopped = true;
+				return c.turn == 3 * s + 1;
+			}
+			if (++spins < SPINS) {
+				Thread.yield();
+				continue;
+			}
+			sleeping = true;
+			if (c.turn != 3 * s + 1) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the writer thread ends, unless called by it.
+	 */
+	private void awaitWriter() {
+		if (Thread.currentThread() == writer) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				writer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops the writer thread once it has applied the commands already
+	 * published, and waits for it unless called by it; a paused writer stops
+	 * once resumed. Commands submitted later are rejected. Closing a closed
+	 * sequencer has no effect.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		awaitWriter();
+	}
+}
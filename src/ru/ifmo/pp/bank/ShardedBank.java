@@ -0,0 +1,324 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bank whose accounts are split across several independent {@link Bank}
+ * shards.
+ * 
+ * Account i belongs to shard i % shards under the local index i / shards, so
+ * neighbouring accounts land in different shards. Every shard has its own
+ * locks, versions and snapshot log, and operations on accounts of a single
+ * shard never touch another one.
+ * 
+ * A transfer between shards is a two-phase commit: both accounts are
+ * prepared, i.e. taken and validated, in shard order, and the changes are
+ * published only if both succeed. Cross-shard transfers hold the read locks
+ * of the barriers of both shards, and a global snapshot takes all the
+ * barriers for writing while it snapshots the shards one by one, so it never
+ * sees money that left one shard and has not reached the other.
+ * 
+ * The total amount is read without the barriers: cross-shard transfers count
+ * themselves before their first commit and after their second one, and a
+ * sum of the shard totals is kept only if no transfer was between its
+ * commits when the sum started and none started until it ended.
+ */
+public class ShardedBank implements AutoCloseable {
+	/**
+	 * The number of reads of the shard totals overlapped by a cross-shard
+	 * transfer after which {@link #getTotalAmount()} takes the barriers.
+	 */
+	private static final int TOTAL_RETRIES = 16;
+
+	/**
+	 * The number of accounts.
+	 */
+	private final int n;
+
+	/**
+	 * Shards of the accounts.
+	 */
+	private final Bank[] shards;
+
+	/**
+	 * Barriers between cross-shard transfers and global snapshots, one per
+	 * shard.
+	 */
+	private final ReentrantReadWriteLock[] barriers;
+
+	/**
+	 * The number of cross-shard transfers that have started to commit.
+	 */
+	private final LongAdder begun = new LongAdder();
+
+	/**
+	 * The number of cross-shard transfers that have finished committing.
+	 */
+	private final LongAdder finished = new LongAdder();
+
+	/**
+	 * Creates new bank instance.
+	 * 
+	 * @param n
+	 *            the number of accounts (numbered from 0 to n-1).
+	 * @param shards
+	 *            the number of shards.
+	 * @param mode
+	 *            concurrency control of the mutating operations in every
+	 *            shard.
+	 * @throws IllegalArgumentException
+	 *             when shards is not positive or mode is null.
+	 */
+	public ShardedBank(int n, int shards, ConcurrencyMode mode) {
+		if (shards <= 0) {
+			throw new IllegalArgumentException("Invalid number of shards: "
+					+ shards);
+		}
+		this.n = n;
+		this.shards = new Bank[shards];
+		barriers = new ReentrantReadWriteLock[shards];
+		for (int s = 0; s < shards; ++s) {
+			this.shards[s] = new Bank((n - s + shards - 1) / shards, mode);
+			barriers[s] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the shard of the specified account.
+	 * 
+	 * @param i
+	 *            valid account index
+	 * @return shard
+	 */
+	private Bank shardOf(int i) {
+		return shards[i % shards.length];
+	}
+
+	/**
+	 * Checks the account index.
+	 * 
+	 * @param i
+	 *            account index
+	 * @throws IllegalArgumentException
+	 *             when i is invalid index.
+	 */
+	private void checkIndex(int i) {
+		if (i < 0 || i >= n) {
+			throw new IllegalArgumentException("Invalid index: " + i);
+		}
+	}
+
+	/**
+	 * Returns current amount in account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @return amount in account
+	 * @throws IllegalArgumentException
+	 *             when i is invalid index.
+	 */
+	public long getAmount(int i) {
+		checkIndex(i);
+		return shardOf(i).getAmount(i / shards.length);
+	}
+
+	/**
+	 * Returns total amount deposited in bank. Sums the shard totals without
+	 * stopping the cross-shard transfers, retrying a sum that a transfer
+	 * overlapped; after a bounded number of retries waits for the transfers
+	 * in progress instead.
+	 */
+	public long getTotalAmount() {
+		for (int k = 0; k < TOTAL_RETRIES; ++k) {
+			long done = finished.sum();
+			long started = begun.sum();
+			if (started == done) {
+				long total = 0;
+				for (Bank shard : shards) {
+					total += shard.getTotalAmount();
+				}
+				if (begun.sum() == started) {
+					return total;
+				}
+			}
+			Thread.yield();
+		}
+		lockBarriers();
+		try {
+			long total = 0;
+			for (Bank shard : shards) {
+				total += shard.getTotalAmount();
+			}
+			return total;
+		} finally {
+			unlockBarriers();
+		}
+	}
+
+	/**
+	 * Deposits the specified amount of money to account.
+	 * 
+	 * @param i
+	 *            account index.
+	 * @param amount
+	 *            amount to deposit.
+	 * @return resulting amount on account.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link Bank#MAX_AMOUNT}, or i
+	 *             is invalid index.
+	 * @throws IllegalStateException
+	 *             when deposit will overflow account above
+	 *             {@link Bank#MAX_AMOUNT}.
+	 */
+	public long deposit(int i, long amount) {
+		checkIndex(i);
+		return shardOf(i).deposit(i / shards.length, amount);
+	}
+
+	/**
+	 * Withdraws specified amount from account.
+	 * 
+	 * @param i
+	 *            account index
+	 * @param amount
+	 *            amount to withdraw
+	 * @return resulting amount on account.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link Bank#MAX_AMOUNT}, or i
+	 *             is invalid index.
+	 * @throws IllegalStateException
+	 *             when account does not have enough to withdraw.
+	 */
+	public long withdraw(int i, long amount) {
+		checkIndex(i);
+		return shardOf(i).withdraw(i / shards.length, amount);
+	}
+
+	/**
+	 * Transfers specified amount from one account to the other account.
+	 * Accounts of different shards are changed by a two-phase commit.
+	 * 
+	 * @param fromIndex
+	 *            account index to withdraw from.
+	 * @param toIndex
+	 *            account index to deposit to.
+	 * @param amount
+	 *            amount to transfer.
+	 * @throws IllegalArgumentException
+	 *             when amount <= 0 or amount > {@link Bank#MAX_AMOUNT}, or
+	 *             account indices are invalid.
+	 * @throws IllegalStateException
+	 *             when there is not enough funds in source account or too much
+	 *             in target one.
+	 */
+	public void transfer(int fromIndex, int toIndex, long amount) {
+		checkIndex(fromIndex);
+		checkIndex(toIndex);
+		int fromShard = fromIndex % shards.length;
+		int toShard = toIndex % shards.length;
+		int i = fromIndex / shards.length;
+		int j = toIndex / shards.length;
+		if (fromShard == toShard) {
+			shards[fromShard].transfer(i, j, amount);
+			return;
+		}
+		if (amount <= 0 || amount > Bank.MAX_AMOUNT) {
+			throw new IllegalArgumentException("Invalid amount: " + amount);
+		}
+		Bank from = shards[fromShard];
+		Bank to = shards[toShard];
+		ReentrantReadWriteLock.ReadLock first = barriers[Math.min(fromShard,
+				toShard)].readLock();
+		ReentrantReadWriteLock.ReadLock second = barriers[Math.max(fromShard,
+				toShard)].readLock();
+		first.lock();
+		second.lock();
+		try {
+			long newFromValue;
+			long newToValue;
+			if (fromShard < toShard) {
+				newFromValue = from.prepare(i, -amount);
+				try {
+					newToValue = to.prepare(j, amount);
+				} catch (IllegalStateException e) {
+					from.abort(i);
+					throw e;
+				}
+			} else {
+				newToValue = to.prepare(j, amount);
+				try {
+					newFromValue = from.prepare(i, -amount);
+				} catch (IllegalStateException e) {
+					to.abort(j);
+					throw e;
+				}
+			}
+			begun.increment();
+			try {
+				from.commit(i, newFromValue, -amount);
+				to.commit(j, newToValue, amount);
+			} finally {
+				finished.increment();
+			}
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+	}
+
+	/**
+	 * Returns snapshot of all accounts in the bank, consistent across the
+	 * shards. Waits for the cross-shard transfers in progress.
+	 * 
+	 * @return snapshot of the current bank state
+	 */
+	public ShardedSnapshot snapshot() {
+		Snapshot[] snapshots = new Snapshot[shards.length];
+		lockBarriers();
+		try {
+			for (int s = 0; s < shards.length; ++s) {
+				snapshots[s] = shards[s].snapshot();
+			}
+		} finally {
+			unlockBarriers();
+		}
+		return new ShardedSnapshot(n, snapshots);
+	}
+
+	/**
+	 * Takes all the barriers for writing, in shard order.
+	 */
+	private void lockBarriers() {
+		for (ReentrantReadWriteLock barrier : barriers) {
+			barrier.writeLock().lock();
+		}
+	}
+
+	/**
+	 * Releases the barriers taken by {@link #lockBarriers()}.
+	 */
+	private void unlockBarriers() {
+		for (int s = barriers.length - 1; s >= 0; --s) {
+			barriers[s].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes all the shards, see {@link Bank#close()}.
+	 */
+	public void close() {
+		for (Bank shard : shards) {
+			shard.close();
+		}
+	}
+}
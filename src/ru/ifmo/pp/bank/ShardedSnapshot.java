@@ -0,0 +1,102 @@
+package ru.ifmo.pp.bank;
+
+/**
+ * Snapshot of a {@link ShardedBank}: one snapshot of every shard, taken while
+ * no cross-shard transfer was in progress.
+ */
+public class ShardedSnapshot implements AutoCloseable {
+	/**
+	 * The number of accounts.
+	 */
+	private final int accounts;
+
+	/**
+	 * Snapshots of the shards.
+	 */
+	private final Snapshot[] shards;
+
+	/**
+	 * Creates a snapshot of the sharded bank.
+	 * 
+	 * @param accounts
+	 *            the number of accounts
+	 * @param shards
+	 *            snapshots of the shards
+	 */
+	ShardedSnapshot(int accounts, Snapshot[] shards) {
+		this.accounts = accounts;
+		this.shards = shards;
+	}
+
+	/**
+	 * Returns the version of the snapshot of a shard.
+	 * 
+	 * @param shard
+	 *            shard index
+	 * @return version of the shard
+	 * @throws IllegalArgumentException
+	 *             when shard is invalid index.
+	 */
+	public long getVersion(int shard) {
+		if (shard < 0 || shard >= shards.length) {
+			throw new IllegalArgumentException("Invalid shard: " + shard);
+		}
+		return shards[shard].getVersion();
+	}
+
+	/**
+	 * Returns amount in account as of this snapshot.
+	 * 
+	 * @param n
+	 *            account index
+	 * @return amount in account
+	 * @throws IllegalArgumentException
+	 *             when n is invalid index.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public long getAmount(int n) {
+		if (n < 0 || n >= accounts) {
+			throw new IllegalArgumentException("Invalid index: " + n);
+		}
+		return shards[n % shards.length].getAmount(n / shards.length);
+	}
+
+	/**
+	 * Returns the total amount in a range of accounts as of this snapshot.
+	 * 
+	 * @param from
+	 *            first account index, inclusive.
+	 * @param to
+	 *            last account index, exclusive.
+	 * @return total amount in the accounts.
+	 * @throws IllegalArgumentException
+	 *             when the range is invalid.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public long sum(int from, int to) {
+		if (from < 0 || from > to || to > accounts) {
+			throw new IllegalArgumentException("Invalid range: " + from + ".."
+					+ to);
+		}
+		int k = shards.length;
+		long result = 0;
+		for (int s = 0; s < k; ++s) {
+			int first = (from - s + k - 1) / k;
+			int last = (to - s + k - 1) / k;
+			result += shards[s].sum(first, last);
+		}
+		return result;
+	}
+
+	/**
+	 * Closes the snapshots of all the shards.
+	 */
+	@Override
+	public void close() {
+		for (Snapshot shard : shards) {
+			shard.close();
+		}
+	}
+}
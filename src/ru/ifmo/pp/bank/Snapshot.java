@@ -1,102 +1,1037 @@
-package ru.ifmo.pp.bank;
-
-import java.util.List;
-import java.util.concurrent.atomic.AtomicLongArray;
-
-/**
- * Snapshot data structure.
- */
-public class Snapshot {
-
-	private final boolean isMutable;
-	/**
-	 * Snapshot version.
-	 */
-	private long version;
-
-	/**
-	 * Amounts of money for every account.
-	 */
-	private AtomicLongArray money;
-
-	/**
-	 * New events of deposit changes.
-	 */
-	private List<List<UpdateEvent>> events;
-
-	/**
-	 * Creates a new bank snapshot.
-	 * 
-	 * @param version
-	 *            snapshot version
-	 * @param money
-	 *            bank accounts
-	 * @param events
-	 *            change events
-	 * @param isMutable
-	 *            snapshot mutability
-	 */
-	public Snapshot(long version, AtomicLongArray money,
-			List<List<UpdateEvent>> events, boolean isMutable) {
-		this.version = version;
-		this.money = money;
-		this.events = events;
-		this.isMutable = isMutable;
-	}
-
-	/**
-	 * Creates a new snapshot made from the old one.
-	 * 
-	 * @param oldSnapshot
-	 *            old one
-	 * @param actualVersion
-	 *            actual bank version
-	 * @param isMutable
-	 *            snapshot mutability
-	 */
-	public Snapshot(Snapshot oldSnapshot, long actualVersion, boolean isMutable) {
-		this.money = oldSnapshot.money;
-		this.events = oldSnapshot.events;
-		this.version = actualVersion;
-		this.isMutable = isMutable;
-	}
-
-	/**
-	 * Add the specified change event to the events list.
-	 * 
-	 * @param account
-	 *            a changed deposit number
-	 * @param e
-	 *            change event
-	 */
-	public void addEvent(int account, UpdateEvent e) {
-		if (!isMutable) {
-			throw new UnsupportedOperationException();
-		}
-		events.get(account).add(e);
-	}
-
-	/**
-	 * Returns amount in account as of snapshot.
-	 * 
-	 * @param n
-	 *            account index.
-	 * @return amount in account.
-	 * @throws IllegalArgumentException
-	 *             when n is invalid index.
-	 */
-	public long getAmount(int n) {
-		if (n < 0 || n >= money.length()) {
-			throw new IllegalArgumentException("Invalid index: " + n);
-		}
-		long result = money.get(n);
-		for (int i = 0; i < events.get(n).size(); ++i) {
-			UpdateEvent e = events.get(n).get(i);
-			if (e.getVersion() > version) {
-				break;
-			}
-			result += e.getDifference();
-		}
-		return result;
-	}
-}
+package ru.ifmo.pp.bank;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Snapshot data structure.
+ * 
+ * A mutable snapshot is a checkpoint of the bank: amounts of all accounts as
+ * of its version plus the events since then. Checkpoint amounts are split
+ * into pages, and a new checkpoint shares all the pages its predecessor's
+ * events did not touch. Until it is materialized, a checkpoint reads its
+ * amounts through the previous one.
+ * 
+ * A checkpoint also records the versions the bank opened new accounts at
+ * since, so every snapshot has the number of accounts of its own version.
+ * The accounts opened after a checkpoint are empty in it and have no pages
+ * until the next one.
+ * 
+ * Checkpoints are reference counted: the bank holds its current checkpoint,
+ * a checkpoint holds the previous one until materialized, a read through the
+ * previous checkpoint holds it while reading, since it may be materialized
+ * concurrently, and every open snapshot holds its checkpoint. Once nobody
+ * holds a checkpoint its event log is recycled, so snapshots should be closed
+ * when no longer needed.
+ */
+public class Snapshot implements AutoCloseable {
+	/**
+	 * Binary logarithm of the number of accounts in a page.
+	 */
+	static final int PAGE_SHIFT = 10;
+
+	/**
+	 * The number of accounts in a page.
+	 */
+	static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+	/**
+	 * Page of zero amounts shared by the initial checkpoints.
+	 */
+	static final long[] ZERO_PAGE = new long[PAGE_SIZE];
+
+	/**
+	 * The number of accounts or events {@link #toArray()} reads in one task;
+	 * larger ranges are split in halves read in parallel.
+	 */
+	private static final int TASK_SIZE = 16 * PAGE_SIZE;
+
+	/**
+	 * Action on the amount in account, see {@link Snapshot#forEach}.
+	 */
+	public interface AmountConsumer {
+		/**
+		 * Performs the action on the amount in account.
+		 * 
+		 * @param account
+		 *            account index
+		 * @param amount
+		 *            amount in account
+		 */
+		void accept(int account, long amount);
+	}
+
+	/**
+	 * Spliterator over the amounts of a range of accounts, reading them a page
+	 * at a time and splitting at page boundaries.
+	 */
+	private final class Amounts implements Spliterator.OfLong {
+		/**
+		 * The next account, inclusive.
+		 */
+		private int position;
+
+		/**
+		 * The last account, exclusive.
+		 */
+		private final int end;
+
+		/**
+		 * Amounts of the accounts from {@link #position} up to
+		 * {@link #limit}, or null until read.
+		 */
+		private long[] buffer;
+
+		/**
+		 * The first account in the buffer.
+		 */
+		private int base;
+
+		/**
+		 * The last account in the buffer, exclusive.
+		 */
+		private int limit;
+
+		/**
+		 * Creates a spliterator over the range.
+		 * 
+		 * @param from
+		 *            first account index, inclusive
+		 * @param to
+		 *            last account index, exclusive
+		 */
+		Amounts(int from, int to) {
+			position = from;
+			end = to;
+			limit = from;
+		}
+
+		/**
+		 * Reads the amounts up to the end of the page of the next account.
+		 */
+		private void fill() {
+			checkOpen();
+			if (buffer == null) {
+				buffer = new long[PAGE_SIZE];
+			}
+			base = position;
+			limit = Math.min(end, (position | (PAGE_SIZE - 1)) + 1);
+			checkpoint.amounts(base, limit, buffer, 0, version);
+		}
+
+		@Override
+		public boolean tryAdvance(LongConsumer action) {
+			if (position == end) {
+				return false;
+			}
+			if (position == limit) {
+				fill();
+			}
+			action.accept(buffer[position++ - base]);
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(LongConsumer action) {
+			while (position < end) {
+				if (position == limit) {
+					fill();
+				}
+				for (; position < limit; ++position) {
+					action.accept(buffer[position - base]);
+				}
+			}
+		}
+
+		@Override
+		public Spliterator.OfLong trySplit() {
+			int middle = (position + (end - position) / 2)
+					& ~(PAGE_SIZE - 1);
+			if (middle <= position || middle < limit) {
+				return null;
+			}
+			Amounts prefix = new Amounts(position, middle);
+			position = middle;
+			limit = middle;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return end - position;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+		}
+	}
+
+	/**
+	 * Task reading the amounts of a range of accounts into an array, forking
+	 * a task for the second half of a large range. Given the pages of a
+	 * materialized checkpoint, it only copies them, and the events are added
+	 * by {@link Apply}.
+	 */
+	private final class Fill extends RecursiveAction {
+		/**
+		 * Serialization version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * First account index, inclusive.
+		 */
+		private final int from;
+
+		/**
+		 * Last account index, exclusive.
+		 */
+		private final int to;
+
+		/**
+		 * Array to store amount of account i at out[i].
+		 */
+		private final long[] out;
+
+		/**
+		 * Pages of the materialized checkpoint, or null.
+		 */
+		private final long[][] pages;
+
+		/**
+		 * Creates a task reading the range.
+		 * 
+		 * @param from
+		 *            first account index, inclusive
+		 * @param to
+		 *            last account index, exclusive
+		 * @param out
+		 *            array to store amount of account i at out[i]
+		 * @param pages
+		 *            pages of the materialized checkpoint, or null
+		 */
+		Fill(int from, int to, long[] out, long[][] pages) {
+			this.from = from;
+			this.to = to;
+			this.out = out;
+			this.pages = pages;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + (to - from) / 2) & ~(PAGE_SIZE - 1);
+				invokeAll(new Fill(from, middle, out, pages), new Fill(middle,
+						to, out, pages));
+			} else if (pages == null) {
+				checkpoint.amounts(from, to, out, from, version);
+			} else {
+				int end = Math.min(to, checkpoint.accounts);
+				for (int i = from; i < end; i += PAGE_SIZE) {
+					System.arraycopy(pages[i >>> PAGE_SHIFT], 0, out, i,
+							Math.min(PAGE_SIZE, end - i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task adding the changes of a range of touched accounts of the
+	 * checkpoint to an array of amounts. Every touched account is listed
+	 * once, so the tasks write disjoint elements.
+	 */
+	private final class Apply extends RecursiveAction {
+		/**
+		 * Serialization version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The first touched account number, inclusive.
+		 */
+		private final int from;
+
+		/**
+		 * The last touched account number, exclusive.
+		 */
+		private final int to;
+
+		/**
+		 * Array of amounts of account i at out[i].
+		 */
+		private final long[] out;
+
+		/**
+		 * Creates a task adding the changes of the range.
+		 * 
+		 * @param from
+		 *            the first touched account number, inclusive
+		 * @param to
+		 *            the last touched account number, exclusive
+		 * @param out
+		 *            array of amounts of account i at out[i]
+		 */
+		Apply(int from, int to, long[] out) {
+			this.from = from;
+			this.to = to;
+			this.out = out;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = from + (to - from) / 2;
+				invokeAll(new Apply(from, middle, out), new Apply(middle, to,
+						out));
+				return;
+			}
+			EventLog events = checkpoint.events;
+			for (int k = from; k < to; ++k) {
+				int account = events.touchedAccount(k);
+				if (account < accounts) {
+					out[account] += events.touchedSum(k, version);
+				}
+			}
+		}
+	}
+
+	private final boolean isMutable;
+	/**
+	 * Snapshot version.
+	 */
+	private long version;
+
+	/**
+	 * The number of accounts.
+	 */
+	private final int accounts;
+
+	/**
+	 * Versions of the accounts opened since the checkpoint, in version order,
+	 * or null until one is opened. Only used by checkpoints.
+	 */
+	private long[] openings;
+
+	/**
+	 * The number of accounts opened since the checkpoint. An opening is
+	 * visible to readers once the count covers it.
+	 */
+	private volatile int openingCount;
+
+	/**
+	 * Checkpoint this snapshot reads from: the snapshot itself if it is
+	 * mutable.
+	 */
+	private final Snapshot checkpoint;
+
+	/**
+	 * Pages of amounts of money for every account as of the checkpoint
+	 * version, or null until the checkpoint is materialized.
+	 */
+	private volatile long[][] money;
+
+	/**
+	 * Previous checkpoint, or null once this one is materialized.
+	 */
+	private volatile Snapshot previous;
+
+	/**
+	 * New events of deposit changes, or null once the checkpoint is released.
+	 */
+	private EventLog events;
+
+	/**
+	 * Lock taken while materializing the checkpoint.
+	 */
+	private final ReentrantLock materializeLock;
+
+	/**
+	 * The number of holders of the checkpoint.
+	 */
+	private final AtomicInteger references;
+
+	/**
+	 * Event logs of released checkpoints, shared by all the checkpoints of the
+	 * bank.
+	 */
+	private final Queue<EventLog> freeLogs;
+
+	/**
+	 * Whether the snapshot is closed.
+	 */
+	private final AtomicBoolean closed;
+
+	/**
+	 * Creates the initial checkpoint with the specified amounts.
+	 * 
+	 * @param accounts
+	 *            the number of accounts
+	 * @param version
+	 *            checkpoint version
+	 * @param money
+	 *            pages of amounts, as made by {@link #emptyPages(int)}; the
+	 *            checkpoint takes them over
+	 * @param freeLogs
+	 *            event logs available for reuse
+	 */
+	Snapshot(int accounts, long version, long[][] money,
+			Queue<EventLog> freeLogs) {
+		this.version = version;
+		this.accounts = accounts;
+		this.checkpoint = this;
+		this.money = money;
+		this.events = new EventLog(0);
+		this.materializeLock = new ReentrantLock();
+		this.references = new AtomicInteger(1);
+		this.freeLogs = freeLogs;
+		this.closed = null;
+		this.isMutable = true;
+	}
+
+	/**
+	 * Creates a new checkpoint following the previous one. Its amounts are
+	 * read through the previous checkpoint until {@link #materialize()} is
+	 * called. The holder of the previous checkpoint passes its reference to
+	 * the new one and gets the reference to the new checkpoint instead.
+	 * 
+	 * @param version
+	 *            checkpoint version; the previous checkpoint must not get any
+	 *            events newer than this
+	 * @param previous
+	 *            previous checkpoint
+	 */
+	Snapshot(long version, Snapshot previous) {
+		this.version = version;
+		this.accounts = previous.accounts + previous.openingCount;
+		this.checkpoint = this;
+		this.previous = previous;
+		this.freeLogs = previous.freeLogs;
+		EventLog log = freeLogs.poll();
+		this.events = log != null ? log : new EventLog(
+				previous.events.touchedCount());
+		this.materializeLock = new ReentrantLock();
+		this.references = new AtomicInteger(1);
+		this.closed = null;
+		this.isMutable = true;
+	}
+
+	/**
+	 * Creates a new snapshot made from the checkpoint. The checkpoint must be
+	 * already acquired for the snapshot.
+	 * 
+	 * @param checkpoint
+	 *            current checkpoint
+	 * @param actualVersion
+	 *            actual bank version
+	 */
+	Snapshot(Snapshot checkpoint, long actualVersion) {
+		this.version = actualVersion;
+		this.accounts = checkpoint.accountsAt(actualVersion);
+		this.checkpoint = checkpoint;
+		this.materializeLock = null;
+		this.references = null;
+		this.freeLogs = null;
+		this.closed = new AtomicBoolean();
+		this.isMutable = false;
+	}
+
+	/**
+	 * Returns pages for the specified number of accounts, all sharing
+	 * {@link #ZERO_PAGE}.
+	 * 
+	 * @param accounts
+	 *            the number of accounts
+	 * @return pages of zero amounts
+	 */
+	static long[][] emptyPages(int accounts) {
+		long[][] pages = new long[(accounts + PAGE_SIZE - 1) >>> PAGE_SHIFT][];
+		Arrays.fill(pages, ZERO_PAGE);
+		return pages;
+	}
+
+	/**
+	 * Returns the pages of a materialized checkpoint. The pages must not be
+	 * modified.
+	 * 
+	 * @return pages of amounts as of the checkpoint version
+	 */
+	long[][] pages() {
+		return money;
+	}
+
+	/**
+	 * Returns the number of accounts.
+	 * 
+	 * @return the number of accounts
+	 */
+	int accounts() {
+		return accounts;
+	}
+
+	/**
+	 * Returns the number of accounts as of the specified version of this
+	 * checkpoint.
+	 * 
+	 * @param v
+	 *            version, not less than the checkpoint version
+	 * @return the number of accounts
+	 */
+	private int accountsAt(long v) {
+		int count = openingCount;
+		long[] o = openings;
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (o[middle] <= v) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return accounts + low;
+	}
+
+	/**
+	 * Records an account opened by the operation publishing the specified
+	 * version. The new account is numbered after all the accounts as of the
+	 * previous version.
+	 * 
+	 * @param version
+	 *            bank version of the opening
+	 */
+	void open(long version) {
+		if (!isMutable) {
+			throw new UnsupportedOperationException();
+		}
+		int count = openingCount;
+		if (openings == null) {
+			openings = new long[4];
+		} else if (count == openings.length) {
+			openings = Arrays.copyOf(openings, 2 * count);
+		}
+		openings[count] = version;
+		openingCount = count + 1;
+	}
+
+	/**
+	 * Returns the event logs available for reuse by the checkpoints of the
+	 * bank.
+	 * 
+	 * @return free event logs
+	 */
+	Queue<EventLog> freeLogs() {
+		return freeLogs;
+	}
+
+	/**
+	 * Returns the number of accounts as of snapshot.
+	 * 
+	 * @return the number of accounts
+	 */
+	public int getAccountCount() {
+		return accounts;
+	}
+
+	/**
+	 * Returns the bank version this snapshot represents.
+	 * 
+	 * @return snapshot version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Add the specified change event to the events list.
+	 * 
+	 * @param account
+	 *            a changed deposit number
+	 * @param e
+	 *            change event
+	 */
+	public void addEvent(int account, UpdateEvent e) {
+		addEvent(account, e.getVersion(), e.getDifference());
+	}
+
+	/**
+	 * Add the change event with the specified version and difference to the
+	 * events list.
+	 * 
+	 * @param account
+	 *            a changed deposit number
+	 * @param version
+	 *            bank version of the change
+	 * @param difference
+	 *            deposit change
+	 */
+	void addEvent(int account, long version, long difference) {
+		if (!isMutable) {
+			throw new UnsupportedOperationException();
+		}
+		events.append(account, version, difference);
+	}
+
+	/**
+	 * Returns the number of events of the checkpoint. Only called by the
+	 * writer.
+	 * 
+	 * @return the number of events
+	 */
+	int eventCount() {
+		return events.eventCount();
+	}
+
+	/**
+	 * Returns the number of accounts touched by the events of the checkpoint.
+	 * 
+	 * @return the number of touched accounts
+	 */
+	int touchedCount() {
+		return events.touchedCount();
+	}
+
+	/**
+	 * Computes the pages of this checkpoint from the previous one, copying
+	 * only the pages touched by its events. Must be called once the previous
+	 * checkpoint gets no more events; does nothing if already materialized.
+	 */
+	void materialize() {
+		materializeLock.lock();
+		try {
+			Snapshot p = previous;
+			if (p == null) {
+				return;
+			}
+			p.materialize();
+			long[][] base = p.money;
+			long[][] pages = Arrays.copyOf(base,
+					(accounts + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+			EventLog log = p.events;
+			for (int k = 0; k < log.touchedCount(); ++k) {
+				int account = log.touchedAccount(k);
+				int page = account >>> PAGE_SHIFT;
+				if (pages[page] == null) {
+					pages[page] = new long[PAGE_SIZE];
+				} else if (page < base.length && pages[page] == base[page]) {
+					pages[page] = base[page].clone();
+				}
+				pages[page][account & (PAGE_SIZE - 1)] += log.touchedTotal(k);
+			}
+			for (int page = base.length; page < pages.length; ++page) {
+				if (pages[page] == null) {
+					pages[page] = ZERO_PAGE;
+				}
+			}
+			money = pages;
+			previous = null;
+			p.release();
+		} finally {
+			materializeLock.unlock();
+		}
+	}
+
+	/**
+	 * Acquires the checkpoint, unless it is already released.
+	 * 
+	 * @return true if acquired
+	 */
+	boolean acquire() {
+		while (true) {
+			int count = references.get();
+			if (count == 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Releases the checkpoint. The last release recycles the event log.
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			EventLog log = events;
+			events = null;
+			money = null;
+			log.clear();
+			freeLogs.offer(log);
+		}
+	}
+
+	/**
+	 * Returns whether the checkpoint is released, so its data can't be read
+	 * anymore.
+	 * 
+	 * @return true if released
+	 */
+	boolean isReleased() {
+		return references.get() == 0;
+	}
+
+	/**
+	 * Closes the snapshot and releases the bank data it holds. The snapshot
+	 * must not be read after or concurrently with closing. Closing a closed
+	 * snapshot has no effect.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             when the snapshot is a checkpoint.
+	 */
+	@Override
+	public void close() {
+		if (isMutable) {
+			throw new UnsupportedOperationException();
+		}
+		if (closed.compareAndSet(false, true)) {
+			checkpoint.release();
+		}
+	}
+
+	/**
+	 * Checks that the snapshot is not closed.
+	 * 
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	private void checkOpen() {
+		if (closed != null && closed.get()) {
+			throw new IllegalStateException("Snapshot is closed");
+		}
+	}
+
+	/**
+	 * Returns amount in account as of the version of this checkpoint: zero
+	 * for an account opened later.
+	 * 
+	 * @param n
+	 *            account index
+	 * @return amount in account
+	 */
+	private long base(int n) {
+		if (n >= accounts) {
+			return 0;
+		}
+		while (true) {
+			long[][] pages = money;
+			if (pages != null) {
+				return pages[n >>> PAGE_SHIFT][n & (PAGE_SIZE - 1)];
+			}
+			Snapshot p = previous;
+			if (p != null && p.acquire()) {
+				try {
+					return p.amount(n, version);
+				} finally {
+					p.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns amount in account as of the specified version of this
+	 * checkpoint.
+	 * 
+	 * @param n
+	 *            account index
+	 * @param v
+	 *            version, not less than the checkpoint version
+	 * @return amount in account
+	 */
+	private long amount(int n, long v) {
+		return base(n) + events.sum(n, v);
+	}
+
+	/**
+	 * Returns amount in account as of snapshot.
+	 * 
+	 * @param n
+	 *            account index.
+	 * @return amount in account.
+	 * @throws IllegalArgumentException
+	 *             when n is invalid index.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public long getAmount(int n) {
+		if (n < 0 || n >= accounts) {
+			throw new IllegalArgumentException("Invalid index: " + n);
+		}
+		checkOpen();
+		return checkpoint.amount(n, version);
+	}
+
+	/**
+	 * Checks that the range of accounts is valid.
+	 * 
+	 * @param from
+	 *            first account index, inclusive
+	 * @param to
+	 *            last account index, exclusive
+	 * @throws IllegalArgumentException
+	 *             when the range is invalid.
+	 */
+	private void checkRange(int from, int to) {
+		if (from < 0 || from > to || to > accounts) {
+			throw new IllegalArgumentException("Invalid range: " + from
+					+ ".." + to);
+		}
+	}
+
+	/**
+	 * Stores amounts in the range of accounts as of the specified version of
+	 * this checkpoint.
+	 * 
+	 * @param from
+	 *            first account index, inclusive
+	 * @param to
+	 *            last account index, exclusive
+	 * @param out
+	 *            array to store amount of account i at out[start + i - from]
+	 * @param start
+	 *            position of the first amount in out
+	 * @param v
+	 *            version, not less than the checkpoint version
+	 */
+	private void amounts(int from, int to, long[] out, int start, long v) {
+		long[][] pages = money;
+		if (pages == null) {
+			Snapshot p = previous;
+			if (p != null && p.acquire()) {
+				try {
+					p.amounts(from, to, out, start, version);
+				} finally {
+					p.release();
+				}
+			} else {
+				pages = money;
+			}
+		}
+		if (pages != null) {
+			int end = Math.min(to, accounts);
+			for (int i = from; i < end;) {
+				int offset = i & (PAGE_SIZE - 1);
+				int length = Math.min(PAGE_SIZE - offset, end - i);
+				System.arraycopy(pages[i >>> PAGE_SHIFT], offset, out, start + i
+						- from, length);
+				i += length;
+			}
+		}
+		if (to > accounts) {
+			int first = Math.max(from, accounts);
+			Arrays.fill(out, start + first - from, start + to - from, 0);
+		}
+		int count = events.touchedCount();
+		if (count < to - from) {
+			for (int k = 0; k < count; ++k) {
+				int account = events.touchedAccount(k);
+				if (account >= from && account < to) {
+					out[start + account - from] += events.touchedSum(k, v);
+				}
+			}
+		} else {
+			for (int i = from; i < to; ++i) {
+				out[start + i - from] += events.sum(i, v);
+			}
+		}
+	}
+
+	/**
+	 * Returns total amount in the range of accounts as of the specified
+	 * version of this checkpoint.
+	 * 
+	 * @param from
+	 *            first account index, inclusive
+	 * @param to
+	 *            last account index, exclusive
+	 * @param v
+	 *            version, not less than the checkpoint version
+	 * @return total amount
+	 */
+	private long sum(int from, int to, long v) {
+		long result = 0;
+		long[][] pages = money;
+		if (pages == null) {
+			Snapshot p = previous;
+			if (p != null && p.acquire()) {
+				try {
+					result = p.sum(from, to, version);
+				} finally {
+					p.release();
+				}
+			} else {
+				pages = money;
+			}
+		}
+		if (pages != null) {
+			int end = Math.min(to, accounts);
+			for (int i = from; i < end; ++i) {
+				result += pages[i >>> PAGE_SHIFT][i & (PAGE_SIZE - 1)];
+			}
+		}
+		int count = events.touchedCount();
+		if (count < to - from) {
+			for (int k = 0; k < count; ++k) {
+				int account = events.touchedAccount(k);
+				if (account >= from && account < to) {
+					result += events.touchedSum(k, v);
+				}
+			}
+		} else {
+			for (int i = from; i < to; ++i) {
+				result += events.sum(i, v);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns amounts in the specified accounts as of snapshot.
+	 * 
+	 * @param accounts
+	 *            account indices.
+	 * @param out
+	 *            array to store amount of accounts[i] at out[i].
+	 * @throws IllegalArgumentException
+	 *             when some index is invalid or out is too short.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public void getAmounts(int[] accounts, long[] out) {
+		if (out.length < accounts.length) {
+			throw new IllegalArgumentException("Invalid output length: "
+					+ out.length);
+		}
+		for (int i = 0; i < accounts.length; ++i) {
+			if (accounts[i] < 0 || accounts[i] >= this.accounts) {
+				throw new IllegalArgumentException("Invalid index: "
+						+ accounts[i]);
+			}
+		}
+		checkOpen();
+		for (int i = 0; i < accounts.length; ++i) {
+			out[i] = checkpoint.amount(accounts[i], version);
+		}
+	}
+
+	/**
+	 * Returns amounts in the range of accounts as of snapshot.
+	 * 
+	 * @param from
+	 *            first account index, inclusive.
+	 * @param to
+	 *            last account index, exclusive.
+	 * @param out
+	 *            array to store amount of account i at out[i - from].
+	 * @throws IllegalArgumentException
+	 *             when the range is invalid or out is too short.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public void getAmounts(int from, int to, long[] out) {
+		checkRange(from, to);
+		if (out.length < to - from) {
+			throw new IllegalArgumentException("Invalid output length: "
+					+ out.length);
+		}
+		checkOpen();
+		checkpoint.amounts(from, to, out, 0, version);
+	}
+
+	/**
+	 * Returns total amount in the range of accounts as of snapshot.
+	 * 
+	 * @param from
+	 *            first account index, inclusive.
+	 * @param to
+	 *            last account index, exclusive.
+	 * @return total amount in the accounts.
+	 * @throws IllegalArgumentException
+	 *             when the range is invalid.
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public long sum(int from, int to) {
+		checkRange(from, to);
+		checkOpen();
+		return checkpoint.sum(from, to, version);
+	}
+
+	/**
+	 * Performs the action on the amount in every account, in account order.
+	 * 
+	 * @param action
+	 *            action on the amounts
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public void forEach(AmountConsumer action) {
+		long[] buffer = new long[PAGE_SIZE];
+		for (int from = 0; from < accounts; from += PAGE_SIZE) {
+			int to = Math.min(accounts, from + PAGE_SIZE);
+			checkOpen();
+			checkpoint.amounts(from, to, buffer, 0, version);
+			for (int i = from; i < to; ++i) {
+				action.accept(i, buffer[i - from]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a spliterator over the amounts in all accounts, in account
+	 * order, so the account of an amount is its index in the encounter order.
+	 * It splits at page boundaries and stays exactly sized, so parallel
+	 * streams divide the accounts evenly. The snapshot must stay open while
+	 * the spliterator is used.
+	 * 
+	 * @return spliterator over the amounts
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public Spliterator.OfLong spliterator() {
+		checkOpen();
+		return new Amounts(0, accounts);
+	}
+
+	/**
+	 * Returns a sequential stream of the amounts in all accounts, in account
+	 * order; call {@link LongStream#parallel()} to scan in parallel. The
+	 * snapshot must stay open while the stream is used.
+	 * 
+	 * @return stream of the amounts
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public LongStream amounts() {
+		return StreamSupport.longStream(spliterator(), false);
+	}
+
+	/**
+	 * Returns amounts in all accounts as of snapshot, read in parallel by
+	 * the common fork-join pool.
+	 * 
+	 * @return array holding the amount of account i at index i
+	 * @throws IllegalStateException
+	 *             when the snapshot is closed.
+	 */
+	public long[] toArray() {
+		checkOpen();
+		long[] result = new long[accounts];
+		long[][] pages = checkpoint.money;
+		new Fill(0, accounts, result, pages).invoke();
+		if (pages != null) {
+			new Apply(0, checkpoint.events.touchedCount(), result).invoke();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,287 @@
+package ru.ifmo.pp.bank;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stream of the changes of a {@link Bank}: records of version, account,
+ * difference and new amount of every change, in version order. An opened
+ * account comes as a record of zero difference and amount.
+ * 
+ * The bank appends the records to a bounded ring while publishing the
+ * operations, which are published one at a time in version order, and the
+ * subscriber takes them in batches with {@link #poll}. A full ring never
+ * stops the bank: the subscription is marked lost and drops the records
+ * until the subscriber calls {@link #resync()}, which returns a snapshot the
+ * stream continues from. A new subscription starts lost, so the first call
+ * is {@link #resync()}.
+ * 
+ * A subscription is read by one thread at a time.
+ */
+public class Subscription implements AutoCloseable {
+	/**
+	 * State of a subscription receiving records.
+	 */
+	private static final int ACTIVE = 0;
+
+	/**
+	 * State of a subscription dropping records until resynchronized.
+	 */
+	private static final int LOST = 1;
+
+	/**
+	 * Number of times the subscriber yields before parking.
+	 */
+	private static final int SPINS = 100;
+
+	/**
+	 * The bank the changes come from.
+	 */
+	private final Bank bank;
+
+	/**
+	 * Versions of the records in the ring.
+	 */
+	private final long[] versions;
+
+	/**
+	 * Accounts of the records in the ring.
+	 */
+	private final int[] accounts;
+
+	/**
+	 * Differences of the records in the ring.
+	 */
+	private final long[] differences;
+
+	/**
+	 * New amounts in account of the records in the ring.
+	 */
+	private final long[] balances;
+
+	/**
+	 * Mask of a position giving its slot.
+	 */
+	private final int mask;
+
+	/**
+	 * Position of the next record to take, written by the subscriber.
+	 */
+	private volatile long head;
+
+	/**
+	 * Position of the next record to append, written by the bank.
+	 */
+	private volatile long tail;
+
+	/**
+	 * Head as last read by the bank. Only used by the bank.
+	 */
+	private long cachedHead;
+
+	/**
+	 * {@link #ACTIVE} or {@link #LOST}.
+	 */
+	private volatile int state;
+
+	/**
+	 * Whether the subscription is closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The first version the subscriber takes records of: records older than
+	 * the last resynchronization are skipped. Only used by the subscriber.
+	 */
+	private long from;
+
+	/**
+	 * Subscriber parked in {@link #poll}, or null.
+	 */
+	private volatile Thread waiter;
+
+	/**
+	 * Creates a lost subscription.
+	 * 
+	 * @param bank
+	 *            the bank the changes come from
+	 * @param capacity
+	 *            the number of records in the ring, a power of two
+	 */
+	Subscription(Bank bank, int capacity) {
+		this.bank = bank;
+		versions = new long[capacity];
+		accounts = new int[capacity];
+		differences = new long[capacity];
+		balances = new long[capacity];
+		mask = capacity - 1;
+		state = LOST;
+	}
+
+	/**
+	 * Appends a record, or marks the subscription lost if the ring is full.
+	 * Called by the bank while publishing version v, so the calls never
+	 * overlap and come in version order.
+	 * 
+	 * @param v
+	 *            version of the change
+	 * @param i
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 * @param balance
+	 *            new amount in account
+	 */
+	void offer(long v, int i, long difference, long balance) {
+		if (state != ACTIVE) {
+			return;
+		}
+		long t = tail;
+		if (t - cachedHead > mask) {
+			cachedHead = head;
+			if (t - cachedHead > mask) {
+				state = LOST;
+				wake();
+				return;
+			}
+		}
+		int slot = (int) t & mask;
+		versions[slot] = v;
+		accounts[slot] = i;
+		differences[slot] = difference;
+		balances[slot] = balance;
+		tail = t + 1;
+		wake();
+	}
+
+	/**
+	 * Unparks the subscriber waiting in {@link #poll}, if any.
+	 */
+	private void wake() {
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	/**
+	 * Takes the next records, waiting up to the timeout if there are none.
+	 * Record k is stored at index k of the arrays, and at most as many
+	 * records as fit in the arrays are taken.
+	 * 
+	 * @param versions
+	 *            array to store versions
+	 * @param accounts
+	 *            array to store account indices
+	 * @param differences
+	 *            array to store changes of the amount
+	 * @param balances
+	 *            array to store new amounts in account
+	 * @param timeout
+	 *            the maximum time to wait, 0 to return at once
+	 * @param unit
+	 *            unit of the timeout
+	 * @return the number of records taken, or -1 if the subscription is lost
+	 *         and must be resynchronized
+	 * @throws IllegalArgumentException
+	 *             when the arrays have different lengths.
+	 * @throws IllegalStateException
+	 *             when the subscription is closed.
+	 * @throws InterruptedException
+	 *             when the thread is interrupted while waiting.
+	 */
+	public int poll(long[] versions, int[] accounts, long[] differences,
+			long[] balances, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		int length = versions.length;
+		if (accounts.length != length || differences.length != length
+				|| balances.length != length) {
+			throw new IllegalArgumentException("Invalid batch arrays");
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		while (true) {
+			if (closed) {
+				throw new IllegalStateException("Subscription is closed");
+			}
+			if (state == LOST) {
+				return -1;
+			}
+			long h = head;
+			long t = tail;
+			while (h < t && this.versions[(int) h & mask] < from) {
+				++h;
+			}
+			if (h < t || length == 0) {
+				int count = (int) Math.min(t - h, length);
+				for (int k = 0; k < count; ++k) {
+					int slot = (int) (h + k) & mask;
+					versions[k] = this.versions[slot];
+					accounts[k] = this.accounts[slot];
+					differences[k] = this.differences[slot];
+					balances[k] = this.balances[slot];
+				}
+				head = h + count;
+				return count;
+			}
+			head = h;
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return 0;
+			}
+			if (++spins < SPINS) {
+				Thread.yield();
+				continue;
+			}
+			waiter = Thread.currentThread();
+			if (tail == t && state == ACTIVE) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waiter = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Restarts the stream: drops the records not taken yet and returns a
+	 * snapshot such that the next records taken are exactly the changes
+	 * newer than the snapshot.
+	 * 
+	 * @return snapshot the stream continues from
+	 * @throws IllegalStateException
+	 *             when the subscription is closed.
+	 */
+	public Snapshot resync() {
+		if (closed) {
+			throw new IllegalStateException("Subscription is closed");
+		}
+		head = tail;
+		state = ACTIVE;
+		Snapshot snapshot = bank.snapshotAfterPending();
+		from = snapshot.getVersion() + 1;
+		return snapshot;
+	}
+
+	/**
+	 * Checks whether the subscription has dropped records and must be
+	 * resynchronized.
+	 * 
+	 * @return true if lost
+	 */
+	public boolean isLost() {
+		return state == LOST;
+	}
+
+	/**
+	 * Stops the stream. Closing a closed subscription has no effect.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			bank.unsubscribe(this);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package ru.ifmo.pp.bank;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of account changes, written to a file with group commit.
+ * 
+ * Every change is a fixed-size binary record of the bank version, the
+ * account index and the difference of the amount, the same data as an
+ * {@link UpdateEvent} of the account; an opened account is a record of zero
+ * difference for the next account index. Records are appended to a memory
+ * buffer by the operation publishing the version, and made durable by
+ * {@link #sync()}: the first waiting thread becomes the leader, writes all
+ * the buffered records with a single write and force, and every operation
+ * whose records were in that write returns without touching the file.
+ */
+public class WriteAheadLog implements Closeable {
+	/**
+	 * Size of a record in bytes: version, account index and difference.
+	 */
+	public static final int RECORD_SIZE = 8 + 4 + 8;
+
+	/**
+	 * Initial capacity of the buffers, in records.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The log file.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Channel of the log file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Time in nanoseconds a leader waits for more records before writing.
+	 */
+	private final long commitInterval;
+
+	/**
+	 * Guards the buffers against concurrent appending and swapping.
+	 */
+	private final ReentrantLock bufferLock;
+
+	/**
+	 * Guards the state of the leader.
+	 */
+	private final ReentrantLock flushLock;
+
+	/**
+	 * Signalled when the leader finishes writing.
+	 */
+	private final Condition flushed;
+
+	/**
+	 * Whether a leader is writing. Guarded by {@link #flushLock}.
+	 */
+	private boolean flushing;
+
+	/**
+	 * Records appended and not yet taken by a leader.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * Empty buffer to swap with the pending one. Only used by the leader.
+	 */
+	private ByteBuffer spare;
+
+	/**
+	 * Version of the last appended record.
+	 */
+	private volatile long appendedVersion;
+
+	/**
+	 * All the records up to this version are durable.
+	 */
+	private volatile long durableVersion;
+
+	/**
+	 * Error of the last failed write, if any.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Opens the log, appending to the end of an existing file. A torn record
+	 * at the end of the file is dropped. Records are written as soon as a
+	 * thread waits for them.
+	 * 
+	 * @param file
+	 *            log file
+	 * @throws IOException
+	 *             when the file can't be opened.
+	 */
+	public WriteAheadLog(File file) throws IOException {
+		this(file, 0);
+	}
+
+	/**
+	 * Opens the log, appending to the end of an existing file.
+	 * 
+	 * @param file
+	 *            log file
+	 * @param commitInterval
+	 *            time in nanoseconds a leader waits for more records before
+	 *            writing; trades the latency of an operation for fewer forces.
+	 * @throws IOException
+	 *             when the file can't be opened.
+	 * @throws IllegalArgumentException
+	 *             when commitInterval is negative.
+	 */
+	public WriteAheadLog(File file, long commitInterval) throws IOException {
+		if (commitInterval < 0) {
+			throw new IllegalArgumentException("Invalid commit interval: "
+					+ commitInterval);
+		}
+		this.file = new RandomAccessFile(file, "rw");
+		channel = this.file.getChannel();
+		long size = channel.size();
+		size -= size % RECORD_SIZE;
+		channel.truncate(size);
+		channel.position(size);
+		if (size > 0) {
+			ByteBuffer last = ByteBuffer.allocate(8);
+			channel.read(last, size - RECORD_SIZE);
+			appendedVersion = last.getLong(0);
+			durableVersion = appendedVersion;
+		}
+		this.commitInterval = commitInterval;
+		bufferLock = new ReentrantLock();
+		flushLock = new ReentrantLock();
+		flushed = flushLock.newCondition();
+		pending = ByteBuffer.allocate(INITIAL_CAPACITY * RECORD_SIZE);
+		spare = ByteBuffer.allocate(INITIAL_CAPACITY * RECORD_SIZE);
+	}
+
+	/**
+	 * Appends a record to the buffer. Records must be appended in version
+	 * order.
+	 * 
+	 * @param version
+	 *            bank version of the change
+	 * @param account
+	 *            account index
+	 * @param difference
+	 *            change of the amount
+	 */
+	void append(long version, int account, long difference) {
+		bufferLock.lock();
+		try {
+			if (pending.remaining() < RECORD_SIZE) {
+				ByteBuffer b = ByteBuffer.allocate(2 * pending.capacity());
+				pending.flip();
+				b.put(pending);
+				pending = b;
+			}
+			pending.putLong(version);
+			pending.putInt(account);
+			pending.putLong(difference);
+			appendedVersion = version;
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all the records appended so far are durable. If no write
+	 * is in progress, the calling thread becomes the leader and writes all
+	 * the buffered records; otherwise it waits for the current write and
+	 * checks again.
+	 * 
+	 * @throws IllegalStateException
+	 *             when the log can't be written.
+	 */
+	public void sync() {
+		long version = appendedVersion;
+		if (durableVersion >= version) {
+			return;
+		}
+		flushLock.lock();
+		try {
+			while (durableVersion < version) {
+				if (failure != null) {
+					throw new IllegalStateException("Write-ahead log failure",
+							failure);
+				}
+				if (flushing) {
+					flushed.awaitUninterruptibly();
+				} else {
+					flush();
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes and forces all the buffered records as the leader. Called with
+	 * the flush lock held; releases it during the write so that followers
+	 * can keep arriving.
+	 */
+	private void flush() {
+		flushing = true;
+		long last = durableVersion;
+		flushLock.unlock();
+		try {
+			if (commitInterval > 0) {
+				LockSupport.parkNanos(commitInterval);
+			}
+			ByteBuffer b;
+			bufferLock.lock();
+			try {
+				b = pending;
+				pending = spare;
+				last = appendedVersion;
+			} finally {
+				bufferLock.unlock();
+			}
+			b.flip();
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+			channel.force(false);
+			b.clear();
+			spare = b;
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			flushLock.lock();
+			flushing = false;
+			if (failure == null) {
+				durableVersion = last;
+			}
+			flushed.signalAll();
+		}
+	}
+
+	/**
+	 * Maps the records with versions greater than the specified one. Versions
+	 * in the log never decrease, so the first such record is found by a
+	 * binary search over the fixed-size records.
+	 * 
+	 * @param version
+	 *            bank version
+	 * @return read-only buffer of the records newer than version
+	 * @throws IOException
+	 *             when the file can't be read or the tail is too long to map.
+	 */
+	ByteBuffer tail(long version) throws IOException {
+		long size = channel.size() / RECORD_SIZE;
+		ByteBuffer record = ByteBuffer.allocate(8);
+		long low = 0;
+		long high = size;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			record.clear();
+			channel.read(record, middle * RECORD_SIZE);
+			if (record.getLong(0) <= version) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		long length = (size - low) * RECORD_SIZE;
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Write-ahead log tail too long: " + length
+					+ " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, low * RECORD_SIZE,
+				length);
+	}
+
+	/**
+	 * Returns the version up to which all the records are durable.
+	 * 
+	 * @return durable version
+	 */
+	public long getDurableVersion() {
+		return durableVersion;
+	}
+
+	/**
+	 * Writes the remaining records and closes the file.
+	 * 
+	 * @throws IOException
+	 *             when the file can't be written or closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -1,5 +1,22 @@
 package ru.ifmo.pp.bank.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import net.sourceforge.groboutils.junit.v1.MultiThreadedTestRunner;
 import net.sourceforge.groboutils.junit.v1.TestRunnable;
 
@@ -9,8 +26,20 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import ru.ifmo.pp.bank.Bank;
+import ru.ifmo.pp.bank.BankServer;
+import ru.ifmo.pp.bank.BankStatistics;
+import ru.ifmo.pp.bank.ConcurrencyMode;
+import ru.ifmo.pp.bank.ConsoleMain;
+import ru.ifmo.pp.bank.HeapBalanceStorage;
+import ru.ifmo.pp.bank.Histogram;
+import ru.ifmo.pp.bank.OffHeapBalanceStorage;
+import ru.ifmo.pp.bank.Operations;
+import ru.ifmo.pp.bank.ShardedBank;
+import ru.ifmo.pp.bank.ShardedSnapshot;
 import ru.ifmo.pp.bank.Snapshot;
+import ru.ifmo.pp.bank.Subscription;
 import ru.ifmo.pp.bank.UpdateEvent;
+import ru.ifmo.pp.bank.WriteAheadLog;
 
 @RunWith(JUnit4.class)
 public class BankTest {
@@ -241,6 +270,165 @@ public class BankTest {
 		}
 	}
 
+	@Test
+	public void testSnapshotHotAccount() {
+		Bank b = new Bank(100000);
+		Snapshot[] s = new Snapshot[100];
+		for (int i = 0; i < s.length; ++i) {
+			for (int j = 0; j < 100; ++j) {
+				b.deposit(0, 2);
+				b.transfer(0, 1, 1);
+			}
+			s[i] = b.snapshot();
+		}
+		for (int i = 0; i < s.length; ++i) {
+			Assert.assertEquals(s[i].getAmount(0), 100 * (i + 1));
+			Assert.assertEquals(s[i].getAmount(1), 100 * (i + 1));
+			Assert.assertEquals(s[i].getAmount(2), 0);
+		}
+	}
+
+	@Test
+	public void testSnapshotAfterCheckpoints() {
+		final int ACC = 3000;
+		Bank b = new Bank(ACC);
+		for (int j = 0; j < ACC; j += 7) {
+			b.deposit(j, j + 1);
+		}
+		Snapshot s = b.snapshot();
+		for (int i = 0; i < 10 * ACC; ++i) {
+			b.deposit(i % ACC, 1);
+		}
+		for (int j = 0; j < ACC; ++j) {
+			Assert.assertEquals(s.getAmount(j), j % 7 == 0 ? j + 1 : 0);
+			Assert.assertEquals(b.snapshot().getAmount(j), b.getAmount(j));
+		}
+	}
+
+	@Test
+	public void testSnapshotBulkReads() {
+		final int ACC = 5000;
+		Bank b = new Bank(ACC);
+		Snapshot[] s = new Snapshot[5];
+		for (int i = 0; i < s.length; ++i) {
+			for (int j = 0; j < ACC; j += i + 1) {
+				b.deposit(j, j + 1);
+			}
+			s[i] = b.snapshot();
+		}
+		int[] accounts = { 4999, 0, 1500, 1500, 7 };
+		long[] out = new long[ACC];
+		for (int i = 0; i < s.length; ++i) {
+			s[i].getAmounts(accounts, out);
+			for (int j = 0; j < accounts.length; ++j) {
+				Assert.assertEquals(out[j], s[i].getAmount(accounts[j]));
+			}
+			s[i].getAmounts(1000, 3100, out);
+			long sum = 0;
+			for (int j = 1000; j < 3100; ++j) {
+				Assert.assertEquals(out[j - 1000], s[i].getAmount(j));
+				sum += out[j - 1000];
+			}
+			Assert.assertEquals(s[i].sum(1000, 3100), sum);
+			Assert.assertEquals(s[i].sum(17, 17), 0);
+		}
+		Assert.assertEquals(s[s.length - 1].sum(0, ACC), b.getTotalAmount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSnapshotBulkReadsIllegalArgumentException1() {
+		new Bank(10).snapshot().sum(5, 11);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSnapshotBulkReadsIllegalArgumentException2() {
+		new Bank(10).snapshot().getAmounts(new int[] { 3, 10 }, new long[2]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSnapshotBulkReadsIllegalArgumentException3() {
+		new Bank(10).snapshot().getAmounts(0, 5, new long[4]);
+	}
+
+	@Test
+	public void testSnapshotScans() {
+		final int ACC = 100000;
+		Bank b = new Bank(ACC, ConcurrencyMode.STRIPED);
+		Random random = new Random(1);
+		for (int k = 0; k < 3 * ACC / 2; ++k) {
+			b.deposit(random.nextInt(ACC), 1 + random.nextInt(100));
+		}
+		Snapshot s = b.snapshot();
+		for (int k = 0; k < 1000; ++k) {
+			b.deposit(random.nextInt(ACC), 1);
+		}
+		long[] expected = new long[ACC];
+		s.getAmounts(0, ACC, expected);
+		long total = s.sum(0, ACC);
+		Assert.assertArrayEquals(s.toArray(), expected);
+		Assert.assertArrayEquals(s.amounts().toArray(), expected);
+		Assert.assertArrayEquals(s.amounts().parallel().toArray(), expected);
+		Assert.assertEquals(s.amounts().parallel().sum(), total);
+		Assert.assertEquals(s.spliterator().estimateSize(), ACC);
+		final long[] visited = new long[ACC];
+		s.forEach(new Snapshot.AmountConsumer() {
+			@Override
+			public void accept(int account, long amount) {
+				visited[account] = amount;
+			}
+		});
+		Assert.assertArrayEquals(visited, expected);
+		s.close();
+		try {
+			s.toArray();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			s.amounts();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testSnapshotClose() {
+		final int ACC = 100;
+		Bank b = new Bank(ACC);
+		Snapshot first = b.snapshot();
+		Snapshot[] s = new Snapshot[50];
+		for (int i = 0; i < s.length; ++i) {
+			for (int j = 0; j < ACC; ++j) {
+				b.deposit(j, 1);
+			}
+			s[i] = b.snapshot();
+			if (i > 0) {
+				s[i - 1].close();
+			}
+			for (int j = 0; j < ACC; ++j) {
+				Assert.assertEquals(s[i].getAmount(j), i + 1);
+				Assert.assertEquals(first.getAmount(j), 0);
+			}
+		}
+		Assert.assertEquals(b.getOldestLiveVersion(), 0);
+		first.close();
+		first.close();
+		Assert.assertEquals(b.getOldestLiveVersion(), s.length * ACC);
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, 1);
+		}
+		Assert.assertEquals(b.getOldestLiveVersion(), s.length * ACC);
+		s[s.length - 1].close();
+		Assert.assertEquals(b.getOldestLiveVersion(), (s.length + 1) * ACC);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSnapshotIllegalStateException() {
+		Snapshot s = new Bank(1).snapshot();
+		s.close();
+		s.getAmount(0);
+	}
+
 	@Test(expected = UnsupportedOperationException.class)
 	public void testSnapshotUnsupportedOperationException() {
 		new Bank(1).snapshot().addEvent(0, new UpdateEvent(0L, 1L));
@@ -256,6 +444,495 @@ public class BankTest {
 		new Bank(1).snapshot().getAmount(1);
 	}
 
+	@Test
+	public void testSnapshotAt() {
+		Bank b = new Bank(4);
+		b.setRetention(100);
+		Assert.assertEquals(b.getRetention(), 100);
+		long[][] expected = new long[41][4];
+		for (int v = 1; v <= 40; ++v) {
+			expected[v] = expected[v - 1].clone();
+			if (v % 3 == 0) {
+				b.withdraw((v - 1) % 4, 1);
+				--expected[v][(v - 1) % 4];
+			} else {
+				b.deposit(v % 4, v);
+				expected[v][v % 4] += v;
+			}
+		}
+		for (int v = 4; v <= 40; ++v) {
+			Snapshot s = b.snapshotAt(v);
+			Assert.assertEquals(s.getVersion(), v);
+			for (int i = 0; i < 4; ++i) {
+				Assert.assertEquals(s.getAmount(i), expected[v][i]);
+			}
+			s.close();
+		}
+		try {
+			b.snapshotAt(3);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testSnapshotAtRetention() {
+		Bank b = new Bank(4);
+		b.setRetention(8);
+		for (int v = 1; v <= 100; ++v) {
+			b.deposit(v % 4, 1);
+		}
+		Snapshot s = b.snapshotAt(92);
+		Assert.assertEquals(s.sum(0, 4), 92);
+		s.close();
+		try {
+			b.snapshotAt(50);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertTrue(b.getOldestLiveVersion() <= 92);
+		b.setRetention(0);
+		for (int v = 1; v <= 8; ++v) {
+			b.deposit(v % 4, 1);
+		}
+		Assert.assertEquals(b.getOldestLiveVersion(), 108);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSnapshotAtIllegalArgumentException() {
+		Bank b = new Bank(1);
+		b.deposit(0, 1);
+		b.snapshotAt(2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRetentionIllegalArgumentException() {
+		new Bank(1).setRetention(-1);
+	}
+
+	@Test
+	public void testSnapshotAtDuringTransfers() throws Throwable {
+		final int ACC = 64;
+		final long START = 1000;
+		final Bank b = new Bank(ACC, ConcurrencyMode.SPIN_CLAIM);
+		b.setRetention(Long.MAX_VALUE);
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		TestRunnable[] runnables = new TestRunnable[4];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < 5000; ++i) {
+						try {
+							b.transfer(random.nextInt(ACC),
+									random.nextInt(ACC), 1 + random.nextInt(50));
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Snapshot now = b.snapshot();
+		for (long v = ACC; v <= now.getVersion(); ++v) {
+			Snapshot s = b.snapshotAt(v);
+			Assert.assertEquals(s.sum(0, ACC), ACC * START);
+			s.close();
+		}
+		for (int j = 0; j < ACC; ++j) {
+			Assert.assertEquals(b.snapshotAt(now.getVersion()).getAmount(j),
+					now.getAmount(j));
+		}
+		now.close();
+	}
+
+	@Test
+	public void testSubscription() throws InterruptedException {
+		Bank b = new Bank(10);
+		b.deposit(0, 5);
+		Subscription sub = b.subscribe(16);
+		long[] versions = new long[8];
+		int[] accounts = new int[8];
+		long[] differences = new long[8];
+		long[] balances = new long[8];
+		Assert.assertEquals(sub.poll(versions, accounts, differences,
+				balances, 0, TimeUnit.SECONDS), -1);
+		Snapshot s = sub.resync();
+		Assert.assertEquals(s.getVersion(), 1);
+		Assert.assertEquals(s.getAmount(0), 5);
+		s.close();
+		Assert.assertEquals(sub.poll(versions, accounts, differences,
+				balances, 0, TimeUnit.SECONDS), 0);
+		b.deposit(1, 10);
+		b.transfer(1, 2, 3);
+		b.withdraw(0, 5);
+		Assert.assertEquals(sub.poll(versions, accounts, differences,
+				balances, 1, TimeUnit.SECONDS), 4);
+		long[] expected = { 2, 1, 10, 10, 3, 1, -3, 7, 3, 2, 3, 3, 4, 0, -5,
+				0 };
+		for (int k = 0; k < 4; ++k) {
+			Assert.assertEquals(versions[k], expected[4 * k]);
+			Assert.assertEquals(accounts[k], expected[4 * k + 1]);
+			Assert.assertEquals(differences[k], expected[4 * k + 2]);
+			Assert.assertEquals(balances[k], expected[4 * k + 3]);
+		}
+		sub.close();
+		b.deposit(3, 1);
+		try {
+			sub.poll(versions, accounts, differences, balances, 0,
+					TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testSubscriptionLost() throws InterruptedException {
+		Bank b = new Bank(4, ConcurrencyMode.STRIPED);
+		Subscription sub = b.subscribe(4);
+		sub.resync().close();
+		for (int v = 1; v <= 10; ++v) {
+			b.deposit(v % 4, 1);
+		}
+		Assert.assertTrue(sub.isLost());
+		long[] versions = new long[8];
+		int[] accounts = new int[8];
+		long[] differences = new long[8];
+		long[] balances = new long[8];
+		Assert.assertEquals(sub.poll(versions, accounts, differences,
+				balances, 0, TimeUnit.SECONDS), -1);
+		Snapshot s = sub.resync();
+		Assert.assertFalse(sub.isLost());
+		Assert.assertEquals(s.getVersion(), 10);
+		Assert.assertEquals(s.sum(0, 4), 10);
+		s.close();
+		b.deposit(2, 1);
+		Assert.assertEquals(sub.poll(versions, accounts, differences,
+				balances, 0, TimeUnit.SECONDS), 1);
+		Assert.assertEquals(versions[0], 11);
+		Assert.assertEquals(balances[0], 4);
+		sub.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSubscriptionIllegalArgumentException() {
+		new Bank(1).subscribe(3);
+	}
+
+	/**
+	 * Runs concurrent transfers and deposits while a subscriber keeps a copy
+	 * of the balances from the records, resynchronizing whenever it falls
+	 * behind, and checks the copy against the bank.
+	 */
+	private static void checkSubscription(final Bank b) throws Throwable {
+		final int ACC = 64;
+		final Subscription sub = b.subscribe(256);
+		TestRunnable[] runnables = new TestRunnable[4];
+		final boolean[] done = new boolean[1];
+		for (int i = 0; i < 3; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < 20000; ++i) {
+						try {
+							if (i % 4 == 0) {
+								b.deposit(random.nextInt(ACC), 100);
+							} else {
+								b.transfer(random.nextInt(ACC),
+										random.nextInt(ACC),
+										1 + random.nextInt(50));
+							}
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		final long[] copy = new long[ACC];
+		runnables[3] = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				long[] versions = new long[64];
+				int[] accounts = new int[64];
+				long[] differences = new long[64];
+				long[] balances = new long[64];
+				long last = 0;
+				while (true) {
+					boolean finished;
+					synchronized (done) {
+						finished = done[0];
+					}
+					int count = sub.poll(versions, accounts, differences,
+							balances, 10, TimeUnit.MILLISECONDS);
+					if (count < 0) {
+						Snapshot s = sub.resync();
+						s.getAmounts(0, ACC, copy);
+						last = s.getVersion() + 1;
+						s.close();
+						continue;
+					}
+					for (int k = 0; k < count; ++k) {
+						Assert.assertTrue(versions[k] >= last);
+						last = versions[k];
+						copy[accounts[k]] += differences[k];
+						Assert.assertEquals(copy[accounts[k]], balances[k]);
+					}
+					if (finished && count == 0) {
+						return;
+					}
+				}
+			}
+		};
+		TestRunnable writers = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				MultiThreadedTestRunner runner = new MultiThreadedTestRunner(
+						new TestRunnable[] { runnables[0], runnables[1],
+								runnables[2] });
+				runner.runTestRunnables();
+				synchronized (done) {
+					done[0] = true;
+				}
+			}
+		};
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(
+				new TestRunnable[] { writers, runnables[3] });
+		runner.runTestRunnables();
+		sub.close();
+		for (int j = 0; j < ACC; ++j) {
+			Assert.assertEquals(copy[j], b.getAmount(j));
+		}
+	}
+
+	@Test
+	public void testStripedSubscription() throws Throwable {
+		checkSubscription(new Bank(64, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testSpinClaimSubscription() throws Throwable {
+		checkSubscription(new Bank(64, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test
+	public void testSequencerSubscription() throws Throwable {
+		checkSubscription(new Bank(64, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testRangeAmount() {
+		final int ACC = 1000;
+		Bank b = new Bank(ACC, ConcurrencyMode.SPIN_CLAIM);
+		Random random = new Random(1);
+		for (int k = 0; k < 2000; ++k) {
+			b.deposit(random.nextInt(ACC), 1 + random.nextInt(100));
+		}
+		Assert.assertEquals(b.getRangeAmount(0, ACC), b.getTotalAmount());
+		b.enableRangeIndex();
+		b.enableRangeIndex();
+		for (int k = 0; k < 2000; ++k) {
+			try {
+				switch (k % 3) {
+				case 0:
+					b.deposit(random.nextInt(ACC), 1 + random.nextInt(100));
+					break;
+				case 1:
+					b.withdraw(random.nextInt(ACC), 1 + random.nextInt(100));
+					break;
+				default:
+					b.transfer(random.nextInt(ACC), random.nextInt(ACC),
+							1 + random.nextInt(100));
+				}
+			} catch (IllegalStateException e) {
+			}
+			int from = random.nextInt(ACC + 1);
+			int to = from + random.nextInt(ACC + 1 - from);
+			long expected = 0;
+			for (int i = from; i < to; ++i) {
+				expected += b.getAmount(i);
+			}
+			Assert.assertEquals(b.getRangeAmount(from, to), expected);
+		}
+		Assert.assertEquals(b.getRangeAmount(0, ACC), b.getTotalAmount());
+		Assert.assertEquals(b.getRangeAmount(5, 5), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRangeAmountIllegalArgumentException() {
+		new Bank(2).getRangeAmount(1, 3);
+	}
+
+	@Test
+	public void testRangeAmountDuringTransfers() throws Throwable {
+		final int ACC = 64;
+		final long START = 1000;
+		final Bank b = new Bank(ACC, ConcurrencyMode.STRIPED);
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		b.enableRangeIndex();
+		TestRunnable[] runnables = new TestRunnable[6];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < 10000; ++i) {
+						if (seed % 2 == 0) {
+							Assert.assertEquals(b.getRangeAmount(0, ACC),
+									ACC * START);
+							continue;
+						}
+						try {
+							b.transfer(random.nextInt(ACC),
+									random.nextInt(ACC), 1 + random.nextInt(50));
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Snapshot s = b.snapshot();
+		for (int from = 0; from < ACC; from += 7) {
+			Assert.assertEquals(b.getRangeAmount(from, ACC), s.sum(from, ACC));
+		}
+		s.close();
+	}
+
+	@Test
+	public void testOpenAccount() {
+		final int ACC = 5000;
+		Bank b = new Bank(2);
+		b.setRetention(100000);
+		b.enableRangeIndex();
+		b.deposit(1, 10);
+		Snapshot first = b.snapshot();
+		Assert.assertEquals(b.openAccount(), 2);
+		Assert.assertEquals(b.getAccountCount(), 3);
+		Assert.assertEquals(first.getAccountCount(), 2);
+		Assert.assertEquals(b.getAmount(2), 0);
+		b.deposit(2, 5);
+		long[] opened = new long[ACC];
+		opened[2] = b.snapshot().getVersion() - 1;
+		Random random = new Random(2);
+		Snapshot middle = null;
+		long[] expected = null;
+		for (int i = 3; i < ACC; ++i) {
+			Assert.assertEquals(b.openAccount(), i);
+			opened[i] = b.snapshot().getVersion();
+			b.deposit(random.nextInt(i + 1), 1 + random.nextInt(100));
+			if (i == ACC / 2) {
+				middle = b.snapshot();
+				expected = new long[i + 1];
+				for (int j = 0; j <= i; ++j) {
+					expected[j] = b.getAmount(j);
+				}
+			}
+		}
+		Assert.assertEquals(first.getAccountCount(), 2);
+		Assert.assertArrayEquals(first.toArray(), new long[] { 0, 10 });
+		Assert.assertArrayEquals(middle.toArray(), expected);
+		Assert.assertEquals(middle.sum(0, ACC / 2 + 1), b.snapshotAt(
+				middle.getVersion()).sum(0, ACC / 2 + 1));
+		for (int i = 2; i < ACC; i += 97) {
+			Assert.assertEquals(b.snapshotAt(opened[i]).getAccountCount(),
+					i + 1);
+			Assert.assertEquals(b.snapshotAt(opened[i] - 1)
+					.getAccountCount(), i);
+		}
+		Snapshot s = b.snapshot();
+		Assert.assertEquals(s.getAccountCount(), ACC);
+		long[] amounts = s.toArray();
+		for (int i = 0; i < ACC; ++i) {
+			Assert.assertEquals(amounts[i], b.getAmount(i));
+		}
+		Assert.assertEquals(s.sum(0, ACC), b.getTotalAmount());
+		Assert.assertEquals(s.amounts().parallel().sum(), b.getTotalAmount());
+		Assert.assertEquals(b.getRangeAmount(0, ACC), b.getTotalAmount());
+		Assert.assertEquals(b.getRangeAmount(ACC / 3, ACC - 7),
+				s.sum(ACC / 3, ACC - 7));
+		try {
+			first.getAmount(2);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		first.close();
+		middle.close();
+		s.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testOpenAccountIllegalStateException() {
+		Bank b = new Bank(new OffHeapBalanceStorage(1),
+				ConcurrencyMode.SYNCHRONIZED, null, null);
+		b.openAccount();
+	}
+
+	@Test
+	public void testOpenAccountDuringTransfers() throws Throwable {
+		final int ACC = 16;
+		final long START = 1000;
+		final int OPENED = 2000;
+		final Bank b = new Bank(ACC, ConcurrencyMode.SPIN_CLAIM);
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		b.enableRangeIndex();
+		TestRunnable[] runnables = new TestRunnable[6];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < OPENED; ++i) {
+						if (seed == 0) {
+							b.deposit(b.openAccount(), 1);
+						} else if (seed == 1) {
+							Snapshot s = b.snapshot();
+							int count = s.getAccountCount();
+							Assert.assertEquals(s.toArray().length, count);
+							Assert.assertEquals(s.sum(0, ACC), ACC * START);
+							long opened = s.sum(ACC, count);
+							Assert.assertTrue(opened == count - ACC
+									|| opened == count - ACC - 1);
+							s.close();
+						} else if (seed == 2) {
+							Assert.assertEquals(b.getRangeAmount(0, ACC),
+									ACC * START);
+						} else {
+							try {
+								b.transfer(random.nextInt(ACC),
+										random.nextInt(ACC),
+										1 + random.nextInt(50));
+							} catch (IllegalStateException e) {
+							}
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Assert.assertEquals(b.getAccountCount(), ACC + OPENED);
+		Assert.assertEquals(b.getTotalAmount(), ACC * START + OPENED);
+		Assert.assertEquals(b.getRangeAmount(0, ACC + OPENED),
+				ACC * START + OPENED);
+		Snapshot s = b.snapshot();
+		Assert.assertEquals(s.sum(0, ACC + OPENED), ACC * START + OPENED);
+		s.close();
+	}
+
 	@Test
 	public void testSyncOperations1() throws Throwable {
 		final Bank b = new Bank(1);
@@ -390,4 +1067,1361 @@ public class BankTest {
 			Assert.assertTrue(max >= min && max <= min + 1);
 		}
 	}
+
+	/**
+	 * Runs concurrent transfers between randomly chosen accounts while taking
+	 * snapshots and checks that every snapshot preserves the total amount.
+	 */
+	private static void checkConcurrentTransfers(final Bank b)
+			throws Throwable {
+		final int ACC = 64;
+		final long START = 1000;
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		TestRunnable[] runnables = new TestRunnable[9];
+		for (int i = 0; i < 8; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < 20000; ++i) {
+						try {
+							b.transfer(random.nextInt(ACC),
+									random.nextInt(ACC), 1 + random.nextInt(50));
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		final Snapshot[] s = new Snapshot[200];
+		runnables[8] = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				for (int i = 0; i < s.length; ++i) {
+					s[i] = b.snapshot();
+					Thread.yield();
+				}
+			}
+		};
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		for (int i = 0; i < s.length; ++i) {
+			long sum = 0;
+			for (int j = 0; j < ACC; ++j) {
+				Assert.assertTrue(s[i].getAmount(j) >= 0);
+				sum += s[i].getAmount(j);
+			}
+			Assert.assertEquals(sum, ACC * START);
+		}
+		long sum = 0;
+		for (int j = 0; j < ACC; ++j) {
+			sum += b.getAmount(j);
+		}
+		Assert.assertEquals(sum, ACC * START);
+		Assert.assertEquals(b.getTotalAmount(), ACC * START);
+	}
+
+	@Test
+	public void testSyncTransfers() throws Throwable {
+		checkConcurrentTransfers(new Bank(64));
+	}
+
+	@Test
+	public void testStripedTransfers() throws Throwable {
+		checkConcurrentTransfers(new Bank(64, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testStripedTransfersInOpenedAccounts() throws Throwable {
+		Bank b = new Bank(0, ConcurrencyMode.STRIPED);
+		for (int j = 0; j < 64; ++j) {
+			b.openAccount();
+		}
+		checkConcurrentTransfers(b);
+	}
+
+	@Test
+	public void testSnapshotReadsDuringCheckpoints() throws Throwable {
+		final int ACC = 4096;
+		final long START = 1000;
+		final Bank b = new Bank(ACC, ConcurrencyMode.STRIPED);
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		TestRunnable[] runnables = new TestRunnable[8];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					long[] out = new long[ACC];
+					for (int i = 0; i < 20000; ++i) {
+						if (seed % 2 == 0) {
+							try {
+								b.transfer(random.nextInt(ACC),
+										random.nextInt(ACC),
+										1 + random.nextInt(50));
+							} catch (IllegalStateException e) {
+							}
+							continue;
+						}
+						Snapshot s = b.snapshot();
+						try {
+							s.getAmount(random.nextInt(ACC));
+							s.getAmounts(0, ACC, out);
+							Assert.assertEquals(s.sum(0, ACC), ACC * START);
+						} finally {
+							s.close();
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Assert.assertEquals(b.getTotalAmount(), ACC * START);
+	}
+
+	/**
+	 * Runs concurrent deposits and withdrawals on all accounts and checks the
+	 * resulting amounts.
+	 */
+	private static void checkConcurrentUpdates(final Bank b) throws Throwable {
+		final int ACC = 100;
+		TestRunnable[] runnables = new TestRunnable[10];
+		for (int i = 0; i < 10; ++i) {
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					for (int i = 0; i < 100; ++i) {
+						for (int j = 0; j < ACC; ++j) {
+							b.deposit(j, 2);
+							b.withdraw(j, 1);
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		for (int j = 0; j < ACC; ++j) {
+			Assert.assertEquals(b.getAmount(j), 1000);
+		}
+		Assert.assertEquals(b.getTotalAmount(), 1000 * ACC);
+	}
+
+	@Test
+	public void testStripedSyncOperations() throws Throwable {
+		checkConcurrentUpdates(new Bank(100, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testSpinClaimSyncOperations() throws Throwable {
+		checkConcurrentUpdates(new Bank(100, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test
+	public void testSpinClaimTransfers() throws Throwable {
+		checkConcurrentTransfers(new Bank(64, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test
+	public void testSpinClaimRejectedOperations() {
+		Bank b = new Bank(2, ConcurrencyMode.SPIN_CLAIM);
+		b.deposit(0, 10);
+		try {
+			b.withdraw(0, 11);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			b.transfer(0, 1, 11);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		b.transfer(0, 1, 4);
+		Assert.assertEquals(b.getAmount(0), 6);
+		Assert.assertEquals(b.getAmount(1), 4);
+		Assert.assertEquals(b.withdraw(1, 4), 0);
+		Assert.assertEquals(b.getTotalAmount(), 6);
+	}
+
+	@Test
+	public void testSequencerSyncOperations() throws Throwable {
+		checkConcurrentUpdates(new Bank(100, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testSequencerTransfers() throws Throwable {
+		checkConcurrentTransfers(new Bank(64, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testSequencerRejectedOperations() {
+		Bank b = new Bank(2, ConcurrencyMode.SEQUENCER);
+		b.deposit(0, 10);
+		try {
+			b.withdraw(0, 11);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			b.transfer(0, 1, 11);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		b.deposit(1, Bank.MAX_AMOUNT);
+		try {
+			b.deposit(1, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertEquals(b.withdraw(1, Bank.MAX_AMOUNT), 0);
+		b.transfer(0, 1, 4);
+		Assert.assertEquals(b.getAmount(0), 6);
+		Assert.assertEquals(b.getAmount(1), 4);
+		Assert.assertEquals(b.withdraw(1, 4), 0);
+		Assert.assertEquals(b.getTotalAmount(), 6);
+	}
+
+	@Test(timeout = 60000)
+	public void testSequencerCommandFailure() throws Throwable {
+		final boolean[] failing = new boolean[1];
+		Bank b = new Bank(new HeapBalanceStorage(2) {
+			@Override
+			public void set(int i, long value) {
+				if (failing[0]) {
+					throw new IllegalStateException("Storage failure");
+				}
+				super.set(i, value);
+			}
+		}, ConcurrencyMode.SEQUENCER, null, null);
+		b.deposit(0, 10);
+		failing[0] = true;
+		try {
+			b.deposit(0, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(e.getMessage(), "Storage failure");
+		}
+		try {
+			b.transferAsync(0, 1, 1).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		failing[0] = false;
+		Assert.assertEquals(b.deposit(0, 1), 11);
+		Assert.assertEquals(b.withdrawAsync(0, 2).get().longValue(), 9);
+		b.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testSequencerError() throws Throwable {
+		final boolean[] failing = new boolean[1];
+		Bank b = new Bank(new HeapBalanceStorage(2) {
+			@Override
+			public void set(int i, long value) {
+				if (failing[0]) {
+					throw new OutOfMemoryError("Storage failure");
+				}
+				super.set(i, value);
+			}
+		}, ConcurrencyMode.SEQUENCER, null, null);
+		b.deposit(0, 10);
+		final Throwable[] uncaught = new Throwable[1];
+		Thread.UncaughtExceptionHandler handler = Thread
+				.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(
+				new Thread.UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread t, Throwable e) {
+						uncaught[0] = e;
+					}
+				});
+		try {
+			failing[0] = true;
+			try {
+				b.deposit(0, 1);
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+			}
+			failing[0] = false;
+			try {
+				b.deposit(1, 1);
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				Assert.assertEquals(e.getMessage(), "Bank is closed");
+			}
+			try {
+				b.depositAsync(1, 1).get();
+				Assert.fail();
+			} catch (ExecutionException e) {
+				Assert.assertEquals(e.getCause().getMessage(),
+						"Bank is closed");
+			}
+			try {
+				b.applyBatch(new int[] { Operations.DEPOSIT }, new int[1],
+						new int[1], new long[] { 1 }, 1, new int[1]);
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				Assert.assertEquals(e.getMessage(), "Bank is closed");
+			}
+			b.close();
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+		Assert.assertTrue(uncaught[0] instanceof OutOfMemoryError);
+		Assert.assertEquals(b.getAmount(1), 0);
+	}
+
+	@Test(timeout = 60000)
+	public void testSequencerClose() throws Throwable {
+		int threads = sequencerThreads();
+		final Bank b = new Bank(10, ConcurrencyMode.SEQUENCER);
+		final long[] deposited = new long[4];
+		TestRunnable[] runnables = new TestRunnable[deposited.length + 1];
+		for (int i = 0; i < deposited.length; ++i) {
+			final int thread = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					for (int k = 0; k < 100000; ++k) {
+						try {
+							b.deposit(thread, 1);
+							++deposited[thread];
+						} catch (IllegalStateException e) {
+							return;
+						}
+					}
+				}
+			};
+		}
+		runnables[deposited.length] = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				Thread.sleep(50);
+				b.close();
+			}
+		};
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		long total = 0;
+		for (int i = 0; i < deposited.length; ++i) {
+			Assert.assertEquals(b.getAmount(i), deposited[i]);
+			total += deposited[i];
+		}
+		Assert.assertEquals(b.getTotalAmount(), total);
+		try {
+			b.deposit(0, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			b.depositAsync(0, 1).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		b.close();
+		Assert.assertEquals(sequencerThreads(), threads);
+	}
+
+	private static int sequencerThreads() {
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().equals("bank-sequencer")) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBankConstructorIllegalArgumentException() {
+		new Bank(1, null);
+	}
+
+	@Test
+	public void testApplyBatch() {
+		Bank b = new Bank(3);
+		int[] ops = { Operations.DEPOSIT, Operations.WITHDRAW,
+				Operations.TRANSFER, Operations.TRANSFER, Operations.DEPOSIT,
+				Operations.DEPOSIT, 7, Operations.WITHDRAW };
+		int[] accounts = { 0, 0, 0, 1, 3, 2, 0, 2 };
+		int[] targets = { 0, 0, 1, 2, 0, 0, 0, 0 };
+		long[] amounts = { 100, 30, 50, 60, 1, Bank.MAX_AMOUNT, 1, 0 };
+		int[] results = new int[ops.length];
+		Snapshot s = b.snapshot();
+		Assert.assertEquals(b.applyBatch(ops, accounts, targets, amounts,
+				ops.length, results), 4);
+		Assert.assertArrayEquals(results, new int[] { Operations.OK,
+				Operations.OK, Operations.OK, Operations.NOT_ENOUGH_MONEY,
+				Operations.INVALID_INDEX, Operations.OK,
+				Operations.INVALID_OPERATION, Operations.INVALID_AMOUNT });
+		Assert.assertEquals(b.getAmount(0), 20);
+		Assert.assertEquals(b.getAmount(1), 50);
+		Assert.assertEquals(b.getAmount(2), Bank.MAX_AMOUNT);
+		Assert.assertEquals(b.getTotalAmount(), 70 + Bank.MAX_AMOUNT);
+		Assert.assertEquals(b.snapshot().getVersion(), s.getVersion() + 1);
+		Assert.assertEquals(s.getAmount(0), 0);
+		Assert.assertEquals(b.snapshot().getAmount(1), 50);
+		Assert.assertEquals(b.applyBatch(ops, accounts, targets, amounts, 0,
+				results), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testApplyBatchIllegalArgumentException() {
+		new Bank(1).applyBatch(new int[1], new int[1], new int[1],
+				new long[1], 2, new int[2]);
+	}
+
+	/**
+	 * Runs concurrent batches of transfers and deposits and checks the
+	 * resulting amounts.
+	 */
+	private static void checkConcurrentBatches(final Bank b) throws Throwable {
+		final int ACC = 50;
+		final int BATCH = 20;
+		TestRunnable[] runnables = new TestRunnable[8];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					int[] ops = new int[BATCH];
+					int[] accounts = new int[BATCH];
+					int[] targets = new int[BATCH];
+					long[] amounts = new long[BATCH];
+					int[] results = new int[BATCH];
+					for (int i = 0; i < 500; ++i) {
+						for (int k = 0; k < BATCH; ++k) {
+							ops[k] = k % 2 == 0 ? Operations.DEPOSIT
+									: Operations.TRANSFER;
+							accounts[k] = random.nextInt(ACC);
+							targets[k] = random.nextInt(ACC);
+							amounts[k] = 1;
+						}
+						b.applyBatch(ops, accounts, targets, amounts, BATCH,
+								results);
+						for (int k = 0; k < BATCH; k += 2) {
+							Assert.assertEquals(results[k], Operations.OK);
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		long expected = runnables.length * 500 * BATCH / 2;
+		Assert.assertEquals(b.getTotalAmount(), expected);
+		Assert.assertEquals(b.snapshot().sum(0, ACC), expected);
+		long sum = 0;
+		for (int j = 0; j < ACC; ++j) {
+			sum += b.getAmount(j);
+		}
+		Assert.assertEquals(sum, expected);
+	}
+
+	@Test
+	public void testSyncBatches() throws Throwable {
+		checkConcurrentBatches(new Bank(50));
+	}
+
+	@Test
+	public void testStripedBatches() throws Throwable {
+		checkConcurrentBatches(new Bank(50, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testSequencerBatches() throws Throwable {
+		checkConcurrentBatches(new Bank(50, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testSpinClaimBatches() throws Throwable {
+		checkConcurrentBatches(new Bank(50, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test
+	public void testTransact() {
+		Bank b = new Bank(4);
+		b.deposit(0, 100);
+		Snapshot s = b.snapshot();
+		Assert.assertEquals(b.transact(new int[] { 0, 1, 2, 3 }, new long[] {
+				-100, 60, 30, 10 }), 0);
+		Assert.assertEquals(b.getAmount(0), 0);
+		Assert.assertEquals(b.getAmount(1), 60);
+		Assert.assertEquals(b.getAmount(3), 10);
+		Assert.assertEquals(b.getTotalAmount(), 100);
+		Assert.assertEquals(b.snapshot().getVersion(), s.getVersion() + 1);
+		Assert.assertEquals(s.sum(0, 4), 100);
+		Assert.assertEquals(s.getAmount(1), 0);
+		Assert.assertEquals(b.transact(new int[] { 1, 1, 2 }, new long[] {
+				-70, 20, 5 }), -45);
+		Assert.assertEquals(b.getAmount(1), 10);
+		Assert.assertEquals(b.getAmount(2), 35);
+		Assert.assertEquals(b.getTotalAmount(), 55);
+		try {
+			b.transact(new int[] { 2, 3, 1 }, new long[] { 5, 5, -11 });
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertEquals(b.getAmount(2), 35);
+		Assert.assertEquals(b.getAmount(3), 10);
+		Assert.assertEquals(b.getTotalAmount(), 55);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTransactIllegalArgumentException() {
+		new Bank(2).transact(new int[] { 0, 1 }, new long[] { 0, 0 });
+	}
+
+	/**
+	 * Runs concurrent balanced transactions over overlapping accounts and
+	 * checks that the total amount is kept.
+	 */
+	private static void checkConcurrentTransactions(final Bank b)
+			throws Throwable {
+		final int ACC = 20;
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, 1000);
+		}
+		TestRunnable[] runnables = new TestRunnable[8];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					int[] accounts = new int[4];
+					long[] amounts = { -3, 1, 1, 1 };
+					for (int i = 0; i < 2000; ++i) {
+						for (int k = 0; k < accounts.length; ++k) {
+							accounts[k] = random.nextInt(ACC);
+						}
+						try {
+							b.transact(accounts, amounts);
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Assert.assertEquals(b.getTotalAmount(), 1000 * ACC);
+		Assert.assertEquals(b.snapshot().sum(0, ACC), 1000 * ACC);
+	}
+
+	@Test
+	public void testSyncTransactions() throws Throwable {
+		checkConcurrentTransactions(new Bank(20));
+	}
+
+	@Test
+	public void testStripedTransactions() throws Throwable {
+		checkConcurrentTransactions(new Bank(20, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testSequencerTransactions() throws Throwable {
+		checkConcurrentTransactions(new Bank(20, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testSpinClaimTransactions() throws Throwable {
+		checkConcurrentTransactions(new Bank(20, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test
+	public void testWriteAheadLog() throws Throwable {
+		File file = File.createTempFile("bank", ".wal");
+		file.deleteOnExit();
+		WriteAheadLog wal = new WriteAheadLog(file, 10000);
+		final Bank b = new Bank(10, ConcurrencyMode.STRIPED, wal);
+		TestRunnable[] runnables = new TestRunnable[4];
+		for (int i = 0; i < runnables.length; ++i) {
+			final int account = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					for (int i = 0; i < 100; ++i) {
+						b.deposit(account, 2);
+					}
+				}
+			};
+		}
+		new MultiThreadedTestRunner(runnables).runTestRunnables();
+		b.transfer(0, 9, 50);
+		Assert.assertEquals(wal.getDurableVersion(), 401);
+		wal.close();
+		Assert.assertEquals(file.length(), 402 * WriteAheadLog.RECORD_SIZE);
+		long[] amounts = new long[10];
+		long lastVersion = 0;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			for (int k = 0; k < 402; ++k) {
+				long version = in.readLong();
+				Assert.assertTrue(version >= lastVersion);
+				lastVersion = version;
+				amounts[in.readInt()] += in.readLong();
+			}
+		} finally {
+			in.close();
+		}
+		for (int i = 0; i < 10; ++i) {
+			Assert.assertEquals(amounts[i], b.getAmount(i));
+		}
+	}
+
+	@Test
+	public void testRestore() throws Throwable {
+		File walFile = File.createTempFile("bank", ".wal");
+		walFile.deleteOnExit();
+		File checkpointFile = File.createTempFile("bank", ".checkpoint");
+		checkpointFile.delete();
+		checkpointFile.deleteOnExit();
+		WriteAheadLog wal = new WriteAheadLog(walFile);
+		Bank b = Bank.restore(10, ConcurrencyMode.SPIN_CLAIM, wal,
+				checkpointFile);
+		Random random = new Random(0);
+		for (int i = 0; i < 25; ++i) {
+			b.deposit(random.nextInt(10), 1 + random.nextInt(100));
+		}
+		b.transfer(0, 1, b.getAmount(0));
+		b.transact(new int[] { 2, 3, 4 }, new long[] { -1, -1, 2 });
+		wal.close();
+		Assert.assertTrue(checkpointFile.exists());
+
+		wal = new WriteAheadLog(walFile);
+		Bank r = Bank.restore(10, ConcurrencyMode.STRIPED, wal,
+				checkpointFile);
+		Assert.assertEquals(r.snapshot().getVersion(), 27);
+		Assert.assertEquals(r.getTotalAmount(), b.getTotalAmount());
+		for (int i = 0; i < 10; ++i) {
+			Assert.assertEquals(r.getAmount(i), b.getAmount(i));
+			Assert.assertEquals(r.snapshot().getAmount(i), b.getAmount(i));
+		}
+		r.deposit(5, 1);
+		Assert.assertEquals(r.snapshot().getVersion(), 28);
+		wal.close();
+
+		File emptyLog = File.createTempFile("bank", ".wal");
+		emptyLog.deleteOnExit();
+		wal = new WriteAheadLog(emptyLog);
+		Bank c = Bank.restore(10, ConcurrencyMode.SYNCHRONIZED, wal,
+				checkpointFile);
+		Assert.assertEquals(c.snapshot().getVersion(), 20);
+		wal.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRestoreIllegalArgumentException() throws Throwable {
+		File checkpointFile = File.createTempFile("bank", ".checkpoint");
+		checkpointFile.delete();
+		checkpointFile.deleteOnExit();
+		Bank b = new Bank(2, ConcurrencyMode.SYNCHRONIZED, null,
+				checkpointFile);
+		b.deposit(0, 1);
+		b.deposit(1, 1);
+		Bank.restore(3, ConcurrencyMode.SYNCHRONIZED, null, checkpointFile);
+	}
+
+	@Test(timeout = 60000)
+	public void testFailedOperationTakesNoVersion() {
+		final boolean[] failing = new boolean[1];
+		Bank b = new Bank(new HeapBalanceStorage(2) {
+			@Override
+			public void set(int i, long value) {
+				if (failing[0]) {
+					throw new IllegalStateException("Storage failure");
+				}
+				super.set(i, value);
+			}
+		}, ConcurrencyMode.STRIPED, null, null);
+		b.deposit(0, 100);
+		for (int k = 0; k < 3; ++k) {
+			failing[0] = true;
+			try {
+				if (k == 0) {
+					b.deposit(0, 1);
+				} else if (k == 1) {
+					b.transfer(0, 1, 1);
+				} else {
+					b.transact(new int[] { 0, 1 }, new long[] { -1, 1 });
+				}
+				Assert.fail();
+			} catch (IllegalStateException e) {
+			}
+			failing[0] = false;
+			Assert.assertEquals(b.deposit(1, 1), k + 1);
+		}
+		Assert.assertEquals(b.snapshot().getVersion(), 4);
+		Assert.assertEquals(b.getAmount(0), 100);
+		Assert.assertEquals(b.getTotalAmount(), 103);
+	}
+
+	@Test
+	public void testFailedOperationCompletesCheckpoint() throws Throwable {
+		File checkpointFile = File.createTempFile("bank", ".checkpoint");
+		checkpointFile.delete();
+		checkpointFile.deleteOnExit();
+		final boolean[] failing = new boolean[1];
+		Bank b = new Bank(new HeapBalanceStorage(2) {
+			@Override
+			public void set(int i, long value) {
+				if (failing[0]) {
+					throw new IllegalStateException("Storage failure");
+				}
+				super.set(i, value);
+			}
+		}, ConcurrencyMode.STRIPED, null, checkpointFile);
+		b.deposit(0, 100);
+		failing[0] = true;
+		try {
+			b.deposit(1, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(e.getMessage(), "Storage failure");
+		}
+		failing[0] = false;
+		for (int k = 0; k < 11; ++k) {
+			b.deposit(0, 1);
+		}
+		Assert.assertEquals(b.snapshot().getVersion(), 12);
+		Assert.assertEquals(b.getOldestLiveVersion(), 12);
+		Bank r = Bank.restore(2, ConcurrencyMode.STRIPED, null,
+				checkpointFile);
+		Assert.assertEquals(r.snapshot().getVersion(), 12);
+		Assert.assertEquals(r.getAmount(0), 111);
+	}
+
+	@Test
+	public void testRestoreOpenedAccounts() throws Throwable {
+		File walFile = File.createTempFile("bank", ".wal");
+		walFile.deleteOnExit();
+		File checkpointFile = File.createTempFile("bank", ".checkpoint");
+		checkpointFile.delete();
+		checkpointFile.deleteOnExit();
+		WriteAheadLog wal = new WriteAheadLog(walFile);
+		Bank b = Bank.restore(4, ConcurrencyMode.SPIN_CLAIM, wal,
+				checkpointFile);
+		Random random = new Random(3);
+		for (int i = 0; i < 50; ++i) {
+			b.openAccount();
+			b.deposit(random.nextInt(b.getAccountCount()),
+					1 + random.nextInt(100));
+		}
+		b.openAccount();
+		wal.close();
+		Assert.assertTrue(checkpointFile.exists());
+
+		wal = new WriteAheadLog(walFile);
+		Bank r = Bank.restore(4, ConcurrencyMode.STRIPED, wal,
+				checkpointFile);
+		Assert.assertEquals(r.getAccountCount(), 55);
+		Assert.assertEquals(r.snapshot().getVersion(), 101);
+		Assert.assertEquals(r.snapshot().getAccountCount(), 55);
+		Assert.assertEquals(r.getTotalAmount(), b.getTotalAmount());
+		for (int i = 0; i < 55; ++i) {
+			Assert.assertEquals(r.getAmount(i), b.getAmount(i));
+			Assert.assertEquals(r.snapshot().getAmount(i), b.getAmount(i));
+		}
+		Assert.assertEquals(r.openAccount(), 55);
+		wal.close();
+	}
+
+	@Test
+	public void testOffHeapTransfers() throws Throwable {
+		checkConcurrentTransfers(new Bank(new OffHeapBalanceStorage(64),
+				ConcurrencyMode.SPIN_CLAIM, null, null));
+	}
+
+	@Test
+	public void testMappedBalanceStorage() throws Throwable {
+		File file = File.createTempFile("bank", ".balances");
+		file.deleteOnExit();
+		OffHeapBalanceStorage storage = new OffHeapBalanceStorage(file, 5);
+		Bank b = new Bank(storage, ConcurrencyMode.STRIPED, null, null);
+		b.deposit(1, 10);
+		b.deposit(4, 20);
+		b.transfer(4, 3, 5);
+		storage.close();
+		Assert.assertEquals(file.length(), 5 * 8);
+
+		storage = new OffHeapBalanceStorage(file, 5);
+		Bank r = new Bank(storage, ConcurrencyMode.SPIN_CLAIM, null, null);
+		Assert.assertEquals(r.getTotalAmount(), 30);
+		Assert.assertEquals(r.getAmount(1), 10);
+		Assert.assertEquals(r.getAmount(3), 5);
+		Assert.assertEquals(r.snapshot().getAmount(4), 15);
+		storage.close();
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram h = new Histogram();
+		Assert.assertEquals(h.getValueAtPercentile(50), 0);
+		for (int i = 1; i <= 1000; ++i) {
+			h.record(i * 1000L);
+		}
+		Assert.assertEquals(h.getCount(), 1000);
+		Assert.assertEquals(h.getMax(), 1000000);
+		Assert.assertEquals(h.getMean(), 500500, 0.001);
+		Assert.assertEquals(h.getValueAtPercentile(50), 500000, 500000 / 32);
+		Assert.assertEquals(h.getValueAtPercentile(99), 990000, 990000 / 32);
+		Assert.assertEquals(h.getValueAtPercentile(100), 1000000);
+		h.record(Long.MAX_VALUE);
+		Assert.assertEquals(h.getValueAtPercentile(100), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testHistogramAdd() {
+		Histogram a = new Histogram();
+		Histogram b = new Histogram();
+		for (int i = 1; i <= 1000; ++i) {
+			(i % 2 == 0 ? a : b).record(i * 1000L);
+		}
+		a.add(b);
+		a.add(new Histogram());
+		Assert.assertEquals(a.getCount(), 1000);
+		Assert.assertEquals(a.getMax(), 1000000);
+		Assert.assertEquals(a.getMean(), 500500, 0.001);
+		Assert.assertEquals(a.getValueAtPercentile(50), 500000, 500000 / 32);
+		Assert.assertEquals(b.getCount(), 500);
+	}
+
+	@Test
+	public void testStatistics() {
+		Bank b = new Bank(3, ConcurrencyMode.STRIPED);
+		Assert.assertNull(b.getStatistics());
+		BankStatistics stats = b.enableStatistics();
+		Assert.assertSame(b.getStatistics(), stats);
+		b.deposit(0, 10);
+		b.deposit(1, 10);
+		b.withdraw(0, 5);
+		b.transfer(1, 2, 5);
+		try {
+			b.withdraw(0, 6);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			b.deposit(3, 1);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		b.applyBatch(new int[] { Operations.DEPOSIT, Operations.DEPOSIT },
+				new int[] { 0, 0 }, new int[2], new long[] { 1, 0 }, 2,
+				new int[2]);
+		Assert.assertEquals(stats.getDepositLatency().getCount(), 3);
+		Assert.assertEquals(stats.getWithdrawLatency().getCount(), 2);
+		Assert.assertEquals(stats.getTransferLatency().getCount(), 1);
+		Assert.assertEquals(stats.getBatchLatency().getCount(), 1);
+		Assert.assertEquals(stats.getLockWait().getCount(), 6);
+		Assert.assertEquals(stats.getRejected(Operations.NOT_ENOUGH_MONEY), 1);
+		Assert.assertEquals(stats.getRejected(Operations.INVALID_INDEX), 1);
+		Assert.assertEquals(stats.getRejected(Operations.INVALID_AMOUNT), 1);
+		Assert.assertEquals(stats.getRejected(Operations.OVERFLOW), 0);
+		Assert.assertEquals(stats.getCheckpointDuration().getCount(), 1);
+		Assert.assertEquals(stats.getEventLogLength().getCount(), 1);
+		Assert.assertEquals(stats.getEventLogLength().getMax(), 3);
+		Assert.assertEquals(stats.getEventLogAccounts().getMax(), 2);
+	}
+
+	@Test
+	public void testShardedBank() {
+		ShardedBank b = new ShardedBank(10, 3, ConcurrencyMode.STRIPED);
+		Assert.assertEquals(b.getShardCount(), 3);
+		for (int i = 0; i < 10; ++i) {
+			Assert.assertEquals(b.deposit(i, 100 + i), 100 + i);
+		}
+		b.transfer(0, 1, 50);
+		b.transfer(3, 9, 10);
+		Assert.assertEquals(b.getAmount(0), 50);
+		Assert.assertEquals(b.getAmount(1), 151);
+		Assert.assertEquals(b.getAmount(3), 93);
+		Assert.assertEquals(b.getAmount(9), 119);
+		try {
+			b.transfer(2, 4, 103);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		b.deposit(5, Bank.MAX_AMOUNT - 105);
+		try {
+			b.transfer(4, 5, 1);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertEquals(b.getAmount(4), 104);
+		Assert.assertEquals(b.withdraw(5, Bank.MAX_AMOUNT - 105), 105);
+		Assert.assertEquals(b.getTotalAmount(), 1045);
+		ShardedSnapshot s = b.snapshot();
+		b.transfer(1, 2, 1);
+		Assert.assertEquals(s.getAmount(1), 151);
+		Assert.assertEquals(s.sum(0, 10), 1045);
+		Assert.assertEquals(s.sum(1, 4), 151 + 102 + 93);
+		Assert.assertEquals(s.sum(4, 4), 0);
+		s.close();
+		try {
+			b.transfer(0, 10, 1);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			b.transfer(0, 1, 0);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		b.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardedBankIllegalArgumentException() {
+		new ShardedBank(10, 0, ConcurrencyMode.STRIPED);
+	}
+
+	/**
+	 * Runs concurrent transfers between accounts of different shards while
+	 * taking global snapshots and reading the total amount, and checks that
+	 * every snapshot and every total preserves the total amount.
+	 */
+	private static void checkShardedTransfers(final ShardedBank b)
+			throws Throwable {
+		final int ACC = 64;
+		final long START = 1000;
+		for (int j = 0; j < ACC; ++j) {
+			b.deposit(j, START);
+		}
+		TestRunnable[] runnables = new TestRunnable[10];
+		for (int i = 0; i < 8; ++i) {
+			final int seed = i;
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					Random random = new Random(seed);
+					for (int i = 0; i < 20000; ++i) {
+						try {
+							b.transfer(random.nextInt(ACC),
+									random.nextInt(ACC), 1 + random.nextInt(50));
+						} catch (IllegalStateException e) {
+						}
+					}
+				}
+			};
+		}
+		final long[] sums = new long[200];
+		runnables[8] = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				for (int i = 0; i < sums.length; ++i) {
+					ShardedSnapshot s = b.snapshot();
+					for (int j = 0; j < ACC; ++j) {
+						Assert.assertTrue(s.getAmount(j) >= 0);
+						sums[i] += s.getAmount(j);
+					}
+					s.close();
+					Thread.yield();
+				}
+			}
+		};
+		runnables[9] = new TestRunnable() {
+			@Override
+			public void runTest() throws Throwable {
+				for (int i = 0; i < 2000; ++i) {
+					Assert.assertEquals(b.getTotalAmount(), ACC * START);
+				}
+			}
+		};
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		for (int i = 0; i < sums.length; ++i) {
+			Assert.assertEquals(sums[i], ACC * START);
+		}
+		Assert.assertEquals(b.getTotalAmount(), ACC * START);
+		b.close();
+	}
+
+	@Test
+	public void testShardedStripedTransfers() throws Throwable {
+		checkShardedTransfers(new ShardedBank(64, 4, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testShardedSpinClaimTransfers() throws Throwable {
+		checkShardedTransfers(new ShardedBank(64, 4,
+				ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test(timeout = 60000)
+	public void testShardedSequencerTransfers() throws Throwable {
+		checkShardedTransfers(new ShardedBank(64, 4,
+				ConcurrencyMode.SEQUENCER));
+	}
+
+	/**
+	 * Checks the results and the failures of asynchronous operations, then
+	 * runs concurrent asynchronous deposits and checks the total amount.
+	 */
+	private static void checkAsyncOperations(final Bank b) throws Throwable {
+		Assert.assertEquals(b.depositAsync(0, 10).get().longValue(), 10);
+		Assert.assertEquals(b.withdrawAsync(0, 3).get().longValue(), 7);
+		b.transferAsync(0, 1, 2).get();
+		Assert.assertEquals(b.getAmount(0), 5);
+		Assert.assertEquals(b.getAmount(1), 2);
+		try {
+			b.withdrawAsync(1, 3).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			b.transferAsync(0, 1, 6).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			b.depositAsync(0, 0).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		try {
+			b.transferAsync(0, 100, 1).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		Snapshot s = b.snapshotAsync().get();
+		Assert.assertEquals(s.getAmount(0), 5);
+		s.close();
+		TestRunnable[] runnables = new TestRunnable[4];
+		for (int i = 0; i < runnables.length; ++i) {
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					CompletableFuture<?>[] futures;
+					futures = new CompletableFuture<?>[5000];
+					for (int k = 0; k < futures.length; ++k) {
+						futures[k] = b.depositAsync(k % 10, 1);
+					}
+					CompletableFuture.allOf(futures).get();
+				}
+			};
+		}
+		MultiThreadedTestRunner runner = new MultiThreadedTestRunner(runnables);
+		runner.runTestRunnables();
+		Assert.assertEquals(b.getTotalAmount(), 7 + 4 * 5000);
+		Assert.assertEquals(b.snapshot().sum(0, 10), 7 + 4 * 5000);
+	}
+
+	@Test
+	public void testStripedAsyncOperations() throws Throwable {
+		checkAsyncOperations(new Bank(10, ConcurrencyMode.STRIPED));
+	}
+
+	@Test
+	public void testSequencerAsyncOperations() throws Throwable {
+		checkAsyncOperations(new Bank(10, ConcurrencyMode.SEQUENCER));
+	}
+
+	@Test
+	public void testBankServer() throws Throwable {
+		checkBankServer(new Bank(10, ConcurrencyMode.STRIPED));
+	}
+
+	@Test(timeout = 60000)
+	public void testSequencerBankServer() throws Throwable {
+		checkBankServer(new Bank(10, ConcurrencyMode.SEQUENCER));
+	}
+
+	private void checkBankServer(Bank b) throws Throwable {
+		BankServer server = new BankServer(b, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 2);
+		try {
+			SocketChannel client = SocketChannel.open(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), server.getPort()));
+			ByteBuffer requests = ByteBuffer.allocate(1024);
+			requests.put((byte) Operations.DEPOSIT).putInt(0).putLong(100);
+			requests.put((byte) Operations.WITHDRAW).putInt(0).putLong(30);
+			requests.put((byte) Operations.TRANSFER).putInt(0).putInt(1)
+					.putLong(20);
+			requests.put((byte) Operations.WITHDRAW).putInt(1).putLong(21);
+			requests.put((byte) Operations.TRANSFER).putInt(1).putInt(0)
+					.putLong(21);
+			requests.put((byte) Operations.DEPOSIT).putInt(10).putLong(1);
+			requests.put((byte) Operations.DEPOSIT).putInt(1).putLong(0);
+			requests.put((byte) BankServer.AMOUNT).putInt(1);
+			requests.put((byte) BankServer.TOTAL);
+			requests.put((byte) BankServer.SUM).putInt(0).putInt(10);
+			requests.put((byte) BankServer.SUM).putInt(5).putInt(11);
+			requests.put((byte) 42);
+			requests.flip();
+			while (requests.hasRemaining()) {
+				client.write(requests);
+			}
+			int[] codes = { Operations.OK, Operations.OK, Operations.OK,
+					Operations.NOT_ENOUGH_MONEY, Operations.NOT_ENOUGH_MONEY,
+					Operations.INVALID_INDEX, Operations.INVALID_AMOUNT,
+					Operations.OK, Operations.OK, Operations.OK,
+					Operations.INVALID_INDEX, Operations.INVALID_OPERATION };
+			long[] values = { 100, 70, 0, 0, 0, 0, 0, 20, 70, 70, 0, 0 };
+			ByteBuffer responses = ByteBuffer.allocate(codes.length
+					* BankServer.RESPONSE_SIZE);
+			while (responses.hasRemaining()) {
+				Assert.assertTrue(client.read(responses) >= 0);
+			}
+			responses.flip();
+			for (int k = 0; k < codes.length; ++k) {
+				Assert.assertEquals(responses.get(), codes[k]);
+				Assert.assertEquals(responses.getLong(), values[k]);
+			}
+			Assert.assertEquals(client.read(ByteBuffer.allocate(1)), -1);
+			client.close();
+			Assert.assertEquals(b.getAmount(0), 50);
+		} finally {
+			server.close();
+		}
+		Assert.assertNull(server.getFailure());
+		b.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testBankServerClosedBank() throws Throwable {
+		Bank b = new Bank(10, ConcurrencyMode.SEQUENCER);
+		b.deposit(2, 5);
+		b.close();
+		BankServer server = new BankServer(b, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 1);
+		try {
+			SocketChannel client = SocketChannel.open(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), server.getPort()));
+			ByteBuffer requests = ByteBuffer.allocate(1024);
+			requests.put((byte) Operations.DEPOSIT).putInt(0).putLong(100);
+			requests.put((byte) Operations.WITHDRAW).putInt(2).putLong(1);
+			requests.put((byte) Operations.TRANSFER).putInt(2).putInt(1)
+					.putLong(1);
+			requests.put((byte) BankServer.AMOUNT).putInt(2);
+			requests.flip();
+			while (requests.hasRemaining()) {
+				client.write(requests);
+			}
+			int[] codes = { Operations.UNAVAILABLE, Operations.UNAVAILABLE,
+					Operations.UNAVAILABLE, Operations.OK };
+			long[] values = { 0, 0, 0, 5 };
+			ByteBuffer responses = ByteBuffer.allocate(codes.length
+					* BankServer.RESPONSE_SIZE);
+			while (responses.hasRemaining()) {
+				Assert.assertTrue(client.read(responses) >= 0);
+			}
+			responses.flip();
+			for (int k = 0; k < codes.length; ++k) {
+				Assert.assertEquals(responses.get(), codes[k]);
+				Assert.assertEquals(responses.getLong(), values[k]);
+			}
+			client.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testBankServerPipelining() throws Throwable {
+		checkBankServerPipelining(new Bank(100, ConcurrencyMode.SPIN_CLAIM));
+	}
+
+	@Test(timeout = 60000)
+	public void testSequencerBankServerPipelining() throws Throwable {
+		checkBankServerPipelining(new Bank(100, ConcurrencyMode.SEQUENCER));
+	}
+
+	private void checkBankServerPipelining(final Bank b) throws Throwable {
+		final BankServer server = new BankServer(b, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 2);
+		TestRunnable[] runnables = new TestRunnable[4];
+		for (int i = 0; i < runnables.length; ++i) {
+			runnables[i] = new TestRunnable() {
+				@Override
+				public void runTest() throws Throwable {
+					SocketChannel client = SocketChannel
+							.open(new InetSocketAddress(InetAddress
+									.getLoopbackAddress(), server.getPort()));
+					final int COUNT = 20000;
+					final int WINDOW = 1000;
+					ByteBuffer requests = ByteBuffer.allocate(WINDOW * 13);
+					ByteBuffer responses = ByteBuffer.allocate(WINDOW
+							* BankServer.RESPONSE_SIZE);
+					for (int k = 0; k < COUNT; k += WINDOW) {
+						requests.clear();
+						for (int j = k; j < k + WINDOW; ++j) {
+							requests.put((byte) Operations.DEPOSIT)
+									.putInt(j % 100).putLong(1);
+						}
+						requests.flip();
+						while (requests.hasRemaining()) {
+							client.write(requests);
+						}
+						responses.clear();
+						while (responses.hasRemaining()) {
+							Assert.assertTrue(client.read(responses) >= 0);
+						}
+						responses.flip();
+						for (int j = 0; j < WINDOW; ++j) {
+							Assert.assertEquals(responses.get(), Operations.OK);
+							responses.getLong();
+						}
+					}
+					client.close();
+				}
+			};
+		}
+		try {
+			MultiThreadedTestRunner runner = new MultiThreadedTestRunner(
+					runnables);
+			runner.runTestRunnables();
+		} finally {
+			server.close();
+		}
+		Assert.assertEquals(b.getTotalAmount(), 4 * 20000);
+		b.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testBankServerPipeliningBeyondBuffer() throws Throwable {
+		final int COUNT = 20000;
+		Bank b = new Bank(10);
+		b.deposit(3, 7);
+		BankServer server = new BankServer(b, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 1);
+		try {
+			SocketChannel client = SocketChannel.open(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), server.getPort()));
+			ByteBuffer requests = ByteBuffer.allocate(COUNT);
+			for (int k = 0; k < COUNT; ++k) {
+				requests.put((byte) BankServer.TOTAL);
+			}
+			requests.flip();
+			while (requests.hasRemaining()) {
+				client.write(requests);
+			}
+			ByteBuffer responses = ByteBuffer.allocate(COUNT
+					* BankServer.RESPONSE_SIZE);
+			while (responses.hasRemaining()) {
+				Assert.assertTrue(client.read(responses) >= 0);
+			}
+			responses.flip();
+			for (int k = 0; k < COUNT; ++k) {
+				Assert.assertEquals(responses.get(), Operations.OK);
+				Assert.assertEquals(responses.getLong(), 7);
+			}
+			client.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testScriptTokens() throws Throwable {
+		String input = "deposit 1 100\n"
+				+ "  deposit\t2   50  \n"
+				+ "DEPOSIT 3 5\r\n"
+				+ "deposit 1 +5\n"
+				+ "deposit 1 0000000000000000000007\n"
+				+ "withdraw 1 -9223372036854775808\n"
+				+ "deposit 1 9223372036854775807\n"
+				+ "deposit 1 9223372036854775808\n"
+				+ "deposit 1 -9223372036854775809\n"
+				+ "deposit 2147483648 1\n"
+				+ "deposit -2147483649 1\n"
+				+ "amount -2147483648\n"
+				+ "deposit 1 -\n"
+				+ "deposit 1 +\n"
+				+ "deposit 1 5x\n"
+				+ "deposit \"1\" 5\n"
+				+ "\n"
+				+ " \t \n"
+				+ "transfer 1 2 10\n"
+				+ "snapshot make \"a b\"\n"
+				+ "snapshot make \"a\"\n"
+				+ "snapshot amount \"a\" 1\n"
+				+ "snapshot close \"a\"\n"
+				+ "snapshot make \u00e9\u6708\n"
+				+ "snapshot sum \u00e9\u6708 0 3\n"
+				+ "snapshot close \u00e9\u6708\n"
+				+ "amount 1\n"
+				+ "total";
+		String[] lines = runScript(input).split("\n");
+		Assert.assertEquals(lines.length, 29);
+		Assert.assertTrue(lines[28].startsWith("Executed 28 commands"));
+		Assert.assertEquals(lines[1],
+				"Successful deposit of size 50 to account 2, total money: 50");
+		Assert.assertEquals(lines[2],
+				"Successful deposit of size 5 to account 3, total money: 5");
+		Assert.assertEquals(lines[3],
+				"Successful deposit of size 5 to account 1, total money: 105");
+		Assert.assertEquals(lines[4],
+				"Successful deposit of size 7 to account 1, total money: 112");
+		Assert.assertTrue(lines[5].startsWith("Invalid operation: "));
+		Assert.assertTrue(lines[6].startsWith("Invalid operation: "));
+		for (int k = 7; k <= 10; ++k) {
+			Assert.assertEquals(lines[k], "Invalid command");
+		}
+		Assert.assertTrue(lines[11].startsWith("Invalid operation: "));
+		for (int k = 12; k <= 17; ++k) {
+			Assert.assertEquals(lines[k], "Invalid command");
+		}
+		Assert.assertEquals(lines[19], "Invalid command");
+		Assert.assertEquals(lines[21],
+				"Total money on deposit 1 of snapshot \"a\": 102");
+		String id = new String("\u00e9\u6708".getBytes());
+		Assert.assertEquals(lines[24], "Total money on deposits 0..3 "
+				+ "of snapshot " + id + ": 162");
+		Assert.assertEquals(lines[27], "Total money on deposits: 167");
+		String[] interactive = runInteractive(input).split("\n");
+		Assert.assertEquals(interactive.length, 28);
+		for (int k = 0; k < interactive.length; ++k) {
+			Assert.assertEquals(lines[k], interactive[k]);
+		}
+	}
+
+	private String runScript(String input) throws Throwable {
+		File file = File.createTempFile("bank", ".script");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(input.getBytes());
+		} finally {
+			out.close();
+		}
+		return runConsole(new ByteArrayInputStream(new byte[0]),
+				"--script", file.getPath(), "10");
+	}
+
+	private String runInteractive(String input) throws Throwable {
+		return runConsole(new ByteArrayInputStream(input.getBytes()), "10");
+	}
+
+	private String runConsole(InputStream in, String... args)
+			throws Throwable {
+		InputStream oldIn = System.in;
+		PrintStream oldOut = System.out;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		System.setIn(in);
+		System.setOut(new PrintStream(out, true));
+		try {
+			ConsoleMain.main(args);
+		} finally {
+			System.setIn(oldIn);
+			System.setOut(oldOut);
+		}
+		return new String(out.toByteArray()).replace("\r", "");
+	}
 }